@@ -0,0 +1,34 @@
+package ca.concordia.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Scratch disk files for the benchmarks
+public class BenchVolumes {
+
+    // A fresh path in the temp directory (the filesystem formats it on first use)
+    public static Path newVolume(String prefix) throws IOException {
+        Path volume = Files.createTempFile(prefix, ".dat");
+        Files.delete(volume);
+        return volume;
+    }
+
+    // Removes the disk file and everything named after it (journal segments, shard volumes)
+    public static void delete(Path volume) throws IOException {
+        Files.deleteIfExists(volume);
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(volume.getParent(), volume.getFileName() + ".*")) {
+            for (Path sibling : siblings) {
+                Files.deleteIfExists(sibling);
+            }
+        }
+    }
+
+    // Logging is switched off in the configs; this catches what is left (startup lines, warnings)
+    public static void silenceStdout() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
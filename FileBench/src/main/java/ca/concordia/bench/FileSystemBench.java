@@ -0,0 +1,150 @@
+package ca.concordia.bench;
+
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single operations on the filesystem, called directly (no sockets).
+// Run with -t N to measure N threads hitting the same volume, -p shards=N to spread the files over N volumes
+// and -p compression=DEFLATE to store them compressed (the contents are text, so they compress about 3:1).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemBench {
+
+    static final int FILES = 64;                  // Files read and overwritten by the benchmarks (power of two)
+    static final long VOLUME_BYTES = 256L << 20;
+
+    @Param({"128", "4096", "65536"})
+    public int fileSize;
+
+    @Param({"128", "4096"})
+    public int blockSize;
+
+    @Param({"SYNC", "ASYNC"})
+    public String durability;
+
+    @Param({"1"})
+    public int shards;
+
+    @Param({"NONE"})
+    public String compression;
+
+    FileStore fs;
+    Path volume;
+    byte[] contents;
+    final String[] names = new String[FILES];
+
+    // Gives each benchmark thread its own position and its own names for create/delete
+    @State(Scope.Thread)
+    public static class Cursor {
+        static final AtomicInteger threads = new AtomicInteger();
+        final int id = threads.getAndIncrement();
+        int next = id * 7;
+        int created = 0;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchVolumes.silenceStdout();
+        volume = BenchVolumes.newVolume("fsbench");
+        FileSystemConfig config = new FileSystemConfig()
+                .setDurability(FileSystemConfig.Durability.valueOf(durability))
+                .setLogOperations(false)
+                .setShards(shards)
+                .setCompression(FileSystemConfig.Compression.valueOf(compression));
+        fs = FileStore.open(volume.toString(), VOLUME_BYTES, blockSize, config);
+
+        contents = text(fileSize);
+        for (int i = 0; i < FILES; i++) {
+            names[i] = "f" + i;
+            fs.createFile(names[i]);
+            fs.writeFile(names[i], contents);
+        }
+    }
+
+    // size bytes of words picked at random (with a fixed seed)
+    static byte[] text(int size) {
+        String[] words = {"the ", "file ", "server ", "block ", "journal ", "client ", "read ", "write ", "of ", "and\n"};
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]);
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        BenchVolumes.delete(volume);
+    }
+
+    @Benchmark
+    public void write(Cursor cursor) throws Exception {
+        fs.writeFile(names[cursor.next++ & (FILES - 1)], contents);
+    }
+
+    @Benchmark
+    public byte[] read(Cursor cursor) throws Exception {
+        return fs.readFile(names[cursor.next++ & (FILES - 1)]);
+    }
+
+    // Create, write and delete of a new file: the full life of a small upload
+    @Benchmark
+    public void createWriteDelete(Cursor cursor) throws Exception {
+        String name = "t" + cursor.id + "_" + (cursor.created++ & 0xFFFF);
+        fs.createFile(name);
+        fs.writeFile(name, contents);
+        fs.deleteFile(name);
+    }
+
+    @Benchmark
+    public void createDelete(Cursor cursor) throws Exception {
+        String name = "t" + cursor.id + "_" + (cursor.created++ & 0xFFFF);
+        fs.createFile(name);
+        fs.deleteFile(name);
+    }
+
+    @Benchmark
+    public String[] list() throws Exception {
+        return fs.listFiles();
+    }
+
+    // Every file read at once with readFileAsync, whose block reads are queued together and merged
+    // where they are close on disk (compare with read; single volume only, shards=1)
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void readAsync() throws Exception {
+        FileSystemManager manager = (FileSystemManager) fs;
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[FILES];
+        for (int i = 0; i < FILES; i++) {
+            reads[i] = manager.readFileAsync(names[i]);
+        }
+        CompletableFuture.allOf(reads).get();
+    }
+}
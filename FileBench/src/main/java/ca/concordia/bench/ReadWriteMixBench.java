@@ -0,0 +1,121 @@
+package ca.concordia.bench;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Readers and writers sharing one volume at 7:1, 4:4 and 1:7 thread ratios. Each operation picks
+// one of hotFiles at random, so a small hotFiles makes readers and writers meet on the same files.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadWriteMixBench {
+
+    @Param({"4096", "65536"})
+    public int fileSize;
+
+    @Param({"128", "4096"})
+    public int blockSize;
+
+    @Param({"4", "256"})
+    public int hotFiles;
+
+    @Param({"0"})
+    public long cacheBytes; // e.g. -p cacheBytes=67108864 to measure with the block cache
+
+    FileSystemManager fs;
+    Path volume;
+    byte[] contents;
+    String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchVolumes.silenceStdout();
+        volume = BenchVolumes.newVolume("mixbench");
+        FileSystemConfig config = new FileSystemConfig().setCacheBytes(cacheBytes).setLogOperations(false);
+        fs = new FileSystemManager(volume.toString(), FileSystemBench.VOLUME_BYTES, blockSize, config);
+
+        contents = new byte[fileSize];
+        Arrays.fill(contents, (byte) 'x');
+        names = new String[hotFiles];
+        for (int i = 0; i < hotFiles; i++) {
+            names[i] = "f" + i;
+            fs.createFile(names[i]);
+            fs.writeFile(names[i], contents);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        BenchVolumes.delete(volume);
+    }
+
+    private String pick() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(7)
+    public byte[] readHeavyRead() throws Exception {
+        return fs.readFile(pick());
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void readHeavyWrite() throws Exception {
+        fs.writeFile(pick(), contents);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(4)
+    public byte[] balancedRead() throws Exception {
+        return fs.readFile(pick());
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(4)
+    public void balancedWrite() throws Exception {
+        fs.writeFile(pick(), contents);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public byte[] writeHeavyRead() throws Exception {
+        return fs.readFile(pick());
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(7)
+    public void writeHeavyWrite() throws Exception {
+        fs.writeFile(pick(), contents);
+    }
+}
@@ -0,0 +1,253 @@
+package ca.concordia.bench;
+
+import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End-to-end requests over loopback sockets against a FileServer in the same JVM, one connection
+// per benchmark thread. Run with -t N for N concurrent clients.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBench {
+
+    static final int PIPELINE = 16;  // Commands sent per flush in the pipelined benchmarks
+
+    @Param({"THREAD", "VIRTUAL", "NIO"})
+    public String engine;
+
+    @Param({"128", "4096"})
+    public int fileSize;
+
+    FileServer server;
+    Thread serverThread;
+    Path volume;
+    int port;
+    String contents;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchVolumes.silenceStdout();
+        System.setProperty("fs.log", "false"); // The server builds its FileSystemConfig from system properties
+        volume = BenchVolumes.newVolume("srvbench");
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new FileServer(port, volume.toString(), FileSystemBench.VOLUME_BYTES, 4096,
+                new ServerConfig().setEngine(ServerConfig.Engine.valueOf(engine)).setLogCommands(false));
+        serverThread = new Thread(server::start, "bench-server");
+        serverThread.start();
+
+        contents = "x".repeat(fileSize);
+        try (Connection setup = new Connection(this, -1)) {
+            setup.call("CREATE shared");
+            setup.call("WRITE shared " + contents);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(10_000);
+        BenchVolumes.delete(volume);
+    }
+
+    // One client connection per benchmark thread, with its own file
+    @State(Scope.Thread)
+    public static class Connection implements AutoCloseable {
+        static final AtomicInteger ids = new AtomicInteger();
+
+        Socket socket;
+        BufferedReader reader;
+        PrintWriter writer;
+        String file;
+        int created = 0;
+
+        public Connection() {
+        }
+
+        Connection(ServerBench bench, int id) throws Exception {
+            open(bench, id);
+        }
+
+        @Setup(Level.Trial)
+        public void setup(ServerBench bench) throws Exception {
+            open(bench, ids.getAndIncrement());
+            call("CREATE " + file);
+        }
+
+        private void open(ServerBench bench, int id) throws Exception {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (true) {
+                try {
+                    socket = new Socket("localhost", bench.port);
+                    break;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) throw e;
+                    Thread.sleep(20); // Server still starting
+                }
+            }
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer = new PrintWriter(socket.getOutputStream(), false);
+            file = "c" + id;
+        }
+
+        // Sends one command and returns the first line of the reply (and skips the rest of a SUCCESS: block)
+        String call(String command) throws IOException {
+            writer.println(command);
+            writer.flush();
+            return readReply();
+        }
+
+        String readReply() throws IOException {
+            String first = reader.readLine();
+            if ("SUCCESS:".equals(first) || (first != null && first.endsWith(" SUCCESS:"))) {
+                String line;
+                while ((line = reader.readLine()) != null && !line.equals("END") && !line.endsWith(" END")) {
+                    // Block contents
+                }
+            }
+            return first;
+        }
+
+        @TearDown(Level.Trial)
+        @Override
+        public void close() throws IOException {
+            writer.println("QUIT");
+            writer.flush();
+            reader.readLine();
+            socket.close();
+        }
+    }
+
+    // One command per round trip: WRITE then READ of the connection's own file
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public String writeRead(Connection c) throws IOException {
+        c.call("WRITE " + c.file + " " + contents);
+        return c.call("READ " + c.file);
+    }
+
+    @Benchmark
+    public String read(Connection c) throws IOException {
+        return c.call("READ shared");
+    }
+
+    // PIPELINE tagged READs sent with one flush, then all replies read
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public String readPipelined(Connection c) throws IOException {
+        for (int i = 0; i < PIPELINE; i++) {
+            c.writer.println("#" + i + " READ shared");
+        }
+        c.writer.flush();
+        String last = null;
+        for (int i = 0; i < PIPELINE; i++) {
+            last = c.readReply();
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public String createDelete(Connection c) throws IOException {
+        String name = c.file + "_" + (c.created++ & 0xFFFF);
+        c.call("CREATE " + name);
+        return c.call("DELETE " + name);
+    }
+
+    // The same CREATE, WRITE and DELETE as one BATCH: one round trip and one journal commit
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public String createWriteDeleteBatch(Connection c) throws IOException {
+        String name = c.file + "_" + (c.created++ & 0xFFFF);
+        c.writer.println("BATCH");
+        c.writer.println("CREATE " + name);
+        c.writer.println("WRITE " + name + " " + contents);
+        c.writer.println("DELETE " + name);
+        c.writer.println("END");
+        c.writer.flush();
+        return c.readReply();
+    }
+
+    @Benchmark
+    public String list(Connection c) throws IOException {
+        return c.call("LIST");
+    }
+
+    // Binary protocol READ of the shared file on a connection of its own (zero-copy on the blocking engines)
+    @State(Scope.Thread)
+    public static class BinaryConnection {
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        final byte[] name = "shared".getBytes(StandardCharsets.UTF_8);
+
+        @Setup(Level.Trial)
+        public void setup(ServerBench bench) throws Exception {
+            socket = new Socket("localhost", bench.port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                // Negotiation reply
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] readBinary(BinaryConnection c) throws IOException {
+        c.out.writeByte(3); // READ
+        c.out.writeShort(c.name.length);
+        c.out.writeInt(0);
+        c.out.write(c.name);
+        c.out.flush();
+        int status = c.in.readUnsignedByte();
+        byte[] payload = new byte[c.in.readInt()];
+        c.in.readFully(payload);
+        if (status != 0) {
+            throw new IOException(new String(payload, StandardCharsets.UTF_8));
+        }
+        return payload;
+    }
+}
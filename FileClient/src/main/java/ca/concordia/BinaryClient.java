@@ -0,0 +1,158 @@
+package ca.concordia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client for the server's binary protocol. Payloads are raw bytes, so file contents may contain
+// newlines or any other binary data.
+//   Request:  opcode (1) | name length (2) | payload length (4) | name (UTF-8) | payload
+//   Response: status (1) | payload length (4) | payload
+public class BinaryClient implements Closeable {
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_WRITE = 2;
+    private static final byte OP_READ = 3;
+    private static final byte OP_DELETE = 4;
+    private static final byte OP_LIST = 5;
+    private static final byte OP_QUIT = 6;
+    private static final byte OP_APPEND = 7;
+    private static final byte OP_READ_RANGE = 8;
+    private static final byte OP_WRITE_AT = 9;
+    private static final byte OP_STATS = 10;
+    private static final byte OP_MKDIR = 11;
+    private static final byte OP_RMDIR = 12;
+    private static final byte STATUS_OK = 0;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public BinaryClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // Switch the connection from text lines to frames
+        out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String reply = readLine();
+        if (!reply.startsWith("SUCCESS")) {
+            socket.close();
+            throw new IOException("Server refused the binary protocol: " + reply);
+        }
+    }
+
+    public void create(String name) throws IOException {
+        call(OP_CREATE, name, new byte[0]);
+    }
+
+    public void write(String name, byte[] contents) throws IOException {
+        call(OP_WRITE, name, contents);
+    }
+
+    public byte[] read(String name) throws IOException {
+        return call(OP_READ, name, new byte[0]);
+    }
+
+    // Bytes [offset, offset + length) of the file, fewer at its end
+    public byte[] read(String name, long offset, int length) throws IOException {
+        return call(OP_READ_RANGE, name, ByteBuffer.allocate(12).putLong(offset).putInt(length).array());
+    }
+
+    // Overwrites or extends the file from offset (at most its current size); returns the new size
+    public long write(String name, long offset, byte[] data) throws IOException {
+        byte[] payload = ByteBuffer.allocate(8 + data.length).putLong(offset).put(data).array();
+        return ByteBuffer.wrap(call(OP_WRITE_AT, name, payload)).getLong();
+    }
+
+    // Adds data to the end of the file; returns the new size
+    public long append(String name, byte[] data) throws IOException {
+        return ByteBuffer.wrap(call(OP_APPEND, name, data)).getLong();
+    }
+
+    public void delete(String name) throws IOException {
+        call(OP_DELETE, name, new byte[0]);
+    }
+
+    public void mkdir(String path) throws IOException {
+        call(OP_MKDIR, path, new byte[0]);
+    }
+
+    public void rmdir(String path) throws IOException {
+        call(OP_RMDIR, path, new byte[0]);
+    }
+
+    public List<String> list() throws IOException {
+        return names(call(OP_LIST, "", new byte[0]));
+    }
+
+    // Up to limit names in the directory after after (null for the first); directories end with '/'
+    public List<String> list(String path, String after, int limit) throws IOException {
+        byte[] name = (after == null) ? new byte[0] : after.getBytes(StandardCharsets.UTF_8);
+        return names(call(OP_LIST, path, ByteBuffer.allocate(4 + name.length).putInt(limit).put(name).array()));
+    }
+
+    private static List<String> names(byte[] reply) {
+        ByteBuffer payload = ByteBuffer.wrap(reply);
+        List<String> names = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            byte[] name = new byte[payload.getShort() & 0xFFFF];
+            payload.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    // The server's counters and latency summaries, one "key value" per line
+    public String stats() throws IOException {
+        return new String(call(OP_STATS, "", new byte[0]), StandardCharsets.UTF_8);
+    }
+
+    // Says QUIT and closes the socket
+    @Override
+    public void close() throws IOException {
+        try {
+            call(OP_QUIT, "", new byte[0]);
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Sends one request and returns the response payload, or throws with the server's error message
+    private byte[] call(byte opcode, String name, byte[] payload) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(opcode);
+        out.writeShort(nameBytes.length);
+        out.writeInt(payload.length);
+        out.write(nameBytes);
+        out.write(payload);
+        out.flush();
+
+        int status = in.readUnsignedByte();
+        byte[] response = new byte[in.readInt()];
+        in.readFully(response);
+        if (status != STATUS_OK) {
+            throw new IOException(new String(response, StandardCharsets.UTF_8));
+        }
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,553 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator: opens N connections to a server and drives a weighted mix of text commands.
+// Options are key=value pairs (defaults shown):
+//   host=localhost port=12345 connections=8 duration=30 warmup=5 (seconds)
+//   mix=read:60,write:25,create:5,delete:5,list:5   relative weights of the commands
+//   sizes=128:70,4096:25,65536:5                     WRITE sizes in bytes, "min-max:weight" for a range
+//   files=16                                         most files each connection keeps (half are made up front)
+//   mode=closed|open rate=1000 inflight=1024         open loop: commands per second over all connections
+//   out=results.csv format=csv|json seed=1
+// closed: every connection sends its next command as soon as the reply to the previous one arrives.
+// open:   every connection sends on a fixed schedule, tagged and pipelined, and latency counts from the
+//         scheduled time, so a server that falls behind shows up as latency instead of a slower schedule.
+public class LoadGenerator {
+
+    enum Op { CREATE, WRITE, READ, DELETE, LIST }
+
+    private static final String QUIT_TAG = "#q";
+
+    // Options
+    private String host = "localhost";
+    private int port = 12345;
+    private int connections = 8;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private String mixSpec = "read:60,write:25,create:5,delete:5,list:5";
+    private String sizesSpec = "128:70,4096:25,65536:5";
+    private int files = 16;
+    private boolean openLoop = false;
+    private double rate = 1000;
+    private int inflight = 1024;
+    private String out = null;
+    private String format = null;
+    private long seed = 1;
+
+    private final int[] mixWeights = new int[Op.values().length];
+    private final List<long[]> sizeRanges = new ArrayList<>(); // {min, max, weight}
+    private String payload;                                    // WRITE contents are prefixes of this
+
+    private volatile long startNanos;  // Beginning of the warmup, shared by all connections
+
+    // File names are L<run><connection>_<n>, at most 11 characters; the run part keeps back-to-back runs apart
+    private final String run = Integer.toString((int) ((System.nanoTime() >>> 10) % 1296), 36);
+
+    public static void main(String[] args) {
+        try {
+            new LoadGenerator(args).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public LoadGenerator(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 1) throw new IllegalArgumentException("Options are key=value, got '" + arg + "'.");
+            String key = arg.substring(0, eq).toLowerCase(Locale.ROOT);
+            String value = arg.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "host": host = value; break;
+                    case "port": port = Integer.parseInt(value); break;
+                    case "connections": connections = Integer.parseInt(value); break;
+                    case "duration": durationSeconds = Integer.parseInt(value); break;
+                    case "warmup": warmupSeconds = Integer.parseInt(value); break;
+                    case "mix": mixSpec = value; break;
+                    case "sizes": sizesSpec = value; break;
+                    case "files": files = Integer.parseInt(value); break;
+                    case "mode": openLoop = parseMode(value); break;
+                    case "rate": rate = Double.parseDouble(value); break;
+                    case "inflight": inflight = Integer.parseInt(value); break;
+                    case "out": out = value; break;
+                    case "format": format = value.toLowerCase(Locale.ROOT); break;
+                    case "seed": seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option '" + key + "'.");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + key + ": '" + value + "'.");
+            }
+        }
+        if (connections > 1296) {
+            throw new IllegalArgumentException("At most 1296 connections (file names are limited to 11 characters).");
+        }
+        if (connections < 1 || durationSeconds < 1 || warmupSeconds < 0 || files < 1 || inflight < 1 || !(rate > 0)) {
+            throw new IllegalArgumentException("connections, duration, files, inflight and rate must be positive.");
+        }
+        if (format == null) {
+            format = (out != null && out.toLowerCase(Locale.ROOT).endsWith(".json")) ? "json" : "csv";
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("format must be csv or json.");
+        }
+        parseMix();
+        parseSizes();
+    }
+
+    private static boolean parseMode(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "open": return true;
+            case "closed": return false;
+            default: throw new IllegalArgumentException("mode must be open or closed.");
+        }
+    }
+
+    // "read:60,write:25,..." into mixWeights
+    private void parseMix() {
+        for (String entry : mixSpec.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2) throw new IllegalArgumentException("mix entries are command:weight, got '" + entry + "'.");
+            Op op;
+            try {
+                op = Op.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown command in mix: '" + pair[0] + "'.");
+            }
+            mixWeights[op.ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        if (Arrays.stream(mixWeights).sum() <= 0) throw new IllegalArgumentException("mix has no positive weight.");
+    }
+
+    // "128:70,1024-4096:30" into sizeRanges
+    private void parseSizes() {
+        long largest = 0;
+        for (String entry : sizesSpec.split(",")) {
+            String[] pair = entry.trim().split(":");
+            String[] range = pair[0].trim().split("-");
+            long min = Long.parseLong(range[0].trim());
+            long max = (range.length > 1) ? Long.parseLong(range[1].trim()) : min;
+            long weight = (pair.length > 1) ? Long.parseLong(pair[1].trim()) : 1;
+            if (min < 1 || max < min || max > Integer.MAX_VALUE / 2 || weight < 0) {
+                throw new IllegalArgumentException("Invalid size entry '" + entry + "'.");
+            }
+            sizeRanges.add(new long[]{min, max, weight});
+            largest = Math.max(largest, max);
+        }
+        if (sizeRanges.stream().mapToLong(r -> r[2]).sum() <= 0) throw new IllegalArgumentException("sizes has no positive weight.");
+
+        StringBuilder text = new StringBuilder((int) largest);
+        for (int i = 0; i < largest; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        payload = text.toString();
+    }
+
+    public void run() throws Exception {
+        System.out.println("Load: " + connections + " connections to " + host + ":" + port + ", "
+                + (openLoop ? "open loop at " + rate + " commands/s" : "closed loop") + ", "
+                + warmupSeconds + "s warmup + " + durationSeconds + "s, mix " + mixSpec + ", sizes " + sizesSpec);
+
+        // Everyone connects and creates their files, then the clock starts for all at once
+        CyclicBarrier ready = new CyclicBarrier(connections, () -> startNanos = System.nanoTime());
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, new Random(seed * 1_000_003L + i));
+            Thread thread = new Thread(() -> worker.run(ready), "load-" + i);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                System.out.println("Connection " + worker.id + " failed: " + worker.failure);
+            }
+        }
+        Map<String, Result> results = collect(workers);
+        printTable(results);
+        if (out != null) {
+            if (format.equals("json")) writeJson(results);
+            else writeCsv(results);
+            System.out.println("Results written to " + out);
+        }
+    }
+
+    // One connection and the files it owns
+    private class Worker {
+        final int id;
+        final Random random;
+        final Samples[] samples = new Samples[Op.values().length];
+        final List<String> owned = new ArrayList<>();
+        int nextFile = 0;
+        volatile String failure;
+
+        Socket socket;
+        BufferedReader reader;
+        PrintWriter writer;
+
+        Worker(int id, Random random) {
+            this.id = id;
+            this.random = random;
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = new Samples();
+            }
+        }
+
+        void run(CyclicBarrier ready) {
+            try {
+                try {
+                    socket = new Socket(host, port);
+                    socket.setTcpNoDelay(true);
+                    reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    writer = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+                    prefill();
+                } catch (IOException e) {
+                    failure = e.getMessage();
+                }
+                ready.await();
+                if (failure != null) return;
+
+                if (openLoop) runOpen();
+                else runClosed();
+            } catch (IOException | InterruptedException | BrokenBarrierException e) {
+                failure = e.toString();
+            } finally {
+                try {
+                    if (socket != null) socket.close();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+            }
+        }
+
+        // Half of the files, created and written before the clock starts
+        void prefill() throws IOException {
+            for (int i = 0; i < Math.max(1, files / 2); i++) {
+                writer.println(next(Op.CREATE));
+                writer.println(next(Op.WRITE));
+            }
+            writer.flush();
+            for (int i = 0; i < Math.max(1, files / 2) * 2; i++) {
+                Reply reply = readReply();
+                if (!reply.success) throw new IOException("setup failed: " + reply.line);
+            }
+        }
+
+        void runClosed() throws IOException {
+            long measureFrom = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                Op op = pickOp();
+                writer.println(next(op));
+                writer.flush();
+                Reply reply = readReply();
+                if (now >= measureFrom) {
+                    samples[op.ordinal()].add(System.nanoTime() - now, reply.success);
+                }
+            }
+            cleanUp("");
+            writer.println("QUIT");
+            writer.flush();
+            while (reader.readLine() != null) {
+                // Replies to the clean-up DELETEs, then to QUIT
+            }
+        }
+
+        // Deletes the files this connection still has (not measured)
+        void cleanUp(String tag) {
+            for (String name : owned) {
+                writer.println(tag + "DELETE " + name);
+            }
+            owned.clear();
+        }
+
+        // A sender on this thread keeps to the schedule while a reader thread matches tagged replies
+        void runOpen() throws IOException, InterruptedException {
+            long interval = (long) (1e9 * connections / rate);
+            long measureFrom = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            Map<String, long[]> pending = new ConcurrentHashMap<>(); // tag -> {op, scheduled time}
+            Semaphore window = new Semaphore(inflight);
+
+            Thread receiver = new Thread(() -> {
+                try {
+                    Reply reply;
+                    while ((reply = readReply()) != null && !QUIT_TAG.equals(reply.tag)) {
+                        long[] request = pending.remove(reply.tag);
+                        if (request == null) continue;
+                        if (request[1] >= measureFrom) {
+                            samples[(int) request[0]].add(System.nanoTime() - request[1], reply.success);
+                        }
+                        window.release();
+                    }
+                    if (reply == null) failure = "connection closed by the server";
+                } catch (IOException e) {
+                    if (failure == null) failure = e.toString();
+                }
+            }, "load-" + id + "-replies");
+            receiver.start();
+
+            long scheduled = startNanos + interval * id / connections; // Spread the connections over one interval
+            for (long n = 0; scheduled < end; n++, scheduled += interval) {
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                while (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    if (!receiver.isAlive()) throw new IOException(failure);
+                }
+                Op op = pickOp();
+                String tag = "#" + n;
+                pending.put(tag, new long[]{op.ordinal(), scheduled});
+                writer.println(tag + " " + next(op));
+                writer.flush();
+            }
+
+            // Let the last replies arrive before saying QUIT
+            window.tryAcquire(inflight, 30, TimeUnit.SECONDS);
+            cleanUp("#cleanup ");
+            writer.println(QUIT_TAG + " QUIT");
+            writer.flush();
+            receiver.join();
+        }
+
+        // The weighted choice, turned into something that works on the files this connection has
+        Op pickOp() {
+            int total = Arrays.stream(mixWeights).sum();
+            int roll = random.nextInt(total);
+            Op op = Op.LIST;
+            for (Op candidate : Op.values()) {
+                roll -= mixWeights[candidate.ordinal()];
+                if (roll < 0) {
+                    op = candidate;
+                    break;
+                }
+            }
+            if (owned.isEmpty() && op != Op.LIST) return Op.CREATE;
+            if (op == Op.CREATE && owned.size() >= files) return Op.DELETE;
+            return op;
+        }
+
+        // The command line for op; updates the files this connection owns as if it succeeds
+        String next(Op op) {
+            switch (op) {
+                case CREATE: {
+                    String name = "L" + run + Integer.toString(id, 36) + "_" + Integer.toString(nextFile++ % 60_466_176, 36);
+                    owned.add(name);
+                    return "CREATE " + name;
+                }
+                case WRITE: return "WRITE " + owned.get(random.nextInt(owned.size())) + " " + payload.substring(0, nextSize());
+                case READ: return "READ " + owned.get(random.nextInt(owned.size()));
+                case DELETE: {
+                    int index = random.nextInt(owned.size());
+                    String name = owned.get(index);
+                    owned.set(index, owned.get(owned.size() - 1));
+                    owned.remove(owned.size() - 1);
+                    return "DELETE " + name;
+                }
+                default: return "LIST";
+            }
+        }
+
+        int nextSize() {
+            long total = sizeRanges.stream().mapToLong(r -> r[2]).sum();
+            long roll = (long) (random.nextDouble() * total);
+            for (long[] range : sizeRanges) {
+                roll -= range[2];
+                if (roll < 0) {
+                    return (int) (range[0] + (long) (random.nextDouble() * (range[1] - range[0] + 1)));
+                }
+            }
+            return (int) sizeRanges.get(sizeRanges.size() - 1)[0];
+        }
+
+        // One reply, including every line of a SUCCESS: ... END block; null at end of stream
+        Reply readReply() throws IOException {
+            String line = reader.readLine();
+            if (line == null) return null;
+            Reply reply = new Reply(line);
+            if (reply.line.equals("SUCCESS:")) {
+                String more;
+                while ((more = reader.readLine()) != null && !new Reply(more).line.equals("END")) {
+                    // Block contents
+                }
+            }
+            return reply;
+        }
+    }
+
+    // A reply line split into its tag (or null) and the rest
+    private static class Reply {
+        final String tag;
+        final String line;
+        final boolean success;
+
+        Reply(String raw) {
+            int space = raw.indexOf(' ');
+            if (raw.startsWith("#") && space > 1) {
+                tag = raw.substring(0, space);
+                line = raw.substring(space + 1);
+            } else {
+                tag = null;
+                line = raw;
+            }
+            success = line.startsWith("SUCCESS");
+        }
+    }
+
+    // Latencies of one command on one connection, in nanoseconds. Written by a single thread.
+    private static class Samples {
+        long[] values = new long[1024];
+        int count;
+        long errors;
+
+        void add(long nanos, boolean success) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+            if (!success) errors++;
+        }
+    }
+
+    // Totals for one command (or all of them) over every connection
+    private static class Result {
+        long count;
+        long errors;
+        double throughput;
+        double mean;
+        long p50, p99, p999, max;
+    }
+
+    private Map<String, Result> collect(List<Worker> workers) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<long[]> all = new ArrayList<>();
+        long allErrors = 0;
+        for (Op op : Op.values()) {
+            List<long[]> parts = new ArrayList<>();
+            long errors = 0;
+            for (Worker worker : workers) {
+                Samples samples = worker.samples[op.ordinal()];
+                parts.add(Arrays.copyOf(samples.values, samples.count));
+                errors += samples.errors;
+            }
+            Result result = summarize(parts, errors);
+            if (result.count > 0) results.put(op.name(), result);
+            all.addAll(parts);
+            allErrors += errors;
+        }
+        results.put("ALL", summarize(all, allErrors));
+        return results;
+    }
+
+    private Result summarize(List<long[]> parts, long errors) {
+        long[] values = new long[parts.stream().mapToInt(p -> p.length).sum()];
+        int at = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, values, at, part.length);
+            at += part.length;
+        }
+        Arrays.sort(values);
+
+        Result result = new Result();
+        result.count = values.length;
+        result.errors = errors;
+        result.throughput = (double) values.length / durationSeconds;
+        if (values.length > 0) {
+            result.mean = Arrays.stream(values).average().orElse(0);
+            result.p50 = percentile(values, 0.50);
+            result.p99 = percentile(values, 0.99);
+            result.p999 = percentile(values, 0.999);
+            result.max = values[values.length - 1];
+        }
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    private void printTable(Map<String, Result> results) {
+        System.out.println(String.format(Locale.ROOT, "%-7s %10s %7s %10s %10s %10s %10s %10s %10s",
+                "command", "count", "errors", "ops/s", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result r = entry.getValue();
+            System.out.println(String.format(Locale.ROOT, "%-7s %10d %7d %10.1f %10s %10s %10s %10s %10s",
+                    entry.getKey(), r.count, r.errors, r.throughput,
+                    micros(r.mean), micros(r.p50), micros(r.p99), micros(r.p999), micros(r.max)));
+        }
+    }
+
+    // One row per command, appended so that several runs collect in one file
+    private void writeCsv(Map<String, Result> results) throws IOException {
+        Path path = Path.of(out);
+        StringBuilder text = new StringBuilder();
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            text.append("time,host,port,mode,connections,rate,duration,mix,sizes,command,count,errors,throughput,mean_us,p50_us,p99_us,p999_us,max_us\n");
+        }
+        String time = Instant.now().toString();
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result r = entry.getValue();
+            text.append(String.join(",", time, host, String.valueOf(port), openLoop ? "open" : "closed",
+                    String.valueOf(connections), openLoop ? String.valueOf(rate) : "", String.valueOf(durationSeconds),
+                    "\"" + mixSpec + "\"", "\"" + sizesSpec + "\"", entry.getKey(), String.valueOf(r.count),
+                    String.valueOf(r.errors), String.format(Locale.ROOT, "%.1f", r.throughput),
+                    micros(r.mean), micros(r.p50), micros(r.p99), micros(r.p999), micros(r.max))).append('\n');
+        }
+        Files.writeString(path, text, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void writeJson(Map<String, Result> results) throws IOException {
+        StringBuilder text = new StringBuilder("{\n");
+        text.append("  \"time\": \"").append(Instant.now()).append("\",\n");
+        text.append("  \"host\": \"").append(host).append("\", \"port\": ").append(port).append(",\n");
+        text.append("  \"mode\": \"").append(openLoop ? "open" : "closed").append("\", \"connections\": ").append(connections);
+        if (openLoop) text.append(", \"rate\": ").append(rate);
+        text.append(", \"warmupSeconds\": ").append(warmupSeconds).append(", \"durationSeconds\": ").append(durationSeconds).append(",\n");
+        text.append("  \"mix\": \"").append(mixSpec).append("\", \"sizes\": \"").append(sizesSpec).append("\",\n");
+        text.append("  \"results\": {\n");
+        int i = 0;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result r = entry.getValue();
+            text.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"errors\": %d, \"throughput\": %.1f, \"meanUs\": %s, \"p50Us\": %s, \"p99Us\": %s, \"p999Us\": %s, \"maxUs\": %s}",
+                    entry.getKey(), r.count, r.errors, r.throughput,
+                    micros(r.mean), micros(r.p50), micros(r.p99), micros(r.p999), micros(r.max)));
+            text.append(++i < results.size() ? ",\n" : "\n");
+        }
+        text.append("  }\n}\n");
+        Files.writeString(Path.of(out), text);
+    }
+}
@@ -1,10 +1,16 @@
 package ca.concordia;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
@@ -15,6 +21,22 @@ public class Main {
         System.out.println("Hello and welcome!");
         Scanner scanner = new Scanner(System.in);
 
+        // "--binary" uses the framed protocol (binary-safe contents, files can be uploaded/downloaded)
+        if (args.length > 0 && args[0].equalsIgnoreCase("--binary")) {
+            runBinary(scanner);
+            return;
+        }
+        // "--load key=value ..." runs the load generator instead of the console
+        if (args.length > 0 && args[0].equalsIgnoreCase("--load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // "--pipeline" sends commands without waiting for each reply
+        if (args.length > 0 && args[0].equalsIgnoreCase("--pipeline")) {
+            runPipelined(scanner);
+            return;
+        }
+
         try{
             Socket clientSocket = new Socket("localhost", 12345);
             System.out.println("Connected to the server at localhost:12345");
@@ -28,9 +50,22 @@ public class Main {
                 while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
                     writer.println(userInput);
                     System.out.println("Message sent to the server: " + userInput);
+                    if (userInput.trim().equalsIgnoreCase("BATCH")) {
+                        // Commands up to END are sent together and answered together
+                        do {
+                            userInput = scanner.nextLine();
+                            writer.println(userInput);
+                        } while (!userInput.trim().equalsIgnoreCase("END"));
+                    }
                     //get response
                     String response = reader.readLine();
                     System.out.println("Response from server: " + response);
+                    if ("SUCCESS:".equals(response)) {
+                        // Multi-line reply (READ, LIST, BATCH) runs until END
+                        while ((response = reader.readLine()) != null && !response.equals("END")) {
+                            System.out.println(response);
+                        }
+                    }
 
                     userInput = scanner.nextLine(); // Read next line
                 }
@@ -49,4 +84,133 @@ public class Main {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // Sends every line of standard input as soon as it is read, tagged "#1", "#2", ... (the lines
+    // inside a BATCH block are not tagged), while a second thread prints the tagged replies as they come
+    private static void runPipelined(Scanner scanner) {
+        try (Socket clientSocket = new Socket("localhost", 12345)) {
+            System.out.println("Connected to the server at localhost:12345 (pipelined)");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), false);
+
+            Thread printer = new Thread(() -> {
+                try {
+                    String response;
+                    while ((response = reader.readLine()) != null) {
+                        System.out.println(response);
+                    }
+                } catch (IOException ignored) {
+                    // Socket closed
+                }
+            });
+            printer.start();
+
+            int tag = 0;
+            boolean inBatch = false;
+            while (scanner.hasNextLine()) {
+                String userInput = scanner.nextLine();
+                if (userInput.isEmpty() || userInput.equalsIgnoreCase("exit") || userInput.equalsIgnoreCase("quit")) break;
+                if (inBatch) {
+                    writer.println(userInput);
+                    inBatch = !userInput.trim().equalsIgnoreCase("END");
+                } else {
+                    writer.println("#" + (++tag) + " " + userInput);
+                    inBatch = userInput.trim().equalsIgnoreCase("BATCH");
+                }
+                if (System.in.available() == 0) {
+                    writer.flush(); // Nothing more typed or piped in yet
+                }
+            }
+            writer.println("#" + (++tag) + " QUIT");
+            writer.flush();
+            printer.join(); // The server closes the connection after QUIT
+            System.out.println("Connection closed.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    // Console loop for the binary protocol:
+    // CREATE name | WRITE name text | APPEND name text | UPLOAD name localFile | READ name [offset length] |
+    // DOWNLOAD name localFile | DELETE name | LIST [dir [count [after]]] | MKDIR dir | RMDIR dir | STATS
+    private static void runBinary(Scanner scanner) {
+        try (BinaryClient client = new BinaryClient("localhost", 12345)) {
+            System.out.println("Connected to the server at localhost:12345 (binary protocol)");
+
+            String userInput = scanner.nextLine();
+            while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
+                String[] parts = userInput.split(" ", 3);
+                String command = parts[0].toUpperCase();
+                String name = (parts.length > 1) ? parts[1] : "";
+                try {
+                    switch (command) {
+                        case "CREATE": client.create(name); System.out.println("SUCCESS: File '" + name + "' created."); break;
+                        case "WRITE": {
+                            byte[] data = ((parts.length > 2) ? parts[2] : "").getBytes(StandardCharsets.UTF_8);
+                            client.write(name, data);
+                            System.out.println("SUCCESS: Wrote " + data.length + " bytes to '" + name + "'.");
+                            break;
+                        }
+                        case "APPEND": {
+                            byte[] data = ((parts.length > 2) ? parts[2] : "").getBytes(StandardCharsets.UTF_8);
+                            long size = client.append(name, data);
+                            System.out.println("SUCCESS: Appended " + data.length + " bytes to '" + name + "' (" + size + " bytes).");
+                            break;
+                        }
+                        case "UPLOAD": {
+                            byte[] data = Files.readAllBytes(Path.of(parts[2]));
+                            client.write(name, data);
+                            System.out.println("SUCCESS: Uploaded " + data.length + " bytes to '" + name + "'.");
+                            break;
+                        }
+                        case "READ": {
+                            byte[] data;
+                            if (parts.length > 2) {
+                                String[] range = parts[2].trim().split(" +");
+                                data = client.read(name, Long.parseLong(range[0]), (range.length > 1) ? Integer.parseInt(range[1]) : Integer.MAX_VALUE);
+                            } else {
+                                data = client.read(name);
+                            }
+                            System.out.println(new String(data, StandardCharsets.UTF_8));
+                            break;
+                        }
+                        case "DOWNLOAD": {
+                            byte[] data = client.read(name);
+                            Files.write(Path.of(parts[2]), data);
+                            System.out.println("SUCCESS: Downloaded " + data.length + " bytes from '" + name + "'.");
+                            break;
+                        }
+                        case "DELETE": client.delete(name); System.out.println("SUCCESS: File '" + name + "' deleted."); break;
+                        case "LIST": {
+                            List<String> names;
+                            if (name.isEmpty()) {
+                                names = client.list();
+                            } else {
+                                String[] range = (parts.length > 2) ? parts[2].trim().split(" +", 2) : new String[0];
+                                names = client.list(name, (range.length > 1) ? range[1] : null, (range.length > 0) ? Integer.parseInt(range[0]) : 1000);
+                            }
+                            for (String n : names) System.out.println(n);
+                            break;
+                        }
+                        case "MKDIR": client.mkdir(name); System.out.println("SUCCESS: Directory '" + name + "' created."); break;
+                        case "RMDIR": client.rmdir(name); System.out.println("SUCCESS: Directory '" + name + "' removed."); break;
+                        case "STATS": System.out.print(client.stats()); break;
+                        default: System.out.println("ERROR: Unknown command.");
+                    }
+                } catch (IOException | ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    System.out.println(e instanceof IOException ? e.getMessage()
+                            : (e instanceof NumberFormatException) ? "ERROR: invalid number." : "ERROR: missing argument.");
+                }
+
+                userInput = scanner.nextLine(); // Read next line
+            }
+            System.out.println("Connection closed.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            scanner.close();
+        }
+    }
+}
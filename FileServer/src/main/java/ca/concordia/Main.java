@@ -13,11 +13,11 @@ import java.util.List;
 public class Main {
 
     public static void main(String[] args) throws Exception {
-        System.out.print("Hello and welcome!");
+        System.out.println("Hello and welcome!");
 
-        // totalSize = metadataSize + (MAXBLOCKS × BLOCKSIZE)
-        // MAXBLOCKS = 10
-        // BLOCKSIZE = 128
+        // totalSize = superblock + metadataSize + (MAXBLOCKS × BLOCKSIZE)
+        // MAXFILES and MAXBLOCKS are derived from totalSize
+        // BLOCKSIZE = 128 unless a block size is given (e.g. 4096 or 65536)
 
         /*
         // Temporary Test for File System Operations
@@ -110,19 +110,28 @@ public class Main {
 
         System.out.println("=== MULTITHREADING TEST COMPLETE ===\n");
         */
-        /*
-        if (args.length != 3){
-            System.out.println("ERROR IN SERVER parameters- <port> <filename> <totalSize> ");
+
+        // Usage: java ca.concordia.Main <port> <filename> <totalSize> [blockSize]
+        // A read-only replica is a second server following the first one's replication port, each
+        // with its own disk file (both can run on localhost):
+        //   primary:  java -Dserver.replicationPort=9090 ca.concordia.Main 12345 primary.dat 1048576
+        //   follower: java -Dserver.follow=localhost:9090 ca.concordia.Main 12346 replica.dat 1048576
+        // The follower answers reads and rejects changes; STATS on the primary shows its lag.
+        if (args.length != 3 && args.length != 4){
+            System.out.println("ERROR IN SERVER parameters- <port> <filename> <totalSize> [blockSize] ");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String filename = args[1]; // filename
-        int totalsize = Integer.parseInt(args[2]);
-
-        // starting server
-        FileServer server = new FileServer(port, filename, totalsize);
+        long totalsize = Long.parseLong(args[2]);
+        int blocksize = (args.length == 4) ? Integer.parseInt(args[3]) : FileSystemManager.DEFAULT_BLOCK_SIZE;
+
+        // starting server (engine chosen with -Dserver.engine=thread|virtual|nio)
+        FileServer server = new FileServer(port, filename, totalsize, blocksize);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { server.stop(); } catch (Exception e) { e.printStackTrace(); }
+        }));
         server.start();
-        */
     }
 }
\ No newline at end of file
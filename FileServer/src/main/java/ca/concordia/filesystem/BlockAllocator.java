@@ -0,0 +1,132 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.Superblock;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Free-space bitmap for the data region. One bit per block (set = in use).
+// Allocation is next-fit: scanning starts at a rotating hint and the first free
+// run long enough for the whole request is taken, so large writes land in one
+// contiguous extent. If no single run is long enough, runs are gathered in scan order.
+public class BlockAllocator {
+
+    private final int capacity;   // Number of blocks managed
+    private final BitSet used;
+    private int freeCount;
+    private int hint = 0;         // Where the next scan starts
+
+    public BlockAllocator(int capacity) {
+        this.capacity = capacity;
+        this.used = new BitSet(capacity);
+        this.freeCount = capacity;
+    }
+
+    // Allocates count blocks and returns them as extents {startBlock, length}, or null if there is not enough space
+    public List<int[]> allocate(int count) {
+        List<int[]> extents = new ArrayList<>();
+        if (count <= 0) {
+            return extents;
+        }
+        if (count > freeCount) {
+            return null;
+        }
+
+        // First pass: look for one run that holds the whole request
+        int pos = hint;
+        boolean wrapped = false;
+        while (true) {
+            int start = used.nextClearBit(pos);
+            if (start >= capacity || (wrapped && start >= hint)) {
+                if (wrapped) break;
+                wrapped = true;
+                pos = 0;
+                continue;
+            }
+            int end = runEnd(start);
+            if (end - start >= count) {
+                take(start, count);
+                extents.add(new int[]{start, count});
+                return extents;
+            }
+            pos = end;
+        }
+
+        // Second pass: no run is long enough, so gather runs starting at the hint
+        int remaining = count;
+        pos = hint;
+        while (remaining > 0) {
+            int start = used.nextClearBit(pos);
+            if (start >= capacity) {
+                pos = 0;
+                continue;
+            }
+            int length = Math.min(runEnd(start) - start, remaining);
+            take(start, length);
+            extents.add(new int[]{start, length});
+            remaining -= length;
+            pos = start + length;
+        }
+        return extents;
+    }
+
+    // Returns a single block to the free pool
+    public void free(int block) {
+        if (used.get(block)) {
+            used.clear(block);
+            freeCount++;
+        }
+    }
+
+    // Marks a block as in use (used when loading an existing bitmap)
+    public void markUsed(int block) {
+        if (!used.get(block)) {
+            used.set(block);
+            freeCount--;
+        }
+    }
+
+    public boolean isUsed(int block) {
+        return used.get(block);
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Serializes the bitmap (little-endian bit order, as BitSet.toByteArray) padded to whole bytes
+    public byte[] toBytes() {
+        byte[] out = new byte[Superblock.bitmapBytes(capacity)];
+        byte[] bits = used.toByteArray();
+        System.arraycopy(bits, 0, out, 0, Math.min(bits.length, out.length));
+        return out;
+    }
+
+    // Restores the bitmap from its on-disk form
+    public void load(byte[] bytes) {
+        used.clear();
+        BitSet loaded = BitSet.valueOf(bytes);
+        if (loaded.length() > capacity) {
+            loaded.clear(capacity, loaded.length());
+        }
+        used.or(loaded);
+        freeCount = capacity - used.cardinality();
+        hint = 0;
+    }
+
+    private int runEnd(int start) {
+        int end = used.nextSetBit(start);
+        return (end < 0 || end > capacity) ? capacity : end;
+    }
+
+    private void take(int start, int length) {
+        used.set(start, start + length);
+        freeCount -= length;
+        hint = (start + length >= capacity) ? 0 : start + length; // Rotate the hint past this allocation
+    }
+}
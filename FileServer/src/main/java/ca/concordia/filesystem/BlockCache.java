@@ -0,0 +1,139 @@
+package ca.concordia.filesystem;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of data blocks keyed by block index, with CLOCK (second chance) eviction.
+// Cached bytes live in one slab (on-heap or direct). Lookups take no lock: each slot carries a
+// sequence stamp that is odd while the slot is being refilled, so a reader that raced with
+// eviction sees the stamp change and reports a miss instead of returning torn data.
+public class BlockCache {
+
+    private final int blockSize;
+    private final int slots;
+    private final ByteBuffer slab;                // slots * blockSize bytes
+    private final AtomicIntegerArray slotBlock;   // Block held by each slot, -1 if empty
+    private final AtomicIntegerArray slotLength;  // Valid bytes in each slot
+    private final AtomicLongArray stamps;         // Per-slot seqlock
+    private final AtomicIntegerArray referenced;  // CLOCK reference bits
+    private final ConcurrentHashMap<Integer, Integer> index = new ConcurrentHashMap<>(); // block -> slot
+
+    private final Object evictLock = new Object(); // Serializes fills, evictions and invalidations
+    private int hand = 0;                          // CLOCK hand (guarded by evictLock)
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long budgetBytes, int blockSize, boolean offHeap) {
+        this.blockSize = blockSize;
+        this.slots = (int) Math.max(1, Math.min(budgetBytes / blockSize, Integer.MAX_VALUE / blockSize));
+        this.slab = offHeap ? ByteBuffer.allocateDirect(slots * blockSize) : ByteBuffer.allocate(slots * blockSize);
+        this.slotBlock = new AtomicIntegerArray(slots);
+        this.slotLength = new AtomicIntegerArray(slots);
+        this.stamps = new AtomicLongArray(slots);
+        this.referenced = new AtomicIntegerArray(slots);
+        for (int i = 0; i < slots; i++) {
+            slotBlock.set(i, -1);
+        }
+    }
+
+    // Copies length bytes of block into dst at offset. Returns false on a miss.
+    public boolean get(int block, byte[] dst, int offset, int length) {
+        return get(block, 0, dst, offset, length);
+    }
+
+    // Copies length bytes of block, starting at byte from of the block, into dst at offset
+    public boolean get(int block, int from, byte[] dst, int offset, int length) {
+        Integer slot = index.get(block);
+        if (slot != null) {
+            long stamp = stamps.get(slot);
+            if ((stamp & 1) == 0 && slotBlock.get(slot) == block && slotLength.get(slot) >= from + length) {
+                slab.get(slot * blockSize + from, dst, offset, length); // Absolute get, safe alongside other readers
+                VarHandle.acquireFence(); // Keep the copy ordered before the validating re-read
+                if (stamps.get(slot) == stamp) {
+                    referenced.set(slot, 1);
+                    hits.increment();
+                    return true;
+                }
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    public boolean contains(int block) {
+        return index.containsKey(block);
+    }
+
+    // Stores the first length bytes of a block (after a miss, or written through by writeFile)
+    public void put(int block, byte[] src, int offset, int length) {
+        synchronized (evictLock) {
+            Integer existing = index.get(block);
+            int slot;
+            if (existing != null) {
+                slot = existing;
+            } else {
+                slot = chooseVictim();
+                int old = slotBlock.get(slot);
+                if (old >= 0) {
+                    index.remove(old);
+                    evictions.increment();
+                }
+            }
+
+            stamps.incrementAndGet(slot); // Odd: concurrent readers of this slot will miss
+            slotBlock.set(slot, block);
+            slotLength.set(slot, length);
+            slab.put(slot * blockSize, src, offset, length);
+            referenced.set(slot, 0);      // New blocks get no second chance until they are read
+            stamps.incrementAndGet(slot); // Even again
+            index.put(block, slot);
+        }
+    }
+
+    // Drops a block whose contents are about to change
+    public void invalidate(int block) {
+        synchronized (evictLock) {
+            Integer slot = index.remove(block);
+            if (slot != null) {
+                stamps.addAndGet(slot, 2); // Readers already copying from this slot will miss
+                slotBlock.set(slot, -1);
+                referenced.set(slot, 0);
+            }
+        }
+    }
+
+    // CLOCK: skip (and clear) referenced slots, take the first unreferenced or empty one
+    private int chooseVictim() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % slots;
+            if (slotBlock.get(slot) < 0 || referenced.get(slot) == 0) {
+                return slot;
+            }
+            referenced.set(slot, 0);
+        }
+    }
+
+    // Counters for sizing the cache
+    public long getHits() {
+        return hits.sum();
+    }
+    public long getMisses() {
+        return misses.sum();
+    }
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    public long getCapacityBytes() {
+        return (long) slots * blockSize;
+    }
+    public int getCachedBlocks() {
+        return index.size();
+    }
+}
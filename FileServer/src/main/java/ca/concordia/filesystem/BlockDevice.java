@@ -0,0 +1,21 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Positional I/O on one region of the disk file. Positions are absolute offsets in the disk file.
+public interface BlockDevice {
+
+    // Fills dst from position onwards
+    void read(ByteBuffer dst, long position) throws IOException;
+
+    // Writes all of src at position
+    void write(ByteBuffer src, long position) throws IOException;
+
+    // Sends length bytes starting at position to target without staging them in the Java heap
+    void transferTo(long position, long length, WritableByteChannel target) throws IOException;
+
+    // Makes every completed write durable
+    void force() throws IOException;
+}
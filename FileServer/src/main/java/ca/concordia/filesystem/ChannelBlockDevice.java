@@ -0,0 +1,52 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Default device: positional FileChannel reads and writes (one system call per request)
+public class ChannelBlockDevice implements BlockDevice {
+
+    private final FileChannel channel;
+
+    public ChannelBlockDevice(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new IOException("ERROR: unexpected end of disk file");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+        // sendfile() when target is a socket
+        while (length > 0) {
+            long n = channel.transferTo(position, length, target);
+            if (n <= 0) {
+                throw new IOException("ERROR: transfer stalled at " + position);
+            }
+            position += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false); // The file length never changes after format, so data-only sync is enough
+    }
+}
@@ -0,0 +1,288 @@
+package ca.concordia.filesystem;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The entries of one directory as a copy-on-write B+tree of pages, each page stored in a short
+// FNode chain of its own. Leaves hold (name, kind, id) sorted by name; internal pages hold, for
+// each child, a name no greater than any under it and where the child page is. A change never
+// touches a written page: the pages on the path from the root to the leaf are built again in
+// memory (split when they outgrow the page size, dropped when they are left empty) and
+// FileSystemManager writes them to new blocks and frees the old ones in the same commit.
+// Lookups and listings only read the pages on their path.
+class DirectoryTree {
+
+    static final int MAX_NAME_BYTES = 255;
+    static final byte FILE = 0;
+    static final byte DIRECTORY = 1;
+
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    // One name in a directory; id names the entry's FEntry (see FileSystemManager.keyOf)
+    static final class Entry {
+        final String name;
+        final byte kind;
+        final long id;
+
+        Entry(String name, byte kind, long id) {
+            this.name = name;
+            this.kind = kind;
+            this.id = id;
+        }
+    }
+
+    // A written page: its first block and its length in bytes
+    static final class PageRef {
+        final int first;
+        final int length;
+
+        PageRef(int first, int length) {
+            this.first = first;
+            this.length = length;
+        }
+    }
+
+    // Reads a written page (pages are never changed once written, so they may be cached)
+    interface PageReader {
+        Page read(PageRef ref) throws Exception;
+    }
+
+    // A decoded page, or one built by the current change. values are Entries in a leaf, and
+    // PageRefs (or Pages not written yet) in an internal page.
+    static final class Page {
+        final boolean leaf;
+        final List<String> keys;
+        final List<Object> values;
+        PageRef ref; // Where it was written (set by FileSystemManager)
+
+        Page(boolean leaf, List<String> keys, List<Object> values) {
+            this.leaf = leaf;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        Page copy() {
+            return new Page(leaf, new ArrayList<>(keys), new ArrayList<>(values));
+        }
+
+        // type (1) | count (4) | per entry: name length (2) | name (UTF-8) | kind (1) + id (8), or first block (4) + length (4)
+        int encodedSize() {
+            int size = 5;
+            for (String key : keys) {
+                size += 2 + key.getBytes(StandardCharsets.UTF_8).length + (leaf ? 9 : 8);
+            }
+            return size;
+        }
+
+        // The pages below this one that are not written yet, children before parents, this one last
+        void collectUnwritten(List<Page> out) {
+            if (ref != null) {
+                return;
+            }
+            if (!leaf) {
+                for (Object child : values) {
+                    if (child instanceof Page) {
+                        ((Page) child).collectUnwritten(out);
+                    }
+                }
+            }
+            out.add(this);
+        }
+
+        // The page's bytes; its new children must have been given a ref, which replaces them
+        byte[] encode() {
+            ByteBuffer buf = ByteBuffer.allocate(encodedSize());
+            buf.put(leaf ? LEAF : INTERNAL).putInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] name = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                buf.putShort((short) name.length).put(name);
+                if (leaf) {
+                    Entry entry = (Entry) values.get(i);
+                    buf.put(entry.kind).putLong(entry.id);
+                } else {
+                    Object child = values.get(i);
+                    PageRef ref = (child instanceof Page) ? ((Page) child).ref : (PageRef) child;
+                    values.set(i, ref);
+                    buf.putInt(ref.first).putInt(ref.length);
+                }
+            }
+            return buf.array();
+        }
+
+        static Page decode(byte[] bytes) throws Exception {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                byte type = buf.get();
+                int count = buf.getInt();
+                if ((type != LEAF && type != INTERNAL) || count < 0 || count > bytes.length) {
+                    throw new Exception("ERROR: corrupted directory page");
+                }
+                List<String> keys = new ArrayList<>(count);
+                List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] name = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(name);
+                    String key = new String(name, StandardCharsets.UTF_8);
+                    keys.add(key);
+                    values.add((type == LEAF) ? new Entry(key, buf.get(), buf.getLong()) : new PageRef(buf.getInt(), buf.getInt()));
+                }
+                return new Page(type == LEAF, keys, values);
+            } catch (BufferUnderflowException e) {
+                throw new Exception("ERROR: corrupted directory page");
+            }
+        }
+
+        // This page, or two halves of about the same size when it is larger than pageBytes
+        List<Page> split(int pageBytes) {
+            int size = encodedSize();
+            if (size <= pageBytes || keys.size() < 2) {
+                return List.of(this);
+            }
+            int half = 0;
+            int bytes = 5;
+            while (half < keys.size() - 1 && bytes < size / 2) {
+                bytes += 2 + keys.get(half).getBytes(StandardCharsets.UTF_8).length + (leaf ? 9 : 8);
+                half++;
+            }
+            half = Math.max(half, 1);
+            Page left = new Page(leaf, new ArrayList<>(keys.subList(0, half)), new ArrayList<>(values.subList(0, half)));
+            Page right = new Page(leaf, new ArrayList<>(keys.subList(half, keys.size())), new ArrayList<>(values.subList(half, values.size())));
+            return List.of(left, right);
+        }
+    }
+
+    private DirectoryTree() {
+    }
+
+    // The entry called name, or null
+    static Entry lookup(PageReader pages, PageRef root, String name) throws Exception {
+        if (root == null) {
+            return null;
+        }
+        Page page = pages.read(root);
+        while (!page.leaf) {
+            page = pages.read((PageRef) page.values.get(childIndex(page, name)));
+        }
+        int i = Collections.binarySearch(page.keys, name);
+        return (i >= 0) ? (Entry) page.values.get(i) : null;
+    }
+
+    // Up to limit entries whose names sort after after (null for the first), in name order
+    static List<Entry> list(PageReader pages, PageRef root, String after, int limit) throws Exception {
+        List<Entry> entries = new ArrayList<>();
+        if (root != null && limit > 0) {
+            collect(pages, pages.read(root), after, limit, entries);
+        }
+        return entries;
+    }
+
+    private static void collect(PageReader pages, Page page, String after, int limit, List<Entry> out) throws Exception {
+        if (page.leaf) {
+            int i = 0;
+            if (after != null) {
+                int found = Collections.binarySearch(page.keys, after);
+                i = (found >= 0) ? found + 1 : -found - 1;
+            }
+            for (; i < page.keys.size() && out.size() < limit; i++) {
+                out.add((Entry) page.values.get(i));
+            }
+            return;
+        }
+        for (int i = (after == null) ? 0 : childIndex(page, after); i < page.values.size() && out.size() < limit; i++) {
+            collect(pages, pages.read((PageRef) page.values.get(i)), after, limit, out);
+        }
+    }
+
+    // The new root after adding entry, whose name is not in the tree yet. The pages it replaces
+    // are added to replaced.
+    static Page insert(PageReader pages, PageRef root, Entry entry, int pageBytes, List<PageRef> replaced) throws Exception {
+        if (root == null) {
+            List<String> keys = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            keys.add(entry.name);
+            values.add(entry);
+            return new Page(true, keys, values);
+        }
+        List<Page> parts = insertInto(pages, root, entry, pageBytes, replaced);
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        // The root split: a new root points at both halves
+        List<String> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (Page part : parts) {
+            keys.add(part.keys.get(0));
+            values.add(part);
+        }
+        return new Page(false, keys, values);
+    }
+
+    private static List<Page> insertInto(PageReader pages, PageRef ref, Entry entry, int pageBytes, List<PageRef> replaced) throws Exception {
+        Page page = pages.read(ref).copy();
+        replaced.add(ref);
+        if (page.leaf) {
+            int i = -Collections.binarySearch(page.keys, entry.name) - 1;
+            page.keys.add(i, entry.name);
+            page.values.add(i, entry);
+        } else {
+            // The child's key follows its first name, which changes when a name sorts before
+            // every key and goes to the first child
+            int i = childIndex(page, entry.name);
+            List<Page> parts = insertInto(pages, (PageRef) page.values.get(i), entry, pageBytes, replaced);
+            page.keys.set(i, parts.get(0).keys.get(0));
+            page.values.set(i, parts.get(0));
+            if (parts.size() > 1) {
+                page.keys.add(i + 1, parts.get(1).keys.get(0));
+                page.values.add(i + 1, parts.get(1));
+            }
+        }
+        return page.split(pageBytes);
+    }
+
+    // The new root after removing the entry called name, which is in the tree: a Page, the
+    // PageRef of an untouched page when the root had one child left, or null when the directory
+    // is now empty. The pages it replaces are added to replaced.
+    static Object remove(PageReader pages, PageRef root, String name, List<PageRef> replaced) throws Exception {
+        Page page = removeFrom(pages, root, name, replaced);
+        if (page != null && !page.leaf && page.values.size() == 1) {
+            return page.values.get(0);
+        }
+        return page;
+    }
+
+    private static Page removeFrom(PageReader pages, PageRef ref, String name, List<PageRef> replaced) throws Exception {
+        Page page = pages.read(ref).copy();
+        replaced.add(ref);
+        if (page.leaf) {
+            int i = Collections.binarySearch(page.keys, name);
+            if (i < 0) {
+                throw new IllegalStateException("Directory entry " + name + " is missing");
+            }
+            page.keys.remove(i);
+            page.values.remove(i);
+        } else {
+            // Pages are not merged: a child is dropped only once it is empty
+            int i = childIndex(page, name);
+            Page child = removeFrom(pages, (PageRef) page.values.get(i), name, replaced);
+            if (child == null) {
+                page.keys.remove(i);
+                page.values.remove(i);
+            } else {
+                page.values.set(i, child);
+            }
+        }
+        return page.keys.isEmpty() ? null : page;
+    }
+
+    // The child whose names include name: the last one whose key is not greater (or the first)
+    private static int childIndex(Page page, String name) {
+        int i = Collections.binarySearch(page.keys, name);
+        return (i >= 0) ? i : Math.max(0, -i - 2);
+    }
+}
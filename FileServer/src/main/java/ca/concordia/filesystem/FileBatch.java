@@ -0,0 +1,58 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Creates, writes and deletes for FileSystemManager.applyBatch, which runs them in order under one
+// lock acquisition and journals them as a single record. Each operation succeeds or fails on its
+// own (a failed one changes nothing); getError says which ones failed.
+public class FileBatch {
+
+    public enum Type { CREATE, WRITE, DELETE }
+
+    private final List<Type> types = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>();
+    private final List<Exception> errors = new ArrayList<>();
+
+    // Adders (return this so operations can be chained)
+    public FileBatch create(String filename) {
+        return add(Type.CREATE, filename, null);
+    }
+    public FileBatch write(String filename, byte[] data) {
+        return add(Type.WRITE, filename, data);
+    }
+    public FileBatch delete(String filename) {
+        return add(Type.DELETE, filename, null);
+    }
+
+    private FileBatch add(Type type, String filename, byte[] data) {
+        types.add(type);
+        names.add(filename);
+        contents.add(data);
+        errors.add(null);
+        return this;
+    }
+
+    // Getters
+    public int size() {
+        return types.size();
+    }
+    public Type getType(int i) {
+        return types.get(i);
+    }
+    public String getFilename(int i) {
+        return names.get(i);
+    }
+    public byte[] getData(int i) {
+        return contents.get(i);
+    }
+    // Why operation i failed, or null if it was applied
+    public Exception getError(int i) {
+        return errors.get(i);
+    }
+
+    void setError(int i, Exception error) {
+        errors.set(i, error);
+    }
+}
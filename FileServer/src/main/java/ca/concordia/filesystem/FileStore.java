@@ -0,0 +1,62 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+// The file operations the server needs, served by one volume (FileSystemManager) or by several
+// with the names spread over them (ShardedFileStore). Failures are Exceptions whose message
+// starts with "ERROR:", ready to be sent to the client.
+public interface FileStore {
+
+    // One volume at filename, or a ShardedFileStore when the config asks for shards or volumes
+    static FileStore open(String filename, long totalSize, int blockSize, FileSystemConfig config) throws Exception {
+        if (config.getVolumes().isEmpty() && config.getShards() == 1) {
+            return new FileSystemManager(filename, totalSize, blockSize, config);
+        }
+        return new ShardedFileStore(filename, totalSize, blockSize, config);
+    }
+
+    void createFile(String filename) throws Exception;
+
+    void deleteFile(String filename) throws Exception;
+
+    void writeFile(String filename, byte[] contents) throws Exception;
+
+    // Writes data at offset (up to the current end of the file) and returns the new size
+    int writeFile(String filename, long offset, byte[] data) throws Exception;
+
+    // Adds data to the end of the file and returns the new size
+    int appendFile(String filename, byte[] data) throws Exception;
+
+    byte[] readFile(String filename) throws Exception;
+
+    // Up to length bytes from offset (fewer at the end of the file, none past it)
+    byte[] readFile(String filename, long offset, int length) throws Exception;
+
+    // Sends the file to out after the bytes header returns for its size; returns the size
+    int transferFile(String filename, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception;
+
+    int transferFile(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception;
+
+    String[] listFiles() throws Exception;
+
+    // Paths start with '/'; a directory's parent must exist and it must be empty to be removed
+    void makeDirectory(String path) throws Exception;
+
+    void removeDirectory(String path) throws Exception;
+
+    // Up to limit names in the directory that sort after after (null for the first), in name
+    // order, with '/' after the names of directories
+    String[] listDirectory(String path, String after, int limit) throws Exception;
+
+    // Applies the batch's operations, recording each failure in the batch
+    void applyBatch(FileBatch batch) throws Exception;
+
+    // Metrics by name, in a stable order
+    Map<String, String> getStats();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,239 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// Tunables for a FileSystemManager. The defaults keep the original behaviour:
+// every mutation is durable before the call returns.
+public class FileSystemConfig {
+
+    // When a metadata change must be on disk
+    public enum Durability {
+        SYNC,   // Wait for the journal fsync; concurrent mutations share one fsync (group commit)
+        BATCH,  // Return at once; fsync when batchCount records are queued or every batchMillis
+        ASYNC   // Return at once; write the journal every batchMillis, fsync only at checkpoints
+    }
+
+    // How whole-file writes are stored (each file records its own encoding, so a volume can mix them)
+    public enum Compression {
+        NONE,     // Raw bytes
+        DEFLATE   // java.util.zip.Deflater, kept only when it saves at least one block
+    }
+
+    private Durability durability = Durability.SYNC;
+    private long batchMillis = 5;
+    private int batchCount = 64;
+    private long checkpointMillis = 1000;                 // Background checkpoint period
+    private long checkpointBytes = 4L * 1024 * 1024;      // Checkpoint early once the journal grows past this
+    private boolean memoryMapped = false;                 // Map the metadata and data regions instead of using FileChannel calls
+    private long cacheBytes = 0;                          // Block cache budget for readFile (0 disables the cache)
+    private boolean cacheOffHeap = false;                 // Keep cached blocks in a direct buffer outside the Java heap
+    private boolean zeroFreedBlocks = true;               // Scrub freed blocks (in the background) before they are reused
+    private boolean logOperations = true;                 // Print a line for every create, write, read and delete
+    private int shards = 1;                               // Volumes the files are spread over (see ShardedFileStore)
+    private List<String> volumes = new ArrayList<>();     // Disk files of the shards, e.g. one per device (overrides shards)
+    private Compression compression = Compression.NONE;   // Encoding tried for whole-file writes
+    private int compressionLevel = 1;                     // Deflater level, 1 (fastest) to 9 (smallest)
+    private boolean dedup = false;                        // Whole-file writes share the blocks of identical contents
+    private int asyncThreads = 4;                         // Threads running the lock and metadata work of the async API
+
+    // Reads -Dfs.durability, -Dfs.batchMillis, -Dfs.batchCount, -Dfs.checkpointMillis, -Dfs.checkpointBytes, -Dfs.mmap,
+    // -Dfs.cacheBytes, -Dfs.cacheOffHeap, -Dfs.zeroFreed, -Dfs.log, -Dfs.shards, -Dfs.volumes (comma-separated paths),
+    // -Dfs.compression, -Dfs.compressionLevel, -Dfs.dedup and -Dfs.asyncThreads
+    public static FileSystemConfig fromSystemProperties() {
+        FileSystemConfig config = new FileSystemConfig();
+        String durability = System.getProperty("fs.durability");
+        if (durability != null) {
+            config.setDurability(Durability.valueOf(durability.trim().toUpperCase()));
+        }
+        config.setBatchMillis(Long.getLong("fs.batchMillis", config.getBatchMillis()));
+        config.setBatchCount(Integer.getInteger("fs.batchCount", config.getBatchCount()));
+        config.setCheckpointMillis(Long.getLong("fs.checkpointMillis", config.getCheckpointMillis()));
+        config.setCheckpointBytes(Long.getLong("fs.checkpointBytes", config.getCheckpointBytes()));
+        config.setMemoryMapped(Boolean.parseBoolean(System.getProperty("fs.mmap", String.valueOf(config.isMemoryMapped()))));
+        config.setCacheBytes(Long.getLong("fs.cacheBytes", config.getCacheBytes()));
+        config.setCacheOffHeap(Boolean.parseBoolean(System.getProperty("fs.cacheOffHeap", String.valueOf(config.isCacheOffHeap()))));
+        config.setZeroFreedBlocks(Boolean.parseBoolean(System.getProperty("fs.zeroFreed", String.valueOf(config.isZeroFreedBlocks()))));
+        config.setLogOperations(Boolean.parseBoolean(System.getProperty("fs.log", String.valueOf(config.isLogOperations()))));
+        config.setShards(Integer.getInteger("fs.shards", config.getShards()));
+        String volumes = System.getProperty("fs.volumes");
+        if (volumes != null && !volumes.isBlank()) {
+            List<String> paths = new ArrayList<>();
+            for (String path : volumes.split(",")) {
+                paths.add(path.trim());
+            }
+            config.setVolumes(paths);
+        }
+        String compression = System.getProperty("fs.compression");
+        if (compression != null) {
+            config.setCompression(Compression.valueOf(compression.trim().toUpperCase()));
+        }
+        config.setCompressionLevel(Integer.getInteger("fs.compressionLevel", config.getCompressionLevel()));
+        config.setDedup(Boolean.parseBoolean(System.getProperty("fs.dedup", String.valueOf(config.isDedup()))));
+        config.setAsyncThreads(Integer.getInteger("fs.asyncThreads", config.getAsyncThreads()));
+        return config;
+    }
+
+    // An independent copy with the same settings
+    public FileSystemConfig copy() {
+        FileSystemConfig copy = new FileSystemConfig();
+        copy.durability = durability;
+        copy.batchMillis = batchMillis;
+        copy.batchCount = batchCount;
+        copy.checkpointMillis = checkpointMillis;
+        copy.checkpointBytes = checkpointBytes;
+        copy.memoryMapped = memoryMapped;
+        copy.cacheBytes = cacheBytes;
+        copy.cacheOffHeap = cacheOffHeap;
+        copy.zeroFreedBlocks = zeroFreedBlocks;
+        copy.logOperations = logOperations;
+        copy.shards = shards;
+        copy.volumes = new ArrayList<>(volumes);
+        copy.compression = compression;
+        copy.compressionLevel = compressionLevel;
+        copy.dedup = dedup;
+        copy.asyncThreads = asyncThreads;
+        return copy;
+    }
+
+    // Getters
+    public Durability getDurability() {
+        return durability;
+    }
+    public long getBatchMillis() {
+        return batchMillis;
+    }
+    public int getBatchCount() {
+        return batchCount;
+    }
+    public long getCheckpointMillis() {
+        return checkpointMillis;
+    }
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+    public boolean isZeroFreedBlocks() {
+        return zeroFreedBlocks;
+    }
+    public boolean isLogOperations() {
+        return logOperations;
+    }
+    public int getShards() {
+        return shards;
+    }
+    public List<String> getVolumes() {
+        return volumes;
+    }
+    public Compression getCompression() {
+        return compression;
+    }
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+    public boolean isDedup() {
+        return dedup;
+    }
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    // Setters (return this so options can be chained)
+    public FileSystemConfig setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+    public FileSystemConfig setBatchMillis(long batchMillis) {
+        if (batchMillis < 1) {
+            throw new IllegalArgumentException("batchMillis must be at least 1.");
+        }
+        this.batchMillis = batchMillis;
+        return this;
+    }
+    public FileSystemConfig setBatchCount(int batchCount) {
+        if (batchCount < 1) {
+            throw new IllegalArgumentException("batchCount must be at least 1.");
+        }
+        this.batchCount = batchCount;
+        return this;
+    }
+    public FileSystemConfig setCheckpointMillis(long checkpointMillis) {
+        if (checkpointMillis < 1) {
+            throw new IllegalArgumentException("checkpointMillis must be at least 1.");
+        }
+        this.checkpointMillis = checkpointMillis;
+        return this;
+    }
+    public FileSystemConfig setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+        return this;
+    }
+    public FileSystemConfig setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+    public FileSystemConfig setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("cacheBytes cannot be negative.");
+        }
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+    public FileSystemConfig setCacheOffHeap(boolean cacheOffHeap) {
+        this.cacheOffHeap = cacheOffHeap;
+        return this;
+    }
+    public FileSystemConfig setZeroFreedBlocks(boolean zeroFreedBlocks) {
+        this.zeroFreedBlocks = zeroFreedBlocks;
+        return this;
+    }
+    public FileSystemConfig setLogOperations(boolean logOperations) {
+        this.logOperations = logOperations;
+        return this;
+    }
+    public FileSystemConfig setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1.");
+        }
+        this.shards = shards;
+        return this;
+    }
+    public FileSystemConfig setVolumes(List<String> volumes) {
+        if (new HashSet<>(volumes).size() != volumes.size()) {
+            throw new IllegalArgumentException("volumes must all be different files.");
+        }
+        this.volumes = new ArrayList<>(volumes);
+        return this;
+    }
+    public FileSystemConfig setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+    public FileSystemConfig setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 1 and 9.");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+    public FileSystemConfig setDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+    public FileSystemConfig setAsyncThreads(int asyncThreads) {
+        if (asyncThreads < 1) {
+            throw new IllegalArgumentException("asyncThreads must be at least 1.");
+        }
+        this.asyncThreads = asyncThreads;
+        return this;
+    }
+}
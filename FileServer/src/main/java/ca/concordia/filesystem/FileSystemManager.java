@@ -2,412 +2,2812 @@ package ca.concordia.filesystem;
 
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.Superblock;
 
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-public class FileSystemManager {
-
-    private int MAXFILES = 5;
-    private int MAXBLOCKS = 10;
-    private static FileSystemManager instance = null;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class FileSystemManager implements FileStore {
+
+    private int MAXFILES;
+    private int MAXBLOCKS;
     private RandomAccessFile disk = null;
     private final FileChannel channel;
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
 
-    private static final int BLOCK_SIZE = 128; // Example block size
+    // Locking: each file name hashes to one of LOCK_STRIPES locks, which serializes the writers of
+    // a file while writers of unrelated files run in parallel. metaLock is held only around the
+    // short sections that touch the tables, the allocator and the directory. Readers take neither
+    // (see FileVersion), except for the metaLock section that resolves a path to its file.
+    private static final int LOCK_STRIPES = 256; // Power of two
+    private final ReentrantLock[] fileLocks = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantLock metaLock = new ReentrantLock();
+
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    private final int BLOCK_SIZE;
+    private final Superblock superblock; // Geometry of the mounted volume
+    private final BlockDevice metaDevice; // I/O for the superblock and tables
+    private final BlockDevice dataDevice; // I/O for the data blocks
+    private final BlockCache cache;       // Recently read or written data blocks (null when disabled)
 
     private FEntry[] inodeTable; // Array of inodes
     private FNode[] fnodes;
+    private final BlockAllocator allocator; // Free-block bitmap
+
+    // In-memory indexes kept in sync with inodeTable (rebuilt at mount)
+    private final Map<String, Integer> nameIndex = new ConcurrentHashMap<>(); // filename -> inodeTable slot (read without metaLock)
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>(); // unused inodeTable slots
+
+    // Lock-free reads: each file's size and blocks are published as an immutable FileVersion at
+    // every commit. Readers pin the current version and read its blocks without any lock; the
+    // version it replaces is retired, and the blocks the commit freed stay allocated until every
+    // version retired up to that commit has been unpinned (see reclaimDurableBlocks).
+    private final Map<String, FileVersion> published = new ConcurrentHashMap<>();
+    private final Set<String> dirtyNames = new LinkedHashSet<>();   // Files changed by the current operation
+    private final List<FileVersion> retired = new ArrayList<>();   // Versions replaced by the last commit
+
+    // Metadata journal: mutations append slot images, a background checkpoint writes the tables
+    private final FileSystemConfig config;
+    private final Journal journal;
+    private final List<Integer> dirtyEntries = new ArrayList<>(); // FEntry slots changed by the current operation
+    private final List<Integer> dirtyNodes = new ArrayList<>();   // FNode slots changed by the current operation
+    private final ArrayDeque<PendingFree> pendingFrees = new ArrayDeque<>(); // Freed blocks waiting for their commit to be durable
+    private final ScheduledExecutorService checkpointer;
+    private final AtomicBoolean checkpointRequested = new AtomicBoolean(false);
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointerStarted = new AtomicBoolean(false);
+
+    // Reclamation: durable frees are zeroed in large sequential batches on a background thread
+    // and only then returned to the allocator (with fs.zeroFreed=false they go back at once)
+    private static final int ZERO_BATCH_BYTES = 256 * 1024;           // Largest single zero write
+    private static final long READER_WAIT_MILLIS = 1000;              // Longest wait for readers when out of space
+    private final List<Integer> reclaimQueue = new ArrayList<>();     // Durable frees waiting to be zeroed
+    private int reclaimInFlight = 0;                                  // Blocks the reclaimer is zeroing right now
+    private final Condition reclaimDone = metaLock.newCondition();
+    private final ExecutorService reclaimer;
+    private final AtomicBoolean reclaimRequested = new AtomicBoolean(false);
+    private final ByteBuffer zeroBuffer;                              // Never written, shared through duplicate()
+
+    // Serialized copy of the metadata region; checkpoints re-encode only the slots changed since the last one
+    private static final int COALESCE_GAP = 4096; // Rewrite up to this many clean bytes to save a write call
+    private ByteBuffer metaImage;
+    private final BitSet unflushedEntries = new BitSet(); // FEntry slots changed since the last checkpoint
+    private final BitSet unflushedNodes = new BitSet();   // FNode slots changed since the last checkpoint
+    private ByteBuffer journalBuffer = ByteBuffer.allocate(256); // Reused to encode journal payloads
+
+    private final long mountTimeMillis;
+
+    // Metrics (see getStats); contended lock acquisitions record how long they waited
+    private final boolean logging;                                           // Print every operation
+    private final LatencyHistogram writeLockWaits = new LatencyHistogram();  // File locks
+    private final LatencyHistogram metaLockWaits = new LatencyHistogram();
+    private final LongAdder readBytes = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+
+    // Direct buffers for gathering scattered blocks in transferFile (returned after each call)
+    private static final int STAGING_BYTES = 64 * 1024;
+    private final ConcurrentLinkedQueue<ByteBuffer> stagingBuffers = new ConcurrentLinkedQueue<>();
+
+    // Compression (fs.compression): codecs are reused across calls, and every attempt is counted
+    // so the ratio and the CPU it costs can be read from STATS
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram encodeTimes = new LatencyHistogram();
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+    private final LongAdder compressInputBytes = new LongAdder();   // Contents offered to the codec
+    private final LongAdder compressOutputBytes = new LongAdder();  // What the kept ones were stored as
+    private final LongAdder compressKept = new LongAdder();
+    private final LongAdder compressRejected = new LongAdder();     // Stored raw, compressing saved no block
+
+    // Dedup: whole-file writes whose stored bytes match another file's point the entry at that
+    // file's chain instead of writing a new one. The entries sharing a chain carry the fingerprint
+    // of its bytes, so both maps are rebuilt from inodeTable at mount. A chain is unlinked when its
+    // last owner lets go of it, and is never changed in place while it has more than one owner.
+    private final Map<Long, Integer> dedupIndex = new HashMap<>();            // fingerprint -> first block (metaLock)
+    private final Map<Integer, Set<String>> chainOwners = new ConcurrentHashMap<>(); // first block -> files using it (changed under metaLock)
+    private final LatencyHistogram hashTimes = new LatencyHistogram();
+    private final LongAdder dedupHits = new LongAdder();        // Writes that shared an existing chain
+    private final LongAdder dedupMismatches = new LongAdder();  // Same fingerprint, different bytes
+
+    // Directory tree: names starting with '/' are paths. Each file and directory in the tree has an
+    // FEntry named by keyOf (its kind and an id that is never reused), which is all the rest of this
+    // class sees of it. A directory's FEntry points at the root page of its DirectoryTree and its
+    // size is its number of entries. The root has id 0; its FEntry is created with the first path.
+    private static final char FILE_KEY = '\u0001';
+    private static final char DIRECTORY_KEY = '\u0002';
+    private static final int PAGE_BYTES = 4096;
+    private static final int MAX_PATH = 4096;
+    private static final int CACHED_PAGES = 4096;
+    private static final DirectoryTree.Entry ROOT = new DirectoryTree.Entry("/", DirectoryTree.DIRECTORY, 0);
+    private long nextTreeId = 1; // metaLock
+    private final Map<Integer, DirectoryTree.Page> pageCache = new LinkedHashMap<>(16, 0.75f, true) { // metaLock
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, DirectoryTree.Page> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final DirectoryTree.PageReader pageReader = this::readPage;
+    private final LongAdder pageReads = new LongAdder(); // Directory pages read from the disk
+
+    // Async API (readFileAsync and the others): the lock and metadata work runs on asyncExecutor
+    // and block I/O goes through ioQueue, whose thread merges nearby requests queued together.
+    // A read waits for its blocks on no thread, so many can be in flight at once.
+    private final ExecutorService asyncExecutor;
+    private final QueuedBlockDevice ioQueue;
+
+    // Contents as they go into the blocks
+    private static class Encoded {
+        final byte[] data;
+        final byte encoding;
+
+        Encoded(byte[] data, byte encoding) {
+            this.data = data;
+            this.encoding = encoding;
+        }
+    }
+
+    // Blocks unlinked by the commit with sequence number seq, and the versions it replaced
+    private static class PendingFree {
+        final long seq;
+        final List<Integer> blocks;
+        final List<FileVersion> retired;
+
+        PendingFree(long seq, List<Integer> blocks, List<FileVersion> retired) {
+            this.seq = seq;
+            this.blocks = blocks;
+            this.retired = retired;
+        }
+
+        boolean isPinned() {
+            for (FileVersion version : retired) {
+                if (version.isPinned()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // A file's size and blocks as of one commit. Never changes once published: writers copy-on-write
+    // the blocks they replace and only append past size in place. state is twice the number of
+    // readers holding the version, plus 1 once a newer version has replaced it; a retired version
+    // cannot be pinned again, so its reader count only goes down.
+    private static class FileVersion {
+        final int size;
+        final byte encoding;
+        final int storedSize;  // Bytes in the blocks (size when raw)
+        final int[] extents;   // {first block, block count} pairs in file order
+        final byte[] inline;   // The contents of an inline file (no extents)
+        private final AtomicInteger state = new AtomicInteger();
+
+        FileVersion(int size, byte encoding, int storedSize, int[] extents, byte[] inline) {
+            this.size = size;
+            this.encoding = encoding;
+            this.storedSize = storedSize;
+            this.extents = extents;
+            this.inline = inline;
+        }
+
+        boolean pin() {
+            int current;
+            do {
+                current = state.get();
+                if ((current & 1) != 0) {
+                    return false;
+                }
+            } while (!state.compareAndSet(current, current + 2));
+            return true;
+        }
+
+        void unpin() {
+            state.addAndGet(-2);
+        }
+
+        void retire() {
+            int current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current | 1));
+        }
+
+        boolean isPinned() {
+            return state.get() >= 2;
+        }
+    }
 
     public FileSystemManager(String filename, int totalSize) throws Exception {
-        // totalSize = metadataSize + (MAXBLOCKS × BLOCKSIZE)
+        this(filename, totalSize, DEFAULT_BLOCK_SIZE);
+    }
+
+    public FileSystemManager(String filename, long totalSize, int blockSize) throws Exception {
+        this(filename, totalSize, blockSize, new FileSystemConfig());
+    }
 
-        // Prevent multiple initializations
-        if (instance != null) {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
+    public FileSystemManager(String filename, long totalSize, int blockSize, FileSystemConfig config) throws Exception {
+        // totalSize = superblock + FEntry table + FNode table + (MAXBLOCKS × BLOCKSIZE)
+
+        long mountStart = System.nanoTime();
+        this.config = config;
+        this.logging = config.isLogOperations();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantLock();
         }
 
         // Initialize the virtual disk file
         File file = new File(filename);
         this.disk = new RandomAccessFile(file, "rw");
+        this.channel = this.disk.getChannel();
 
-        if (this.disk.length() < totalSize) {
-            this.disk.setLength(totalSize);
+        // One manager per disk file, in this process or any other (released when the channel closes)
+        FileLock volumeLock;
+        try {
+            volumeLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            volumeLock = null;
+        }
+        if (volumeLock == null) {
+            disk.close();
+            throw new IllegalStateException("Disk file " + filename + " is already mounted.");
         }
 
-        this.channel = this.disk.getChannel();
+        // Everything from here on releases the lock (by closing the disk file) if the mount fails
+        Superblock existing;
+        QueuedBlockDevice queue = null;
+        Journal opened = null;
+        try {
+            // Mount the existing volume if the disk file has a superblock, otherwise format a new one
+            existing = readSuperblock();
+            if (existing != null) {
+                if (existing.getVersion() != Superblock.VERSION) {
+                    throw new IllegalStateException("Unsupported filesystem version " + existing.getVersion() + " in " + filename);
+                }
+                if (disk.length() < existing.getTotalSize()) {
+                    throw new IllegalStateException("Disk file " + filename + " is shorter than its superblock says");
+                }
+                this.superblock = existing; // Geometry on disk wins over the constructor arguments
+            } else {
+                // Derive the table sizes from the volume size and block size
+                this.superblock = Superblock.forVolume(totalSize, blockSize);
+                if (this.disk.length() < totalSize) {
+                    this.disk.setLength(totalSize);
+                }
+            }
 
-        // Initialize constants
-        this.MAXFILES = 5;     // you can change later if you want
-        this.MAXBLOCKS = 10;   // same here
+            this.BLOCK_SIZE = superblock.getBlockSize();
+            this.MAXFILES = superblock.getMaxFiles();
+            this.MAXBLOCKS = superblock.getMaxBlocks();
+            this.allocator = new BlockAllocator(MAXBLOCKS);
+
+            // Positional FileChannel I/O by default, or separate memory mappings of the metadata and data regions
+            if (config.isMemoryMapped()) {
+                this.metaDevice = new MappedBlockDevice(channel, 0, superblock.getDataOffset());
+                this.dataDevice = new MappedBlockDevice(channel, superblock.getDataOffset(), (long) MAXBLOCKS * BLOCK_SIZE);
+            } else {
+                ChannelBlockDevice device = new ChannelBlockDevice(channel);
+                this.metaDevice = device;
+                this.dataDevice = device;
+            }
+            queue = new QueuedBlockDevice(dataDevice, BLOCK_SIZE, "fs-io");
+            this.ioQueue = queue;
+
+            this.cache = config.getCacheBytes() > 0
+                    ? new BlockCache(config.getCacheBytes(), BLOCK_SIZE, config.isCacheOffHeap()) : null;
+
+            // Initialize metadata tables
+            this.inodeTable = new FEntry[MAXFILES];
+            this.fnodes = new FNode[MAXBLOCKS];
+
+            opened = new Journal(filename, dataDevice, config);
+            this.journal = opened;
+
+            if (existing != null) {
+                boolean checksumOk = loadMetadata();
+                recoverJournal(checksumOk);
+            } else {
+                // Fill with empty structures
+                for (int i = 0; i < MAXFILES; i++) {
+                    inodeTable[i] = new FEntry("", 0, -1);
+                }
+                for (int i = 0; i < MAXBLOCKS; i++) {
+                    fnodes[i] = new FNode(-1);
+                }
 
-        // Initialize metadata tables
-        this.inodeTable = new FEntry[MAXFILES];
-        this.fnodes = new FNode[MAXBLOCKS];
+                // Format: write the superblock and the empty tables, and drop any journal of an older volume
+                writeCheckpoint(encodeMetadata(), 0);
+                opened.reset();
+            }
 
-        // Fill with empty structures
-        for (int i = 0; i < MAXFILES; i++) {
-            inodeTable[i] = new FEntry("", (short) 0, (short) -1);
-        }
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            fnodes[i] = new FNode(-1);
+            rebuildIndex();
+        } catch (Throwable e) {
+            // The mappings of a MappedBlockDevice go with the channel, the other devices hold nothing
+            if (queue != null) queue.close();
+            if (opened != null) {
+                try { opened.close(); } catch (Exception ignored) {}
+            }
+            try { disk.close(); } catch (Exception ignored) {}
+            throw e;
         }
 
-        instance = this; // Set instance
-
-        System.out.println("FileSystemManager initialized successfully.");
+        AtomicInteger asyncThreads = new AtomicInteger();
+        this.asyncExecutor = Executors.newFixedThreadPool(config.getAsyncThreads(), r -> {
+            Thread t = new Thread(r, "fs-async-" + asyncThreads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.zeroBuffer = config.isZeroFreedBlocks() ? ByteBuffer.allocateDirect(ZERO_BATCH_BYTES) : null;
+        this.reclaimer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "fs-reclaim");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Checkpoint in the background on a timer (and early when the journal grows large). The
+        // timer starts with the first commit (see startCheckpointer), not here, where this is not
+        // fully built yet.
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fs-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.mountTimeMillis = (System.nanoTime() - mountStart) / 1_000_000;
+        System.out.println("FileSystemManager " + (existing != null ? "mounted" : "formatted") + " successfully ("
+                + nameIndex.size() + "/" + MAXFILES + " files, " + MAXBLOCKS + " blocks of " + BLOCK_SIZE
+                + " bytes) in " + mountTimeMillis + " ms.");
     }
 
-    // createFile Implementation
-    public void createFile(String filename) throws Exception {
-        rwLock.writeLock().lock();
+    // Checkpoints and releases the disk file so the volume can be mounted again
+    public void close() throws IOException {
+        // Let the async operations already started finish (reads still waiting for their blocks
+        // are waited for with the other readers)
+        asyncExecutor.shutdown();
+        try {
+            asyncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Let a running checkpoint finish (interrupting it would close the channel)
+        checkpointer.shutdown();
         try {
-            // Validate the filename
-            if (filename == null || filename.isEmpty()) {
-                throw new Exception("ERROR: filename is null or empty");
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        reclaimer.shutdown();
+        try {
+            reclaimer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Wait for in-flight operations on every file, and keep new ones out until the last
+        // checkpoint has covered every commit (checkpointLock first, as checkpoint() takes it)
+        synchronized (checkpointLock) {
+            for (ReentrantLock lock : fileLocks) {
+                lock.lock();
             }
-            if (filename.length() > 11) {
-                throw new Exception("ERROR: filename too large");
+            metaLock.lock();
+            try {
+                awaitReaders(true, TimeUnit.MINUTES.toMillis(1));
+                ioQueue.close();
+                if (channel.isOpen()) {
+                    checkpoint();
+
+                    // Zero what the reclaimer did not get to (those blocks are already free in the on-disk bitmap)
+                    zeroBlocks(reclaimQueue);
+                    reclaimQueue.clear();
+
+                    // The journal is only dropped when the checkpoint holds everything in it;
+                    // otherwise the next mount replays it
+                    if (journal.getAppendedSeq() == superblock.getCheckpointSeq()) {
+                        journal.reset();
+                    }
+                    journal.close();
+                    dataDevice.force();
+                    metaDevice.force();
+                    channel.force(true);
+                    disk.close();
+                }
+            } finally {
+                metaLock.unlock();
+                for (ReentrantLock lock : fileLocks) {
+                    lock.unlock();
+                }
             }
+        }
+        deflaters.forEach(Deflater::end);
+        inflaters.forEach(Inflater::end);
+    }
+
+    // Time the constructor spent mounting or formatting the volume
+    public long getMountTimeMillis() {
+        return mountTimeMillis;
+    }
+
+    // Block cache with its hit/miss/eviction counters, or null when fs.cacheBytes is 0
+    public BlockCache getBlockCache() {
+        return cache;
+    }
 
-            // Check if the file already exists
-            for (int i = 0; i < MAXFILES; i++) {
-                FEntry entry = inodeTable[i];
-                if (entry != null && filename.equals(entry.getFilename())) {
-                    throw new Exception("ERROR: file " + filename + " already exists");
+    // Counters, space and latency summaries by name, in a stable order (for STATS and the periodic dump)
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        lock(metaLock, metaLockWaits);
+        try {
+            int reclaiming = reclaimQueue.size() + reclaimInFlight;
+            for (PendingFree pending : pendingFrees) {
+                reclaiming += pending.blocks.size();
+            }
+            stats.put("fs.files", String.valueOf(nameIndex.size()));
+            stats.put("fs.freeFiles", String.valueOf(freeSlots.size()));
+            stats.put("fs.blocks", String.valueOf(MAXBLOCKS));
+            stats.put("fs.freeBlocks", String.valueOf(allocator.getFreeCount()));
+            stats.put("fs.reclaimingBlocks", String.valueOf(reclaiming));
+
+            // Space saved by compression over the files stored now
+            long logicalBytes = 0;
+            long storedBytes = 0;
+            int compressedFiles = 0;
+            int inlineFiles = 0;
+            int directories = 0;
+            for (int slot : nameIndex.values()) {
+                FEntry entry = inodeTable[slot];
+                if (entry.getFilename().charAt(0) == DIRECTORY_KEY) {
+                    directories++;
+                    continue;
+                }
+                logicalBytes += entry.getFilesize();
+                storedBytes += entry.getStoredSize();
+                if (entry.getEncoding() == FEntry.ENCODING_DEFLATE) {
+                    compressedFiles++;
+                } else if (entry.getEncoding() == FEntry.ENCODING_INLINE) {
+                    inlineFiles++;
                 }
             }
-
-            // Find a free FEntry slot
-            int freeIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                FEntry entry = inodeTable[i];
-                if (entry == null || entry.getFilename() == null || entry.getFilename().isEmpty()) {
-                    freeIndex = i;
-                    break;
+            stats.put("fs.compressedFiles", String.valueOf(compressedFiles));
+            stats.put("fs.inlineFiles", String.valueOf(inlineFiles));
+            stats.put("fs.logicalBytes", String.valueOf(logicalBytes));
+            stats.put("fs.storedBytes", String.valueOf(storedBytes));
+            stats.put("fs.compressionRatio", ratio(logicalBytes, storedBytes));
+
+            // Blocks the files sharing chains would take with a copy each
+            int sharedChains = 0;
+            long savedBlocks = 0;
+            for (Set<String> owners : chainOwners.values()) {
+                if (owners.size() > 1) {
+                    FEntry entry = inodeTable[nameIndex.get(owners.iterator().next())];
+                    sharedChains++;
+                    savedBlocks += (owners.size() - 1) * (((long) entry.getStoredSize() + BLOCK_SIZE - 1) / BLOCK_SIZE);
                 }
             }
+            stats.put("dedup.sharedChains", String.valueOf(sharedChains));
+            stats.put("dedup.savedBlocks", String.valueOf(savedBlocks));
+            stats.put("dir.directories", String.valueOf(directories));
+            stats.put("dir.cachedPages", String.valueOf(pageCache.size()));
+        } finally {
+            metaLock.unlock();
+        }
+        stats.put("fs.blockSize", String.valueOf(BLOCK_SIZE));
+        stats.put("fs.bytesRead", String.valueOf(readBytes.sum()));
+        stats.put("fs.bytesWritten", String.valueOf(writtenBytes.sum()));
+        stats.put("fs.writeLockWait", writeLockWaits.summary());
+        stats.put("fs.metaLockWait", metaLockWaits.summary());
+        stats.put("fs.fsync", journal.getFsyncs().summary());
+        stats.put("fs.fsyncRecords", String.valueOf(journal.getSyncedRecords()));
+        stats.put("compress.mode", config.getCompression().name());
+        stats.put("compress.kept", String.valueOf(compressKept.sum()));
+        stats.put("compress.rejected", String.valueOf(compressRejected.sum()));
+        stats.put("compress.inputBytes", String.valueOf(compressInputBytes.sum()));
+        stats.put("compress.outputBytes", String.valueOf(compressOutputBytes.sum()));
+        stats.put("compress.encode", encodeTimes.summary());
+        stats.put("compress.decode", decodeTimes.summary());
+        stats.put("dedup.enabled", String.valueOf(config.isDedup()));
+        stats.put("dedup.hits", String.valueOf(dedupHits.sum()));
+        stats.put("dedup.mismatches", String.valueOf(dedupMismatches.sum()));
+        stats.put("dedup.hash", hashTimes.summary());
+        stats.put("dir.pageReads", String.valueOf(pageReads.sum()));
+        stats.put("io.queuedRequests", String.valueOf(ioQueue.getRequests()));
+        stats.put("io.deviceCalls", String.valueOf(ioQueue.getDeviceCalls()));
+        if (cache != null) {
+            stats.put("cache.hits", String.valueOf(cache.getHits()));
+            stats.put("cache.misses", String.valueOf(cache.getMisses()));
+            stats.put("cache.evictions", String.valueOf(cache.getEvictions()));
+            stats.put("cache.blocks", String.valueOf(cache.getCachedBlocks()));
+        }
+        return stats;
+    }
 
-            if (freeIndex == -1) {
-                throw new Exception("ERROR: no free file entries available");
-            }
+    // logical / stored with two decimals ("1.00" for an empty volume)
+    private static String ratio(long logical, long stored) {
+        return String.format(Locale.ROOT, "%.2f", (stored == 0) ? 1.0 : (double) logical / stored);
+    }
 
-            // Create the new entry (size = 0, firstBlock = -1)
-            FEntry newFile = new FEntry(filename, (short)0, (short)-1);
-            inodeTable[freeIndex] = newFile;
+    // createFile Implementation
+    public void createFile(String filename) throws Exception {
+        // Validate the filename
+        checkFilename(filename);
+        if (isPath(filename)) {
+            addPath(filename, DirectoryTree.FILE);
+            return;
+        }
+        if (filename.length() > 11) {
+            throw new Exception("ERROR: filename too large");
+        }
 
-            // Persist metadata to disk
-            persistMetadata();
+        long seq;
+        ReentrantLock fileLock = fileLock(filename);
+        lock(fileLock, writeLockWaits);
+        lock(metaLock, metaLockWaits);
+        try {
+            createEntry(filename);
 
-            System.out.println("SUCCESS: file created -> " + filename);
+            // Journal the change (made durable after unlocking, so other mutators can share the fsync)
+            seq = commitMetadata();
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlock();
+            fileLock.unlock();
         }
+        awaitDurable(seq);
     }
 
     // deleteFile Implementation
     public void deleteFile(String filename) throws Exception {
-        rwLock.writeLock().lock();
+        // Validate filename
+        checkFilename(filename);
+        if (isPath(filename)) {
+            removePath(filename, DirectoryTree.FILE);
+            return;
+        }
+
+        long seq;
+        ReentrantLock fileLock = fileLock(filename);
+        lock(fileLock, writeLockWaits);
+        lock(metaLock, metaLockWaits);
         try {
-            // Validate filename
-            if (filename == null || filename.isEmpty()) {
-                throw new Exception("ERROR: filename is null or empty");
-            }
+            List<Integer> freed = new ArrayList<>();
+            removeEntry(filename, freed);
 
-            // Locate the file in the FEntry table
-            int fileIndex = -1;
-            FEntry target = null;
-            for (int i = 0; i < MAXFILES; i++) {
-                FEntry entry = inodeTable[i];
-                if (entry != null && filename.equals(entry.getFilename())) {
-                    fileIndex = i;
-                    target = entry;
-                    break;
-                }
-            }
+            // Journal the change
+            seq = commitMetadata();
+            deferFree(seq, freed);
+        } finally {
+            metaLock.unlock();
+            fileLock.unlock();
+        }
+        awaitDurable(seq);
+    }
 
-            if (fileIndex == -1 || target == null) {
-                throw new Exception("ERROR: file " + filename + " does not exist");
-            }
+    // writeFile Implementation
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        writeFile(filename, contents, dataDevice);
+    }
+
+    // writeFile writing the blocks through device
+    private void writeFile(String filename, byte[] contents, BlockDevice device) throws Exception {
+        // Validate filename
+        checkFilename(filename);
+        if (isPath(filename)) {
+            atPath(filename, key -> {
+                writeContents(key, contents, device);
+                return null;
+            });
+        } else {
+            writeContents(filename, contents, device);
+        }
+    }
 
-            // Free all blocks in its FNode chain
-            int fnodeIndex = target.getFirstBlock();
-            while (fnodeIndex != -1 && fnodeIndex < MAXBLOCKS) {
-                FNode node = fnodes[fnodeIndex];
-                if (node == null) break;
+    // Whole-file write of the FEntry called filename, writing its blocks through device
+    private void writeContents(String filename, byte[] contents, BlockDevice device) throws Exception {
+        // Compress and fingerprint (when enabled) before taking any lock
+        Encoded stored = encode(contents);
+        long fingerprint = fingerprint(stored);
 
-                int blockIdx = node.getBlockIndex();
-                if (blockIdx >= 0) {
-                    long dataOffset = calculateDataOffset(blockIdx);
-                    ByteBuffer zeroes = ByteBuffer.allocate(BLOCK_SIZE);
-                    channel.write(zeroes, dataOffset);
+        long seq;
+        ReentrantLock fileLock = fileLock(filename);
+        lock(fileLock, writeLockWaits);
+        try {
+            seq = (fingerprint != 0) ? writeDuplicate(filename, contents.length, stored, fingerprint) : -1;
+            if (seq < 0) {
+                int fileIndex;
+                List<int[]> extents;
+                lock(metaLock, metaLockWaits);
+                try {
+                    // Find the file entry and reserve its blocks before modifying anything
+                    fileIndex = existingEntry(filename);
+                    extents = reserveForContents(stored);
+                } finally {
+                    metaLock.unlock();
                 }
 
-                // Mark node as unused
-                node.setBlockIndex(-1);
-                int next = node.getNext();
-                node.setNext(-1);
-                fnodeIndex = next;
-            }
+                // Write file data to the reserved blocks without the metadata lock
+                writeExtents(stored.data, extents, device);
 
-            // Clear the file entry
-            inodeTable[fileIndex] = new FEntry("", (short) 0, (short) -1);
+                lock(metaLock, metaLockWaits);
+                try {
+                    List<Integer> freed = new ArrayList<>();
+                    linkContents(fileIndex, extents, contents.length, stored, fingerprint, freed);
+
+                    // Journal the new chain, the entry and the old chain in one transaction
+                    seq = commitMetadata();
+                    deferFree(seq, freed);
+                } finally {
+                    metaLock.unlock();
+                }
+            }
 
-            // Persist metadata to disk
-            persistMetadata();
+            if (logging) {
+                System.out.println("SUCCESS: file written -> " + shown(filename) + " (" + contents.length + " bytes)");
+            }
 
-            System.out.println("SUCCESS: file deleted -> " + filename);
         } finally {
-            rwLock.writeLock().unlock();
+            fileLock.unlock();
         }
+        awaitDurable(seq);
     }
 
-    // writeFile Implementation
-    public void writeFile(String filename, byte[] contents) throws Exception {
-        rwLock.writeLock().lock();
+    // Whole-file write of contents that another file (or this one) already stores as stored (file
+    // lock held). The other file's version is pinned while its blocks are compared without the
+    // metadata lock; if they match and it still owns them, this file takes a reference to the chain.
+    // Returns the commit's sequence number, or -1 when the contents have to be written.
+    private long writeDuplicate(String filename, int length, Encoded stored, long fingerprint) throws Exception {
+        int head;
+        String owner;
+        FileVersion candidate;
+        lock(metaLock, metaLockWaits);
         try {
-            // Validate filename
-            if (filename == null || filename.isEmpty()) {
-                throw new Exception("ERROR: filename is null or empty");
+            existingEntry(filename);
+            Integer first = dedupIndex.get(fingerprint);
+            if (first == null) {
+                return -1;
+            }
+            head = first;
+            owner = chainOwners.get(head).iterator().next();
+            candidate = published.get(owner);
+            if (candidate == null || !candidate.pin()) {
+                return -1;
             }
+        } finally {
+            metaLock.unlock();
+        }
 
-            // Find the file entry
-            FEntry target = null;
-            int fileIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                FEntry entry = inodeTable[i];
-                if (entry != null && filename.equals(entry.getFilename())) {
-                    target = entry;
-                    fileIndex = i;
-                    break;
+        try {
+            if (!holds(candidate, stored.data, owner)) {
+                return -1;
+            }
+            lock(metaLock, metaLockWaits);
+            try {
+                // The owner may have changed or dropped the chain while it was compared
+                Set<String> owners = chainOwners.get(head);
+                if (owners == null || !owners.contains(owner) || published.get(owner) != candidate) {
+                    return -1;
                 }
+                List<Integer> freed = new ArrayList<>();
+                shareChain(existingEntry(filename), head, length, stored, fingerprint, freed);
+                long seq = commitMetadata();
+                deferFree(seq, freed);
+                return seq;
+            } finally {
+                metaLock.unlock();
             }
-            if (target == null) {
-                throw new Exception("ERROR: file " + filename + " does not exist");
+        } finally {
+            candidate.unpin();
+        }
+    }
+
+    // Runs the batch's operations in order with the write locks of all their files and the
+    // metadata lock held throughout, then journals every change with one commit (and, in SYNC
+    // mode, one fsync). Operations that fail are recorded in the batch and leave nothing behind.
+    public void applyBatch(FileBatch batch) throws Exception {
+        // Compress and fingerprint the writes' contents before taking any lock
+        Encoded[] stored = new Encoded[batch.size()];
+        long[] fingerprints = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getType(i) == FileBatch.Type.WRITE) {
+                stored[i] = encode(batch.getData(i));
+                fingerprints[i] = fingerprint(stored[i]);
             }
+        }
 
-            // Calculate number of blocks needed
-            int numBlocks = (int) Math.ceil((double) contents.length / BLOCK_SIZE);
-            if (numBlocks > MAXBLOCKS) {
-                throw new Exception("ERROR: file too large");
+        // Lock the stripes in index order, like close(), so concurrent batches cannot deadlock
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String filename = batch.getFilename(i);
+            if (filename != null && !filename.isEmpty()) {
+                stripes.add(stripeOf(filename));
             }
+        }
+        for (int stripe : stripes) {
+            lock(fileLocks[stripe], writeLockWaits);
+        }
 
-            // Find free FNodes before modifying anything
-            java.util.List<Integer> freeNodes = new java.util.ArrayList<>();
-            for (int i = 0; i < MAXBLOCKS && freeNodes.size() < numBlocks; i++) {
-                if (fnodes[i].getBlockIndex() < 0) { // free node
-                    freeNodes.add(i);
+        long seq = -1;
+        lock(metaLock, metaLockWaits);
+        try {
+            List<Integer> freed = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                String filename = batch.getFilename(i);
+                try {
+                    checkFilename(filename);
+                    if (isPath(filename)) {
+                        throw new Exception("ERROR: paths cannot be batched");
+                    }
+                    switch (batch.getType(i)) {
+                        case CREATE:
+                            if (filename.length() > 11) {
+                                throw new Exception("ERROR: filename too large");
+                            }
+                            createEntry(filename);
+                            break;
+                        case WRITE: {
+                            byte[] contents = batch.getData(i);
+                            int fileIndex = existingEntry(filename);
+                            int head = (fingerprints[i] != 0) ? duplicateOf(fingerprints[i], stored[i].data) : -1;
+                            if (head >= 0) {
+                                shareChain(fileIndex, head, contents.length, stored[i], fingerprints[i], freed);
+                            } else {
+                                List<int[]> extents = reserveForContents(stored[i]);
+                                writeExtents(stored[i].data, extents, dataDevice);
+                                linkContents(fileIndex, extents, contents.length, stored[i], fingerprints[i], freed);
+                            }
+                            if (logging) {
+                                System.out.println("SUCCESS: file written -> " + filename + " (" + contents.length + " bytes)");
+                            }
+                            break;
+                        }
+                        case DELETE:
+                            removeEntry(filename, freed);
+                            break;
+                    }
+                } catch (Exception e) {
+                    batch.setError(i, e);
                 }
             }
-            if (freeNodes.size() < numBlocks) {
-                throw new Exception("ERROR: not enough free blocks available");
+
+            if (!dirtyEntries.isEmpty() || !dirtyNodes.isEmpty()) {
+                seq = commitMetadata();
+                deferFree(seq, freed);
+            }
+        } finally {
+            metaLock.unlock();
+            for (int stripe : stripes.descendingSet()) {
+                fileLocks[stripe].unlock();
             }
+        }
+        if (seq >= 0) {
+            awaitDurable(seq);
+        }
+    }
+
+    // readFile Implementation
+    public byte[] readFile(String filename) throws Exception {
+        return readFile(filename, 0, Integer.MAX_VALUE);
+    }
+
+    // Reads up to length bytes starting at offset (fewer at the end of the file, none past it).
+    // Only the blocks holding the range are read.
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        // Validate filename
+        checkFilename(filename);
+        return isPath(filename) ? atPath(filename, key -> readRange(key, offset, length)) : readRange(filename, offset, length);
+    }
 
-            // Write file data to new blocks
-            for (int i = 0; i < freeNodes.size(); i++) {
-                int nodeIndex = freeNodes.get(i);
+    // Ranged read of the FEntry called filename
+    private byte[] readRange(String filename, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("ERROR: invalid range " + offset + "+" + length);
+        }
+
+        // The pinned version's blocks cannot be freed or overwritten until it is unpinned, so
+        // the read takes no lock and never waits for writers
+        FileVersion version = pinVersion(filename);
+        try {
+            int size = version.size;
+            if (offset >= size) {
+                return new byte[0]; // Empty file or range past the end
+            }
 
-                int start = i * BLOCK_SIZE;
-                int end = Math.min(start + BLOCK_SIZE, contents.length);
-                byte[] chunk = java.util.Arrays.copyOfRange(contents, start, end);
+            int count = (int) Math.min(length, size - offset);
+            byte[] data;
+            if (version.encoding == FEntry.ENCODING_RAW) {
+                data = readBlocks(version, offset, count, filename);
+            } else if (version.encoding == FEntry.ENCODING_INLINE) {
+                // Published with the entry, there is no block to read
+                data = Arrays.copyOfRange(version.inline, (int) offset, (int) offset + count);
+            } else {
+                // The whole stream is needed to decode any part of it
+                byte[] contents = decode(readBlocks(version, 0, version.storedSize, filename), version, filename);
+                data = (offset == 0 && count == size) ? contents : Arrays.copyOfRange(contents, (int) offset, (int) offset + count);
+            }
+            if (logging) {
+                System.out.println("SUCCESS: file read -> " + shown(filename) + " (" + count + " bytes)");
+            }
+            return data;
+        } finally {
+            version.unpin();
+        }
+    }
 
-                long dataOffset = calculateDataOffset(nodeIndex);
+    // count stored bytes of the pinned version from offset, copying cached blocks and reading each
+    // run of uncached consecutive blocks with one call
+    private byte[] readBlocks(FileVersion version, long offset, int count, String filename) throws Exception {
+        return readBlocks(version, offset, count, filename, null);
+    }
 
-                ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
-                buf.put(chunk);
-                buf.flip();
-                channel.write(buf, dataOffset);
+    // readBlocks that, given queued, hands each uncached run to ioQueue instead and adds its
+    // future to queued: the bytes are all in place once those futures have completed
+    private byte[] readBlocks(FileVersion version, long offset, int count, String filename, List<CompletableFuture<Void>> queued) throws Exception {
+        byte[] data = new byte[count];
+        int bytesRead = 0;
+        long skip = offset / BLOCK_SIZE;            // Blocks before the one holding offset
+        int inBlock = (int) (offset % BLOCK_SIZE);  // Where the range starts in the current block
+
+        int[] extents = version.extents;
+        for (int e = 0; e < extents.length && bytesRead < count; e += 2) {
+            if (skip >= extents[e + 1]) {
+                skip -= extents[e + 1];
+                continue;
+            }
+            int block = extents[e] + (int) skip;
+            int end = extents[e] + extents[e + 1];
+            skip = 0;
+
+            while (block < end && bytesRead < count) {
+                int firstBytes = Math.min(BLOCK_SIZE - inBlock, count - bytesRead);
+                if (cache != null && cache.get(block, inBlock, data, bytesRead, firstBytes)) {
+                    bytesRead += firstBytes;
+                    inBlock = 0;
+                    block++;
+                    continue;
+                }
 
-                fnodes[nodeIndex].setBlockIndex(nodeIndex);
+                // Extend the run over the following uncached blocks of the extent
+                int runBlocks = 1;
+                while (block + runBlocks < end && bytesRead + (long) runBlocks * BLOCK_SIZE - inBlock < count
+                        && (cache == null || !cache.contains(block + runBlocks))) {
+                    runBlocks++;
+                }
 
-                if (i < freeNodes.size() - 1) {
-                    fnodes[nodeIndex].setNext(freeNodes.get(i + 1));
+                int bytesToRead = (int) Math.min((long) runBlocks * BLOCK_SIZE - inBlock, count - bytesRead);
+                ByteBuffer dst = ByteBuffer.wrap(data, bytesRead, bytesToRead);
+                long position = calculateDataOffset(block) + inBlock;
+                if (queued == null) {
+                    dataDevice.read(dst, position);
+                    cacheRun(block, runBlocks, inBlock, data, bytesRead, bytesToRead);
                 } else {
-                    fnodes[nodeIndex].setNext(-1);
+                    int runStart = block;
+                    int runLength = runBlocks;
+                    int skipped = inBlock;
+                    int at = bytesRead;
+                    int bytes = bytesToRead;
+                    queued.add(ioQueue.submitRead(dst, position).thenRun(() -> cacheRun(runStart, runLength, skipped, data, at, bytes)));
                 }
+
+                bytesRead += bytesToRead;
+                inBlock = 0;
+                block += runBlocks;
+            }
+        }
+        if (bytesRead < count) {
+            throw new Exception("ERROR: corrupted fnode chain for " + filename);
+        }
+
+        readBytes.add(bytesRead);
+        return data;
+    }
+
+    // Writes data at offset, which may be anywhere up to the current end of the file, and returns
+    // the new size. Only the blocks the range touches are written and only the blocks it adds are
+    // allocated. Blocks holding existing bytes are replaced copy-on-write, so like writeFile the
+    // change is all-or-nothing after a crash; bytes past the old end of the file are written in place.
+    // A compressed or inline file, one sharing its blocks with other files, or one small enough to
+    // be inline is read, changed and written again as a whole.
+    public int writeFile(String filename, long offset, byte[] data) throws Exception {
+        // Validate filename
+        checkFilename(filename);
+        return isPath(filename) ? atPath(filename, key -> writeRange(key, offset, data)) : writeRange(filename, offset, data);
+    }
+
+    // Ranged write to the FEntry called filename
+    private int writeRange(String filename, long offset, byte[] data) throws Exception {
+        long seq;
+        int newSize;
+        ReentrantLock fileLock = fileLock(filename);
+        lock(fileLock, writeLockWaits);
+        try {
+            // With the file lock held the published version is this file's latest
+            FileVersion current = published.get(filename);
+            if (current != null && (current.encoding != FEntry.ENCODING_RAW || !ownChain(filename)
+                    || Math.max(current.size, offset + data.length) <= Superblock.INLINE_BYTES)) {
+                return rewriteWhole(filename, current.size, offset, data);
             }
 
-            // Store old block chain (cleanup done later)
-            int oldFirst = target.getFirstBlock();
+            int fileIndex;
+            int size;
+            int firstTouched;
+            int lastTouched;
+            int base;                 // Chain position of chain.get(0)
+            List<Integer> chain;      // Blocks of the file from position base onwards
+            boolean tailInPlace;      // The first touched block only gains bytes past the end of the file
+            List<int[]> extents;
+            lock(metaLock, metaLockWaits);
+            try {
+                // Find the file entry
+                fileIndex = findEntry(filename);
+                if (fileIndex == -1) {
+                    throw new Exception("ERROR: file " + filename + " does not exist");
+                }
+                FEntry target = inodeTable[fileIndex];
+                size = target.getFilesize();
+                if (offset < 0 || offset > size) {
+                    throw new Exception("ERROR: offset " + offset + " is outside " + filename + " (" + size + " bytes)");
+                }
+                if (offset + data.length > Integer.MAX_VALUE) {
+                    throw new Exception("ERROR: file too large");
+                }
+                if (data.length == 0) {
+                    return size;
+                }
+                newSize = (int) Math.max(size, offset + data.length);
 
-            // Update file metadata
-            target.setFilesize((short) contents.length);
-            target.setFirstBlock(freeNodes.get(0).shortValue());
+                int oldCount = (int) ((size + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+                int newCount = (int) ((newSize + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+                if (newCount > MAXBLOCKS) {
+                    throw new Exception("ERROR: file too large");
+                }
+                firstTouched = (int) (offset / BLOCK_SIZE);
+                lastTouched = (int) ((offset + data.length - 1) / BLOCK_SIZE);
+                tailInPlace = offset == size && firstTouched < oldCount;
+
+                base = Math.max(0, firstTouched - 1); // The block before the range gets a new next link
+                chain = new ArrayList<>();
+                int node = seekBlock(target.getFirstBlock(), base, filename);
+                while (node != -1) {
+                    chain.add(node);
+                    node = fnodes[node].getNext();
+                }
 
-            // Persist metadata
-            persistMetadata();
+                // One fresh block per touched block, except a tail written in place
+                int needed = lastTouched - firstTouched + 1 - (tailInPlace ? 1 : 0);
+                extents = (needed > 0) ? reserveBlocks(needed) : new ArrayList<>();
+            } finally {
+                metaLock.unlock();
+            }
 
-            // Free old blocks
-            int oldIndex = oldFirst;
-            while (oldIndex != -1 && oldIndex < MAXBLOCKS) {
-                FNode node = fnodes[oldIndex];
-                if (node == null) break;
+            List<Integer> fresh = new ArrayList<>();
+            for (int[] extent : extents) {
+                for (int b = extent[0]; b < extent[0] + extent[1]; b++) {
+                    fresh.add(b);
+                }
+            }
 
-                // Zero out old block data
-                long offset = calculateDataOffset(oldIndex);
-                ByteBuffer zero = ByteBuffer.allocate(BLOCK_SIZE);
-                channel.write(zero, offset);
+            // Build the fresh blocks' contents (keeping live bytes around the range), then write
+            // them one extent at a time; a tail is written straight into the current last block
+            byte[] buffer = new byte[fresh.size() * BLOCK_SIZE];
+            try {
+                int f = 0;
+                for (int k = firstTouched; k <= lastTouched; k++) {
+                    long blockStart = (long) k * BLOCK_SIZE;
+                    int from = (int) (Math.max(offset, blockStart) - blockStart);
+                    int to = (int) (Math.min(offset + data.length, blockStart + BLOCK_SIZE) - blockStart);
+                    int src = (int) (blockStart + from - offset);
+
+                    if (tailInPlace && k == firstTouched) {
+                        int block = chain.get(k - base);
+                        dataDevice.write(ByteBuffer.wrap(data, src, to - from), calculateDataOffset(block) + from);
+                        if (cache != null) {
+                            cache.invalidate(block);
+                        }
+                        continue;
+                    }
+
+                    int live = (int) Math.max(0, Math.min(BLOCK_SIZE, size - blockStart));
+                    if (live > 0 && (from > 0 || to < live)) {
+                        dataDevice.read(ByteBuffer.wrap(buffer, f * BLOCK_SIZE, live), calculateDataOffset(chain.get(k - base)));
+                    }
+                    System.arraycopy(data, src, buffer, f * BLOCK_SIZE + from, to - from);
+                    f++;
+                }
 
-                int next = node.getNext();
-                node.setBlockIndex(-1);
-                node.setNext(-1);
-                oldIndex = next;
+                f = 0;
+                for (int[] extent : extents) {
+                    dataDevice.write(ByteBuffer.wrap(buffer, f * BLOCK_SIZE, extent[1] * BLOCK_SIZE), calculateDataOffset(extent[0]));
+                    f += extent[1];
+                }
+            } catch (IOException e) {
+                // Give the reserved blocks back before failing
+                lock(metaLock, metaLockWaits);
+                try {
+                    for (int b : fresh) {
+                        allocator.free(b);
+                    }
+                } finally {
+                    metaLock.unlock();
+                }
+                throw e;
             }
 
-            System.out.println("SUCCESS: file written -> " + filename + " (" + contents.length + " bytes)");
+            lock(metaLock, metaLockWaits);
+            try {
+                FEntry target = inodeTable[fileIndex];
+
+                // Swap the fresh blocks into the chain and release the ones they replace
+                List<Integer> freed = new ArrayList<>();
+                int f = 0;
+                for (int k = firstTouched; k <= lastTouched; k++) {
+                    if (tailInPlace && k == firstTouched) continue;
+                    int block = fresh.get(f);
+                    if (cache != null) {
+                        long blockStart = (long) k * BLOCK_SIZE;
+                        cache.put(block, buffer, f * BLOCK_SIZE, (int) Math.min(BLOCK_SIZE, newSize - blockStart));
+                    }
+                    f++;
+                    if (k - base < chain.size()) {
+                        int old = chain.set(k - base, block);
+                        fnodes[old].setBlockIndex(-1);
+                        fnodes[old].setNext(-1);
+                        dirtyNodes.add(old);
+                        if (cache != null) {
+                            cache.invalidate(old);
+                        }
+                        freed.add(old);
+                    } else {
+                        chain.add(block);
+                    }
+                }
+
+                // Relink from the block before the range to the last touched block
+                for (int i = 0; i <= lastTouched - base && i < chain.size(); i++) {
+                    int block = chain.get(i);
+                    fnodes[block].setBlockIndex(block);
+                    fnodes[block].setNext(i + 1 < chain.size() ? chain.get(i + 1) : -1);
+                    dirtyNodes.add(block);
+                }
+                if (base == 0) {
+                    target.setFirstBlock(chain.get(0));
+                }
+                target.setRaw(newSize);
+                dirtyEntries.add(fileIndex);
+                dirtyNames.add(filename);
+
+                // Journal the relinked blocks, the entry and the replaced blocks in one transaction
+                seq = commitMetadata();
+                deferFree(seq, freed);
+            } finally {
+                metaLock.unlock();
+            }
 
+            writtenBytes.add(data.length);
+            if (logging) {
+                System.out.println("SUCCESS: file written -> " + shown(filename) + " (" + data.length + " bytes at " + offset + ")");
+            }
         } finally {
-            rwLock.writeLock().unlock();
+            fileLock.unlock();
         }
+        awaitDurable(seq);
+        return newSize;
     }
 
-    // readFile Implementation
-    public byte[] readFile(String filename) throws Exception {
-        rwLock.readLock().lock();
-        try {
-            // Validate filename
-            if (filename == null || filename.isEmpty()) {
-                throw new Exception("ERROR: filename is null or empty");
+    // Fills the cache with the blocks of a run just read, each from its first byte: bytes bytes
+    // at start in data, beginning inBlock bytes into block
+    private void cacheRun(int block, int runBlocks, int inBlock, byte[] data, int start, int bytes) {
+        if (cache != null) {
+            for (int i = (inBlock > 0) ? 1 : 0; i < runBlocks; i++) {
+                int blockOffset = start - inBlock + i * BLOCK_SIZE;
+                cache.put(block + i, data, blockOffset, Math.min(BLOCK_SIZE, start + bytes - blockOffset));
             }
+        }
+    }
 
-            // Find the file entry
-            FEntry target = null;
-            for (FEntry entry : inodeTable) {
-                if (entry != null && filename.equals(entry.getFilename())) {
-                    target = entry;
-                    break;
-                }
-            }
+    // Ranged write to an encoded, inline, shared or small file of size bytes (file lock held): the
+    // new contents go through writeFile, which encodes them again, keeps them inline or stores them
+    // raw in blocks of their own
+    private int rewriteWhole(String filename, int size, long offset, byte[] data) throws Exception {
+        if (offset < 0 || offset > size) {
+            throw new Exception("ERROR: offset " + offset + " is outside " + filename + " (" + size + " bytes)");
+        }
+        if (offset + data.length > Integer.MAX_VALUE) {
+            throw new Exception("ERROR: file too large");
+        }
+        if (data.length == 0) {
+            return size;
+        }
+        byte[] contents = Arrays.copyOf(readRange(filename, 0, Integer.MAX_VALUE), (int) Math.max(size, offset + data.length));
+        System.arraycopy(data, 0, contents, (int) offset, data.length);
+        writeContents(filename, contents, dataDevice);
+        return contents.length;
+    }
 
-            if (target == null) {
+    // Adds data to the end of the file and returns the new size
+    public int appendFile(String filename, byte[] data) throws Exception {
+        // Validate filename
+        checkFilename(filename);
+        return isPath(filename) ? atPath(filename, key -> appendData(key, data)) : appendData(filename, data);
+    }
+
+    private int appendData(String filename, byte[] data) throws Exception {
+        // The file lock is reentrant, so the size cannot change before the write takes it again
+        ReentrantLock fileLock = fileLock(filename);
+        lock(fileLock, writeLockWaits);
+        try {
+            int fileIndex = findEntry(filename);
+            if (fileIndex == -1) {
                 throw new Exception("ERROR: file " + filename + " does not exist");
             }
+            return writeRange(filename, inodeTable[fileIndex].getFilesize(), data);
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
-            short firstBlock = target.getFirstBlock();
-            if (firstBlock < 0) {
-                return new byte[0]; // Empty file
-            }
+    // Streams a file to out without copying it through the Java heap. header is called with the
+    // size of the pinned version and returns the bytes to send first, e.g. a response header.
+    // Runs of at least STAGING_BYTES go out with transferTo (sendfile); shorter, scattered runs are
+    // gathered into a direct buffer so the socket sees a few large writes. Returns the file size.
+    public int transferFile(String filename, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return transferFile(filename, 0, Integer.MAX_VALUE, out, header);
+    }
 
-            short size = target.getFilesize();
-            byte[] data = new byte[size];
-            int bytesRead = 0;
+    // Ranged transferFile: sends up to length bytes from offset, like readFile(filename, offset, length).
+    // header is called with the number of bytes that will follow. Returns that number.
+    public int transferFile(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        // Validate filename
+        checkFilename(filename);
+        return isPath(filename)
+                ? atPath(filename, key -> transferRange(key, offset, length, out, header))
+                : transferRange(filename, offset, length, out, header);
+    }
 
-            // Go over FNode chain
-            int currentNodeIndex = firstBlock;
+    private int transferRange(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("ERROR: invalid range " + offset + "+" + length);
+        }
 
-            while (currentNodeIndex != -1 && bytesRead < size) {
-                FNode node = fnodes[currentNodeIndex];
-                if (node == null || node.getBlockIndex() < 0) {
-                    throw new Exception("ERROR: corrupted fnode chain for " + filename);
+        FileVersion version = pinVersion(filename);
+        ByteBuffer staging = null;
+        try {
+            int size = (offset >= version.size) ? 0 : (int) Math.min(length, version.size - offset);
+            if (version.encoding != FEntry.ENCODING_RAW && size > 0) {
+                // Inline or decoded on the heap, there are no raw bytes on disk to transfer
+                byte[] contents = (version.encoding == FEntry.ENCODING_INLINE)
+                        ? version.inline
+                        : decode(readBlocks(version, 0, version.storedSize, filename), version, filename);
+                writeFully(out, header.apply(size));
+                writeFully(out, ByteBuffer.wrap(contents, (int) offset, size));
+                if (logging) {
+                    System.out.println("SUCCESS: file sent -> " + shown(filename) + " (" + size + " bytes)");
                 }
+                return size;
+            }
 
-                long blockPos = calculateDataOffset(node.getBlockIndex());
+            // The header is staged too, so a small file goes out in one write with it
+            staging = stagingBuffers.poll();
+            if (staging == null) {
+                staging = ByteBuffer.allocateDirect(STAGING_BYTES);
+            }
+            ByteBuffer head = header.apply(size);
+            if (head.remaining() <= staging.remaining()) {
+                staging.put(head);
+            } else {
+                writeFully(out, head);
+            }
 
-                int bytesToRead = Math.min(BLOCK_SIZE, size - bytesRead);
-                ByteBuffer buf = ByteBuffer.allocate(bytesToRead);
-                channel.read(buf, blockPos);
-                buf.flip();
-                buf.get(data, bytesRead, bytesToRead);
+            int bytesSent = 0;
+            long skip = offset / BLOCK_SIZE;            // Blocks before the one holding offset
+            int inBlock = (int) (offset % BLOCK_SIZE);  // Where the range starts in the current block
+            int[] extents = version.extents;
+            for (int e = 0; e < extents.length && bytesSent < size; e += 2) {
+                if (skip >= extents[e + 1]) {
+                    skip -= extents[e + 1];
+                    continue;
+                }
 
-                bytesRead += bytesToRead;
-                currentNodeIndex = node.getNext();
+                // The rest of the extent is one run of consecutive blocks on disk
+                int bytes = (int) Math.min((extents[e + 1] - skip) * BLOCK_SIZE - inBlock, size - bytesSent);
+                long position = calculateDataOffset(extents[e] + (int) skip) + inBlock;
+                skip = 0;
+
+                if (bytes >= STAGING_BYTES) {
+                    if (staging.position() > 0) {
+                        writeFully(out, staging.flip());
+                        staging.clear();
+                    }
+                    dataDevice.transferTo(position, bytes, out);
+                } else {
+                    if (staging.remaining() < bytes) {
+                        writeFully(out, staging.flip());
+                        staging.clear();
+                    }
+                    ByteBuffer slice = staging.slice(staging.position(), bytes);
+                    dataDevice.read(slice, position);
+                    staging.position(staging.position() + bytes);
+                }
+
+                bytesSent += bytes;
+                inBlock = 0;
+            }
+            if (bytesSent < size) {
+                throw new IOException("ERROR: corrupted fnode chain for " + filename);
+            }
+            if (staging.position() > 0) {
+                writeFully(out, staging.flip());
             }
 
-            System.out.println("SUCCESS: file read -> " + filename + " (" + bytesRead + " bytes)");
-            return data;
+            readBytes.add(bytesSent);
+            if (logging) {
+                System.out.println("SUCCESS: file sent -> " + shown(filename) + " (" + bytesSent + " bytes)");
+            }
+            return size;
         } finally {
-            rwLock.readLock().unlock();
+            version.unpin();
+            if (staging != null) {
+                staging.clear();
+                stagingBuffers.offer(staging);
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel target, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            target.write(src);
         }
     }
 
     // listFiles Implementation
     public String[] listFiles() {
-        rwLock.readLock().lock();
+        lock(metaLock, metaLockWaits);
         try {
             java.util.List<String> names = new java.util.ArrayList<>(); // Create a temporary list to store filenames
 
             // Iterate over all file entries in the inode table
             for (FEntry entry : inodeTable) {
                 // Check if this entry is valid
-                if (entry != null && entry.getFilename() != null && !entry.getFilename().isEmpty()) {
-                    names.add(entry.getFilename()); // Add filename to the list
+                if (entry != null && entry.getFilename() != null && !entry.getFilename().isEmpty() && !isTreeKey(entry.getFilename())) {
+                    names.add(entry.getFilename()); // Add filename to the list (files in directories are listed with listDirectory)
                 }
             }
 
             return names.toArray(new String[0]); // Convert the list to a String array and return it
         } finally {
-            rwLock.readLock().unlock();
+            metaLock.unlock();
         }
     }
 
-    // Saves all filesystem metadata to the start of the disk file. (FEntries + FNodes)
-    private void persistMetadata() throws IOException {
-        rwLock.writeLock().lock();
+    // makeDirectory Implementation: adds an empty directory at path, whose parent must exist
+    public void makeDirectory(String path) throws Exception {
+        checkPath(path);
+        addPath(path, DirectoryTree.DIRECTORY);
+    }
+
+    // removeDirectory Implementation: the directory must be empty
+    public void removeDirectory(String path) throws Exception {
+        checkPath(path);
+        removePath(path, DirectoryTree.DIRECTORY);
+    }
+
+    // Up to limit names in the directory at path that sort after after (null for the first), in
+    // name order, with '/' after the names of directories. Only the pages holding them are read.
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        checkPath(path);
+        if (limit < 0) {
+            throw new Exception("ERROR: invalid count");
+        }
+        if (after != null && after.endsWith("/")) {
+            after = after.substring(0, after.length() - 1);
+        }
+        List<String> names = components(path);
+        lock(metaLock, metaLockWaits);
         try {
-            long offset = 0;  // <-- NEW: track absolute write position ourselves
+            DirectoryTree.Entry dir = existingPath(path, names, DirectoryTree.DIRECTORY);
+            List<DirectoryTree.Entry> entries = DirectoryTree.list(pageReader, rootOf(dir), after, limit);
+            String[] listed = new String[entries.size()];
+            for (int i = 0; i < listed.length; i++) {
+                DirectoryTree.Entry entry = entries.get(i);
+                listed[i] = (entry.kind == DirectoryTree.DIRECTORY) ? entry.name + "/" : entry.name;
+            }
+            return listed;
+        } finally {
+            metaLock.unlock();
+        }
+    }
 
-            // Write all FEntries
-            for (int i = 0; i < MAXFILES; i++) {
-                FEntry entry = inodeTable[i];
-                byte[] nameBytes = new byte[11]; // fixed-size filename field
+    // Async API: each call returns at once with a future that completes with what the blocking call
+    // of the same name returns, or fails with the Exception it throws. A read holds no thread while
+    // its blocks are read; the other calls hold one of the fs.asyncThreads threads until they are
+    // done, and their block writes share device calls with the others queued at the same time.
+    // The futures complete on the fs-async threads, so work chained to them should not block.
+
+    public CompletableFuture<Void> createFileAsync(String filename) {
+        return submitAsync(() -> {
+            createFile(filename);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
 
-                if (entry != null && entry.getFilename() != null) {
-                    byte[] src = entry.getFilename().getBytes("UTF-8");
-                    int copyLen = Math.min(src.length, 11);
-                    System.arraycopy(src, 0, nameBytes, 0, copyLen);
-                }
+    public CompletableFuture<Void> deleteFileAsync(String filename) {
+        return submitAsync(() -> {
+            deleteFile(filename);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
 
-                // Filename (11 bytes)
-                channel.write(ByteBuffer.wrap(nameBytes), offset);
-                offset += 11;    // <-- NEW instead of seek()
+    public CompletableFuture<Void> writeFileAsync(String filename, byte[] contents) {
+        return submitAsync(() -> {
+            writeFile(filename, contents, ioQueue);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
 
-                // File size (2 bytes)
-                short size = (entry != null) ? entry.getFilesize() : 0;
-                ByteBuffer sizeBuf = ByteBuffer.allocate(2);
-                sizeBuf.putShort(size);
-                sizeBuf.flip();
-                channel.write(sizeBuf, offset);
-                offset += 2;     // <-- NEW instead of seek()
+    public CompletableFuture<byte[]> readFileAsync(String filename) {
+        return readFileAsync(filename, 0, Integer.MAX_VALUE);
+    }
 
-                // First block (2 bytes)
-                short firstBlock = (entry != null) ? entry.getFirstBlock() : -1;
-                ByteBuffer fbBuf = ByteBuffer.allocate(2);
-                fbBuf.putShort(firstBlock);
-                fbBuf.flip();
-                channel.write(fbBuf, offset);
-                offset += 2;     // <-- NEW instead of seek()
-            }
+    public CompletableFuture<byte[]> readFileAsync(String filename, long offset, int length) {
+        return submitAsync(() -> {
+            checkFilename(filename);
+            return isPath(filename) ? atPath(filename, key -> readRangeAsync(key, offset, length)) : readRangeAsync(filename, offset, length);
+        });
+    }
 
-            // Write all FNodes
-            for (int i = 0; i < MAXBLOCKS; i++) {
-                FNode node = fnodes[i];
-                short blockIndex = (short) ((node != null) ? node.getBlockIndex() : -1);
-                short next = (short) ((node != null) ? node.getNext() : -1);
+    public CompletableFuture<String[]> listFilesAsync() {
+        return submitAsync(() -> CompletableFuture.completedFuture(listFiles()));
+    }
+
+    public CompletableFuture<String[]> listDirectoryAsync(String path, String after, int limit) {
+        return submitAsync(() -> CompletableFuture.completedFuture(listDirectory(path, after, limit)));
+    }
 
-                ByteBuffer buf = ByteBuffer.allocate(4);
-                buf.putShort(blockIndex);
-                buf.putShort(next);
-                buf.flip();
+    // readRange for readFileAsync: pins the version and queues the reads of its uncached blocks.
+    // The future completes, and the version is unpinned, once they have all been read.
+    private CompletableFuture<byte[]> readRangeAsync(String filename, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("ERROR: invalid range " + offset + "+" + length);
+        }
 
-                channel.write(buf, offset);
-                offset += 4;     // <-- NEW instead of seek()
+        FileVersion version = pinVersion(filename);
+        CompletableFuture<byte[]> read;
+        try {
+            int size = version.size;
+            int count = (offset >= size) ? 0 : (int) Math.min(length, size - offset);
+            List<CompletableFuture<Void>> queued = new ArrayList<>();
+            if (count == 0) {
+                read = CompletableFuture.completedFuture(new byte[0]); // Empty file or range past the end
+            } else if (version.encoding == FEntry.ENCODING_RAW) {
+                byte[] data = readBlocks(version, offset, count, filename, queued);
+                read = CompletableFuture.allOf(queued.toArray(new CompletableFuture<?>[0])).thenApply(done -> data);
+            } else if (version.encoding == FEntry.ENCODING_INLINE) {
+                read = CompletableFuture.completedFuture(Arrays.copyOfRange(version.inline, (int) offset, (int) offset + count));
+            } else {
+                // Decoded on an fs-async thread rather than the I/O thread
+                byte[] stored = readBlocks(version, 0, version.storedSize, filename, queued);
+                read = CompletableFuture.allOf(queued.toArray(new CompletableFuture<?>[0])).thenApplyAsync(done -> {
+                    try {
+                        byte[] contents = decode(stored, version, filename);
+                        return (offset == 0 && count == size) ? contents : Arrays.copyOfRange(contents, (int) offset, (int) offset + count);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, this::runAsync);
+            }
+        } catch (Exception e) {
+            version.unpin();
+            throw e;
+        }
+        return read.whenComplete((data, error) -> {
+            version.unpin();
+            if (error == null && logging) {
+                System.out.println("SUCCESS: file read -> " + shown(filename) + " (" + data.length + " bytes)");
             }
+        });
+    }
 
-            channel.force(true);
-        } finally {
-            rwLock.writeLock().unlock();
+    // Runs op on an fs-async thread. The returned future completes like the one op returns, or
+    // fails with what op throws; on an fs-async thread, so callers' stages never run on fs-io.
+    private <T> CompletableFuture<T> submitAsync(AsyncOperation<T> op) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            asyncExecutor.execute(() -> {
+                try {
+                    CompletableFuture<T> started = op.start();
+                    Executor finisher = started.isDone() ? Runnable::run : this::runAsync;
+                    started.whenCompleteAsync((value, error) -> {
+                        if (error == null) {
+                            result.complete(value);
+                        } else {
+                            result.completeExceptionally((error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error);
+                        }
+                    }, finisher);
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new Exception("ERROR: the file system is closed"));
+        }
+        return result;
+    }
+
+    // Runs task on an fs-async thread, or on this one once close() has stopped taking new tasks
+    private void runAsync(Runnable task) {
+        try {
+            asyncExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private interface AsyncOperation<T> {
+        CompletableFuture<T> start() throws Exception;
+    }
+
+    // Adds an empty file or directory at path (createFile and makeDirectory). The parent's new
+    // pages are written before anything else changes, so a full disk leaves the tree as it was.
+    private void addPath(String path, byte kind) throws Exception {
+        List<String> names = components(path);
+        if (names.isEmpty()) {
+            throw new Exception("ERROR: " + path + " already exists");
+        }
+        String name = names.get(names.size() - 1);
+
+        long seq;
+        lock(metaLock, metaLockWaits);
+        try {
+            boolean rootMissing = !nameIndex.containsKey(keyOf(ROOT));
+            if (freeSlots.size() < (rootMissing ? 2 : 1)) {
+                throw new Exception("ERROR: no free file entries available");
+            }
+            DirectoryTree.Entry parent = resolve(path, names, names.size() - 1);
+            String parentPath = prefix(names, names.size() - 1);
+            if (parent == null) {
+                throw new Exception("ERROR: directory " + parentPath + " does not exist");
+            }
+            if (parent.kind != DirectoryTree.DIRECTORY) {
+                throw new Exception("ERROR: " + parentPath + " is not a directory");
+            }
+            DirectoryTree.PageRef oldRoot = rootOf(parent);
+            if (DirectoryTree.lookup(pageReader, oldRoot, name) != null) {
+                throw new Exception("ERROR: " + path + " already exists");
+            }
+
+            DirectoryTree.Entry entry = new DirectoryTree.Entry(name, kind, nextTreeId);
+            List<DirectoryTree.PageRef> replaced = new ArrayList<>();
+            DirectoryTree.PageRef newRoot = writeTree(DirectoryTree.insert(pageReader, oldRoot, entry, PAGE_BYTES, replaced));
+            if (rootMissing) {
+                createEntry(keyOf(ROOT));
+            }
+            List<Integer> freed = new ArrayList<>();
+            pointDirectory(parent, newRoot, replaced, 1, freed);
+            createEntry(keyOf(entry));
+            nextTreeId++;
+
+            // Journal the change
+            seq = commitMetadata();
+            deferFree(seq, freed);
+            if (logging) {
+                System.out.println("SUCCESS: " + ((kind == DirectoryTree.DIRECTORY) ? "directory" : "file") + " created -> " + path);
+            }
+        } finally {
+            metaLock.unlock();
+        }
+        awaitDurable(seq);
+    }
+
+    // Removes the file or empty directory at path (deleteFile and removeDirectory)
+    private void removePath(String path, byte kind) throws Exception {
+        List<String> names = components(path);
+        if (names.isEmpty()) {
+            throw new Exception("ERROR: the root directory cannot be removed");
+        }
+        String name = names.get(names.size() - 1);
+
+        while (true) {
+            // Find the entry, then take its file lock (so no write to it is in progress) and look again
+            DirectoryTree.Entry target;
+            lock(metaLock, metaLockWaits);
+            try {
+                target = existingPath(path, names, kind);
+            } finally {
+                metaLock.unlock();
+            }
+            String key = keyOf(target);
+
+            long seq;
+            ReentrantLock fileLock = fileLock(key);
+            lock(fileLock, writeLockWaits);
+            lock(metaLock, metaLockWaits);
+            try {
+                DirectoryTree.Entry parent = resolve(path, names, names.size() - 1);
+                DirectoryTree.PageRef oldRoot = (parent != null && parent.kind == DirectoryTree.DIRECTORY) ? rootOf(parent) : null;
+                DirectoryTree.Entry entry = DirectoryTree.lookup(pageReader, oldRoot, name);
+                if (entry == null || entry.id != target.id || entry.kind != target.kind) {
+                    continue; // Replaced in between
+                }
+                if (kind == DirectoryTree.DIRECTORY && inodeTable[existingEntry(key)].getFilesize() > 0) {
+                    throw new Exception("ERROR: directory " + path + " is not empty");
+                }
+
+                List<DirectoryTree.PageRef> replaced = new ArrayList<>();
+                DirectoryTree.PageRef newRoot = writeTree(DirectoryTree.remove(pageReader, oldRoot, name, replaced));
+                List<Integer> freed = new ArrayList<>();
+                pointDirectory(parent, newRoot, replaced, -1, freed);
+                removeEntry(key, freed);
+
+                // Journal the change
+                seq = commitMetadata();
+                deferFree(seq, freed);
+                if (logging) {
+                    System.out.println("SUCCESS: " + ((kind == DirectoryTree.DIRECTORY) ? "directory" : "file") + " deleted -> " + path);
+                }
+            } finally {
+                metaLock.unlock();
+                fileLock.unlock();
+            }
+            awaitDurable(seq);
+            return;
+        }
+    }
+
+    // Runs op on the FEntry of the file at path, naming the path rather than the key in its errors
+    private <T> T atPath(String path, KeyOperation<T> op) throws Exception {
+        String key;
+        List<String> names = components(path);
+        lock(metaLock, metaLockWaits);
+        try {
+            key = keyOf(existingPath(path, names, DirectoryTree.FILE));
+        } finally {
+            metaLock.unlock();
+        }
+        try {
+            return op.apply(key);
+        } catch (Exception e) {
+            if (e.getMessage() == null || !e.getMessage().contains(key)) {
+                throw e;
+            }
+            throw new Exception(e.getMessage().replace(key, path), e);
+        }
+    }
+
+    private interface KeyOperation<T> {
+        T apply(String key) throws Exception;
+    }
+
+    // The entry at path, which must exist and be of kind (metaLock held)
+    private DirectoryTree.Entry existingPath(String path, List<String> names, byte kind) throws Exception {
+        DirectoryTree.Entry entry = resolve(path, names, names.size());
+        if (entry == null) {
+            throw new Exception("ERROR: " + ((kind == DirectoryTree.DIRECTORY) ? "directory " : "file ") + path + " does not exist");
+        }
+        if (entry.kind != kind) {
+            throw new Exception("ERROR: " + path + ((kind == DirectoryTree.DIRECTORY) ? " is not a directory" : " is a directory"));
+        }
+        return entry;
+    }
+
+    // The entry named by the first count names of path, or null if there is none (metaLock held).
+    // Each directory on the way costs one lookup in its tree.
+    private DirectoryTree.Entry resolve(String path, List<String> names, int count) throws Exception {
+        DirectoryTree.Entry entry = ROOT;
+        for (int i = 0; i < count; i++) {
+            if (entry.kind != DirectoryTree.DIRECTORY) {
+                throw new Exception("ERROR: " + prefix(names, i) + " is not a directory");
+            }
+            entry = DirectoryTree.lookup(pageReader, rootOf(entry), names.get(i));
+            if (entry == null) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    // Where the tree of a directory starts, or null when it is empty (metaLock held)
+    private DirectoryTree.PageRef rootOf(DirectoryTree.Entry dir) {
+        int fileIndex = findEntry(keyOf(dir));
+        if (fileIndex == -1 || inodeTable[fileIndex].getFirstBlock() < 0) {
+            return null;
+        }
+        FEntry entry = inodeTable[fileIndex];
+        return new DirectoryTree.PageRef(entry.getFirstBlock(), entry.getStoredSize());
+    }
+
+    // Reads a directory page through the page cache (metaLock held)
+    private DirectoryTree.Page readPage(DirectoryTree.PageRef ref) throws Exception {
+        DirectoryTree.Page page = pageCache.get(ref.first);
+        if (page == null) {
+            FileVersion chain = new FileVersion(ref.length, FEntry.ENCODING_RAW, ref.length, extentsOf(ref.first), null);
+            page = DirectoryTree.Page.decode(readBlocks(chain, 0, ref.length, "a directory"));
+            page.ref = ref;
+            pageCache.put(ref.first, page);
+            pageReads.increment();
+        }
+        return page;
+    }
+
+    // Writes the pages of a changed tree that are not written yet, each to a chain of its own and
+    // children first so their parents can point at them, and returns where the root is (null for
+    // an empty tree). The tree is unchanged on disk if it throws (metaLock held).
+    private DirectoryTree.PageRef writeTree(Object root) throws Exception {
+        if (!(root instanceof DirectoryTree.Page)) {
+            return (DirectoryTree.PageRef) root;
+        }
+        List<DirectoryTree.Page> pages = new ArrayList<>();
+        ((DirectoryTree.Page) root).collectUnwritten(pages);
+
+        List<List<int[]>> reserved = new ArrayList<>();
+        try {
+            for (DirectoryTree.Page page : pages) {
+                int length = page.encodedSize();
+                List<int[]> extents = reserveForContents(length);
+                reserved.add(extents);
+                page.ref = new DirectoryTree.PageRef(extents.get(0)[0], length);
+            }
+        } catch (Exception e) {
+            reserved.forEach(this::freeExtents);
+            throw e;
+        }
+
+        int written = 0;
+        try {
+            for (; written < pages.size(); written++) {
+                writeExtents(pages.get(written).encode(), reserved.get(written), dataDevice); // Frees its own blocks if it fails
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < reserved.size(); i++) {
+                if (i != written) {
+                    freeExtents(reserved.get(i));
+                }
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < pages.size(); i++) {
+            linkChain(reserved.get(i));
+            pageCache.put(pages.get(i).ref.first, pages.get(i));
+        }
+        return ((DirectoryTree.Page) root).ref;
+    }
+
+    // Points a directory at its new tree, changing its entry count by added, and adds the pages
+    // the new tree replaced to freed (metaLock held)
+    private void pointDirectory(DirectoryTree.Entry dir, DirectoryTree.PageRef root, List<DirectoryTree.PageRef> replaced, int added, List<Integer> freed) throws Exception {
+        for (DirectoryTree.PageRef old : replaced) {
+            pageCache.remove(old.first);
+            freed.addAll(unlinkChain(old.first));
+        }
+        int fileIndex = existingEntry(keyOf(dir));
+        FEntry entry = inodeTable[fileIndex];
+        entry.setEncoded(entry.getFilesize() + added, FEntry.ENCODING_RAW, (root != null) ? root.length : 0);
+        entry.setFirstBlock((root != null) ? root.first : -1);
+        dirtyEntries.add(fileIndex);
+        dirtyNames.add(entry.getFilename());
+    }
+
+    private void freeExtents(List<int[]> extents) {
+        for (int[] extent : extents) {
+            for (int b = extent[0]; b < extent[0] + extent[1]; b++) {
+                allocator.free(b);
+            }
+        }
+    }
+
+    // The names of a path; "/" has none. Empty names, "." and ".." are not allowed.
+    private static List<String> components(String path) throws Exception {
+        if (path.length() > MAX_PATH) {
+            throw new Exception("ERROR: path too long");
+        }
+        List<String> names = new ArrayList<>();
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            String name = path.substring(start, end);
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                throw new Exception("ERROR: invalid path " + path);
+            }
+            if (name.getBytes(StandardCharsets.UTF_8).length > DirectoryTree.MAX_NAME_BYTES) {
+                throw new Exception("ERROR: name too long in " + path);
+            }
+            names.add(name);
+            start = end + 1;
+        }
+        return names;
+    }
+
+    // The path made of the first count names
+    private static String prefix(List<String> names, int count) {
+        return "/" + String.join("/", names.subList(0, count));
+    }
+
+    // The FEntry name of a file or directory in the tree
+    private static String keyOf(DirectoryTree.Entry entry) {
+        return ((entry.kind == DirectoryTree.DIRECTORY) ? DIRECTORY_KEY : FILE_KEY) + Long.toString(entry.id, Character.MAX_RADIX);
+    }
+
+    private static boolean isTreeKey(String filename) {
+        return filename.charAt(0) == FILE_KEY || filename.charAt(0) == DIRECTORY_KEY;
+    }
+
+    private static boolean isPath(String filename) {
+        return filename.charAt(0) == '/';
+    }
+
+    private static void checkPath(String path) throws Exception {
+        checkFilename(path);
+        if (!isPath(path)) {
+            throw new Exception("ERROR: " + path + " is not a path");
+        }
+    }
+
+    // filename as logs show it: files in the tree by their id
+    private static String shown(String filename) {
+        return isTreeKey(filename) ? "#" + filename.substring(1) : filename;
+    }
+
+    // Takes lock, timing the wait into waits only when it is held by someone else
+    private static void lock(Lock lock, LatencyHistogram waits) {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            waits.recordSince(start);
+        }
+    }
+
+    private static void checkFilename(String filename) throws Exception {
+        if (filename == null || filename.isEmpty()) {
+            throw new Exception("ERROR: filename is null or empty");
+        }
+        if (isTreeKey(filename)) {
+            throw new Exception("ERROR: invalid filename"); // Reserved for the entries of the directory tree
+        }
+    }
+
+    // Lock stripe guarding filename
+    private ReentrantLock fileLock(String filename) {
+        return fileLocks[stripeOf(filename)];
+    }
+
+    private static int stripeOf(String filename) {
+        int h = filename.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    // Follows the chain from first for position blocks and returns that FNode (or -1 past the end)
+    private int seekBlock(int first, int position, String filename) throws Exception {
+        int node = first;
+        for (int i = 0; i < position && node != -1; i++) {
+            if (node < 0 || node >= MAXBLOCKS || fnodes[node].getBlockIndex() < 0) {
+                throw new Exception("ERROR: corrupted fnode chain for " + filename);
+            }
+            node = fnodes[node].getNext();
+        }
+        return node;
+    }
+
+    // Returns the inodeTable slot holding filename, or -1 if there is none
+    private int findEntry(String filename) {
+        Integer index = nameIndex.get(filename);
+        return (index != null) ? index : -1;
+    }
+
+    // findEntry for a file that must exist
+    private int existingEntry(String filename) throws Exception {
+        int fileIndex = findEntry(filename);
+        if (fileIndex == -1) {
+            throw new Exception("ERROR: file " + filename + " does not exist");
+        }
+        return fileIndex;
+    }
+
+    // Rebuilds the name index, published versions, free slot list, dedup maps and next tree id from inodeTable (called at mount)
+    private void rebuildIndex() {
+        nameIndex.clear();
+        published.clear();
+        freeSlots.clear();
+        dedupIndex.clear();
+        chainOwners.clear();
+        pageCache.clear();
+        nextTreeId = 1;
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry entry = inodeTable[i];
+            if (entry != null && entry.getFilename() != null && !entry.getFilename().isEmpty()) {
+                nameIndex.put(entry.getFilename(), i);
+                if (isTreeKey(entry.getFilename())) {
+                    nextTreeId = Math.max(nextTreeId, Long.parseLong(entry.getFilename().substring(1), Character.MAX_RADIX) + 1);
+                }
+                published.put(entry.getFilename(), versionOf(entry));
+                if (entry.getFingerprint() != 0 && entry.getFirstBlock() >= 0) {
+                    // Shared chains are counted even with dedup off, so they are freed only once
+                    chainOwners.computeIfAbsent(entry.getFirstBlock(), k -> new LinkedHashSet<>()).add(entry.getFilename());
+                    dedupIndex.putIfAbsent(entry.getFingerprint(), entry.getFirstBlock());
+                }
+            } else {
+                freeSlots.addLast(i); // ascending order, so the lowest slot is reused first
+            }
+        }
+    }
+
+    // Adds an empty file (metaLock held). Throws before changing anything.
+    private void createEntry(String filename) throws Exception {
+        // Check if the file already exists
+        if (nameIndex.containsKey(filename)) {
+            throw new Exception("ERROR: file " + filename + " already exists");
+        }
+
+        // Take a free FEntry slot
+        Integer freeIndex = freeSlots.pollFirst();
+        if (freeIndex == null) {
+            throw new Exception("ERROR: no free file entries available");
+        }
+
+        // Create the new entry (size = 0, firstBlock = -1)
+        FEntry newFile = new FEntry(filename, 0, -1);
+        inodeTable[freeIndex] = newFile;
+        nameIndex.put(filename, freeIndex);
+        dirtyEntries.add(freeIndex);
+        dirtyNames.add(filename);
+
+        if (logging && !isTreeKey(filename)) {
+            System.out.println("SUCCESS: file created -> " + filename);
+        }
+    }
+
+    // Removes a file and adds its blocks to freed, to be released once the change is durable (metaLock held)
+    private void removeEntry(String filename, List<Integer> freed) throws Exception {
+        // Locate the file in the FEntry table
+        int fileIndex = existingEntry(filename);
+        FEntry target = inodeTable[fileIndex];
+
+        // Unlink its FNode chain (unless other files share it)
+        freed.addAll(releaseChain(target));
+
+        // Clear the file entry and release its slot
+        inodeTable[fileIndex] = new FEntry("", 0, -1);
+        nameIndex.remove(filename);
+        freeSlots.addFirst(fileIndex);
+        dirtyEntries.add(fileIndex);
+        dirtyNames.add(filename);
+
+        if (logging && !isTreeKey(filename)) {
+            System.out.println("SUCCESS: file deleted -> " + filename);
+        }
+    }
+
+    // Reserves the blocks for a whole-file write stored as stored: none when it is inline (metaLock held)
+    private List<int[]> reserveForContents(Encoded stored) throws Exception {
+        return (stored.encoding == FEntry.ENCODING_INLINE) ? new ArrayList<>() : reserveForContents(stored.data.length);
+    }
+
+    // Reserves length bytes of blocks (metaLock held)
+    private List<int[]> reserveForContents(int length) throws Exception {
+        // Calculate number of blocks needed
+        int numBlocks = (int) Math.ceil((double) length / BLOCK_SIZE);
+        if (numBlocks > MAXBLOCKS) {
+            throw new Exception("ERROR: file too large");
+        }
+
+        // Contiguous when possible
+        return reserveBlocks(numBlocks);
+    }
+
+    // Writes contents to the reserved blocks through device, one positional write per contiguous
+    // extent (and through to the cache). The blocks go back to the allocator if a write fails.
+    private void writeExtents(byte[] contents, List<int[]> extents, BlockDevice device) throws IOException {
+        try {
+            int written = 0;
+            for (int[] extent : extents) {
+                int startBlock = extent[0];
+                int bytes = Math.min(extent[1] * BLOCK_SIZE, contents.length - written);
+                device.write(ByteBuffer.wrap(contents, written, bytes), calculateDataOffset(startBlock));
+                if (cache != null) {
+                    for (int b = startBlock; b < startBlock + extent[1]; b++) {
+                        int blockOffset = written + (b - startBlock) * BLOCK_SIZE;
+                        cache.put(b, contents, blockOffset, Math.min(BLOCK_SIZE, contents.length - blockOffset));
+                    }
+                }
+                written += bytes;
+            }
+            writtenBytes.add(contents.length);
+        } catch (IOException e) {
+            // Give the reserved blocks back before failing
+            lock(metaLock, metaLockWaits);
+            try {
+                for (int[] extent : extents) {
+                    for (int b = extent[0]; b < extent[0] + extent[1]; b++) {
+                        if (cache != null) {
+                            cache.invalidate(b);
+                        }
+                        allocator.free(b);
+                    }
+                }
+            } finally {
+                metaLock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    // Makes the written extents the file's new chain, holding length bytes stored as stored, and
+    // adds the old chain to freed (metaLock held). A non-zero fingerprint offers the new chain to
+    // later writes of the same bytes.
+    private void linkContents(int fileIndex, List<int[]> extents, int length, Encoded stored, long fingerprint, List<Integer> freed) {
+        FEntry target = inodeTable[fileIndex];
+
+        // Link the new blocks into an FNode chain
+        int newFirst = linkChain(extents);
+
+        // Unlink the old block chain
+        freed.addAll(releaseChain(target));
+
+        // Update file metadata
+        if (stored.encoding == FEntry.ENCODING_INLINE) {
+            target.setInline(stored.data);
+        } else {
+            target.setEncoded(length, stored.encoding, stored.data.length);
+            target.setFirstBlock(newFirst);
+        }
+        if (fingerprint != 0 && newFirst >= 0) {
+            Set<String> owners = new LinkedHashSet<>();
+            owners.add(target.getFilename());
+            chainOwners.put(newFirst, owners);
+            dedupIndex.putIfAbsent(fingerprint, newFirst);
+            target.setFingerprint(fingerprint);
+        }
+        dirtyEntries.add(fileIndex);
+        dirtyNames.add(target.getFilename());
+    }
+
+    // Links the blocks of extents, in order, into an FNode chain and returns its first block (-1 for none)
+    private int linkChain(List<int[]> extents) {
+        int first = -1;
+        int prevBlock = -1;
+        for (int[] extent : extents) {
+            for (int b = extent[0]; b < extent[0] + extent[1]; b++) {
+                fnodes[b].setBlockIndex(b);
+                fnodes[b].setNext(-1);
+                if (prevBlock == -1) {
+                    first = b;
+                } else {
+                    fnodes[prevBlock].setNext(b);
+                }
+                prevBlock = b;
+                dirtyNodes.add(b);
+            }
+        }
+        return first;
+    }
+
+    // Points the file at the chain starting at head, which holds exactly stored, and adds its old
+    // chain to freed unless that is the same one (metaLock held)
+    private void shareChain(int fileIndex, int head, int length, Encoded stored, long fingerprint, List<Integer> freed) {
+        FEntry target = inodeTable[fileIndex];
+        if (target.getFirstBlock() != head) {
+            freed.addAll(releaseChain(target));
+            chainOwners.get(head).add(target.getFilename());
+        }
+        target.setEncoded(length, stored.encoding, stored.data.length);
+        target.setFirstBlock(head);
+        target.setFingerprint(fingerprint);
+        dirtyEntries.add(fileIndex);
+        dirtyNames.add(target.getFilename());
+        dedupHits.increment();
+    }
+
+    // Unlinks the file's chain and returns the blocks it held, or drops the file's reference and
+    // returns nothing while other files still share the chain (metaLock held)
+    private List<Integer> releaseChain(FEntry target) {
+        int first = target.getFirstBlock();
+        Set<String> owners = chainOwners.get(first);
+        if (owners != null) {
+            owners.remove(target.getFilename());
+            if (!owners.isEmpty()) {
+                return new ArrayList<>();
+            }
+            chainOwners.remove(first);
+            dedupIndex.remove(target.getFingerprint(), first);
+        }
+        return unlinkChain(first);
+    }
+
+    // Before a ranged write changes the file's blocks in place (file lock held): false if other
+    // files share them, otherwise takes them out of the dedup index so that none starts to
+    private boolean ownChain(String filename) {
+        if (chainOwners.isEmpty()) {
+            return true; // No chain is shared or offered for sharing
+        }
+        lock(metaLock, metaLockWaits);
+        try {
+            int fileIndex = findEntry(filename);
+            if (fileIndex == -1) {
+                return true; // Reported by the write
+            }
+            FEntry target = inodeTable[fileIndex];
+            Set<String> owners = chainOwners.get(target.getFirstBlock());
+            if (owners == null) {
+                return true;
+            }
+            if (owners.size() > 1) {
+                return false;
+            }
+            chainOwners.remove(target.getFirstBlock());
+            dedupIndex.remove(target.getFingerprint(), target.getFirstBlock());
+            return true;
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    // The first block of a chain holding exactly stored, or -1 (metaLock held, so the chain cannot
+    // change while it is compared)
+    private int duplicateOf(long fingerprint, byte[] stored) throws Exception {
+        Integer head = dedupIndex.get(fingerprint);
+        if (head == null) {
+            return -1;
+        }
+        String owner = chainOwners.get(head).iterator().next();
+        return holds(versionOf(inodeTable[nameIndex.get(owner)]), stored, owner) ? head : -1;
+    }
+
+    // Whether the blocks of version hold exactly stored
+    private boolean holds(FileVersion version, byte[] stored, String owner) throws Exception {
+        if (version.storedSize == stored.length && Arrays.equals(readBlocks(version, 0, stored.length, owner), stored)) {
+            return true;
+        }
+        dedupMismatches.increment();
+        return false;
+    }
+
+    // 64-bit fingerprint of the stored bytes (the start of their SHA-256, never 0), or 0 when dedup
+    // is off or there is nothing to share. Matches are compared byte for byte before sharing.
+    private long fingerprint(Encoded encoded) {
+        byte[] stored = encoded.data;
+        if (!config.isDedup() || stored.length == 0 || encoded.encoding == FEntry.ENCODING_INLINE) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long fingerprint = ByteBuffer.wrap(sha.digest(stored)).getLong();
+        hashTimes.recordSince(start);
+        return (fingerprint == 0) ? 1 : fingerprint;
+    }
+
+    // contents as they will be stored: up to INLINE_BYTES in the entry; with fs.compression=DEFLATE,
+    // files of more than one block are compressed and the result kept if it needs fewer blocks;
+    // anything else is stored raw. Deflate stops as soon as the output would not save a block.
+    private Encoded encode(byte[] contents) {
+        if (contents.length > 0 && contents.length <= Superblock.INLINE_BYTES) {
+            return new Encoded(contents, FEntry.ENCODING_INLINE);
+        }
+        int rawBlocks = (int) ((contents.length + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (config.getCompression() == FileSystemConfig.Compression.NONE || rawBlocks <= 1) {
+            return new Encoded(contents, FEntry.ENCODING_RAW);
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(config.getCompressionLevel());
+        }
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            byte[] out = new byte[(rawBlocks - 1) * BLOCK_SIZE]; // Must save at least one block
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            compressInputBytes.add(contents.length);
+            if (!deflater.finished()) {
+                compressRejected.increment();
+                return new Encoded(contents, FEntry.ENCODING_RAW);
+            }
+            compressKept.increment();
+            compressOutputBytes.add(length);
+            return new Encoded(Arrays.copyOf(out, length), FEntry.ENCODING_DEFLATE);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+            encodeTimes.recordSince(start);
+        }
+    }
+
+    // The contents of an encoded version from its stored bytes
+    private byte[] decode(byte[] stored, FileVersion version, String filename) throws Exception {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            if (version.encoding != FEntry.ENCODING_DEFLATE) {
+                throw new DataFormatException("unknown encoding " + version.encoding);
+            }
+            inflater.setInput(stored);
+            byte[] contents = new byte[version.size];
+            int length = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(contents, length, contents.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || length == contents.length)) {
+                    break;
+                }
+                length += n;
+            }
+            if (!inflater.finished() || length != contents.length) {
+                throw new DataFormatException("expected " + contents.length + " bytes, got " + length);
+            }
+            return contents;
+        } catch (DataFormatException e) {
+            throw new Exception("ERROR: corrupted data for " + filename + " (" + e.getMessage() + ")");
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+            decodeTimes.recordSince(start);
+        }
+    }
+
+    // Takes numBlocks free blocks from the allocator as extents {start, length} (metaLock held)
+    private List<int[]> reserveBlocks(int numBlocks) throws Exception {
+        reclaimDurableBlocks();
+        List<int[]> extents = allocator.allocate(numBlocks);
+        if (extents == null && !pendingFrees.isEmpty()) {
+            // Space is held by frees that are not durable yet or still being read: flush the
+            // journal, give the readers a moment to finish and retry
+            journal.sync();
+            awaitReaders(false, READER_WAIT_MILLIS);
+            reclaimDurableBlocks();
+            extents = allocator.allocate(numBlocks);
+        }
+        if (extents == null && (!reclaimQueue.isEmpty() || reclaimInFlight > 0)) {
+            // The space is waiting to be zeroed: zero the queue here and wait for the reclaimer's batch
+            List<Integer> batch = new ArrayList<>(reclaimQueue);
+            reclaimQueue.clear();
+            try {
+                zeroBlocks(batch);
+            } finally {
+                for (int block : batch) {
+                    allocator.free(block);
+                }
+            }
+            while (reclaimInFlight > 0) {
+                reclaimDone.awaitUninterruptibly();
+            }
+            extents = allocator.allocate(numBlocks);
+        }
+        if (extents == null) {
+            throw new Exception("ERROR: not enough free blocks available");
+        }
+        return extents;
+    }
+
+    // Unlinks a file's FNode chain and returns the blocks it held
+    private List<Integer> unlinkChain(int first) {
+        List<Integer> blocks = new ArrayList<>();
+        int fnodeIndex = first;
+        while (fnodeIndex != -1 && fnodeIndex < MAXBLOCKS) {
+            FNode node = fnodes[fnodeIndex];
+            if (node == null) break;
+
+            if (node.getBlockIndex() >= 0) {
+                blocks.add(node.getBlockIndex());
+                if (cache != null) {
+                    cache.invalidate(node.getBlockIndex()); // Its contents change once the block is reused
+                }
+            }
+
+            // Mark node as unused
+            node.setBlockIndex(-1);
+            int next = node.getNext();
+            node.setNext(-1);
+            dirtyNodes.add(fnodeIndex);
+            fnodeIndex = next;
+        }
+        return blocks;
+    }
+
+    // Journals every slot dirtied by the current operation as one transaction and returns its sequence number
+    private long commitMetadata() throws IOException {
+        if (!channel.isOpen()) {
+            // close() has taken its last checkpoint, so nothing could make this commit durable
+            throw new IOException("ERROR: the file system is closed");
+        }
+        if (!checkpointerStarted.get()) {
+            startCheckpointer();
+        }
+        int needed = dirtyEntries.size() * (5 + Superblock.FENTRY_SIZE) + dirtyNodes.size() * (5 + Superblock.FNODE_SIZE);
+        if (journalBuffer.capacity() < needed) {
+            journalBuffer = ByteBuffer.allocate(Math.max(needed, journalBuffer.capacity() * 2));
+        }
+        ByteBuffer payload = journalBuffer;
+        payload.clear();
+        for (int slot : dirtyEntries) {
+            payload.put(Journal.TYPE_ENTRY);
+            payload.putInt(slot);
+            encodeEntry(payload, inodeTable[slot]);
+            unflushedEntries.set(slot);
+        }
+        for (int slot : dirtyNodes) {
+            payload.put(Journal.TYPE_NODE);
+            payload.putInt(slot);
+            encodeNode(payload, fnodes[slot]);
+            unflushedNodes.set(slot);
+        }
+        dirtyEntries.clear();
+        dirtyNodes.clear();
+        payload.flip();
+
+        long seq = journal.append(payload); // Copies the payload, so the buffer can be reused
+        if (journal.getActiveBytes() > config.getCheckpointBytes()) {
+            requestCheckpoint();
+        }
+
+        // Publish the changed files to readers and retire the versions they replace
+        for (String name : dirtyNames) {
+            Integer slot = nameIndex.get(name);
+            FileVersion old = (slot != null) ? published.put(name, versionOf(inodeTable[slot])) : published.remove(name);
+            if (old != null) {
+                old.retire();
+                retired.add(old);
+            }
+        }
+        dirtyNames.clear();
+        return seq;
+    }
+
+    // The entry's current size and chain as extents of consecutive blocks (metaLock held, or at mount).
+    // A broken chain ends the extents early and readers report it.
+    private FileVersion versionOf(FEntry entry) {
+        return new FileVersion(entry.getFilesize(), entry.getEncoding(), entry.getStoredSize(), extentsOf(entry.getFirstBlock()), entry.getInline());
+    }
+
+    // The chain starting at first as {first block, block count} pairs (metaLock held, or at mount)
+    private int[] extentsOf(int first) {
+        int[] extents = new int[8];
+        int n = 0;
+        int node = first;
+        for (int steps = 0; node >= 0 && node < MAXBLOCKS && steps < MAXBLOCKS; steps++) {
+            int block = fnodes[node].getBlockIndex();
+            if (block < 0) {
+                break;
+            }
+            if (n > 0 && extents[n - 2] + extents[n - 1] == block) {
+                extents[n - 1]++;
+            } else {
+                if (n == extents.length) {
+                    extents = Arrays.copyOf(extents, n * 2);
+                }
+                extents[n++] = block;
+                extents[n++] = 1;
+            }
+            node = fnodes[node].getNext();
+        }
+        return Arrays.copyOf(extents, n);
+    }
+
+    // Pins the current version of filename, retrying if a writer replaced it in between
+    private FileVersion pinVersion(String filename) throws Exception {
+        while (true) {
+            FileVersion version = published.get(filename);
+            if (version == null) {
+                throw new Exception("ERROR: file " + filename + " does not exist");
+            }
+            if (version.pin()) {
+                return version;
+            }
+            Thread.onSpinWait(); // Retired after the lookup: the new version is already published
+        }
+    }
+
+    // Waits up to timeoutMillis until no reader holds a retired version (or, with current, any
+    // version). Readers take no lock, so they finish even while the caller holds metaLock.
+    private void awaitReaders(boolean current, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() < deadline) {
+            boolean pinned = pendingFrees.stream().anyMatch(PendingFree::isPinned)
+                    || (current && published.values().stream().anyMatch(FileVersion::isPinned));
+            if (!pinned) {
+                return;
+            }
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    // In SYNC mode, waits (outside the filesystem lock) until the commit is on disk
+    private void awaitDurable(long seq) throws IOException {
+        if (config.getDurability() == FileSystemConfig.Durability.SYNC) {
+            journal.awaitDurable(seq);
+        }
+    }
+
+    // Freed blocks stay allocated until the commit that freed them is durable, so a crash
+    // can never leave durable metadata pointing at blocks another file has overwritten, and
+    // until no reader holds a version that still uses them. Called after every commit.
+    private void deferFree(long seq, List<Integer> blocks) {
+        if (!blocks.isEmpty() || !retired.isEmpty()) {
+            pendingFrees.addLast(new PendingFree(seq, blocks, new ArrayList<>(retired)));
+            retired.clear();
+            reclaimDurableBlocks();
+        }
+    }
+
+    // Hands the blocks whose freeing commit is durable to the reclaimer, or straight back to
+    // the allocator when freed blocks are not zeroed (metaLock held). Frees are released in
+    // commit order and stop at the first one with a pinned version: a block freed by a later
+    // commit may still be read through an older version of the same file.
+    private void reclaimDurableBlocks() {
+        long durable = journal.getDurableSeq();
+        boolean queued = false;
+        while (!pendingFrees.isEmpty() && pendingFrees.peekFirst().seq <= durable && !pendingFrees.peekFirst().isPinned()) {
+            for (int block : pendingFrees.pollFirst().blocks) {
+                if (cache != null) {
+                    cache.invalidate(block); // A reader of the old version may have cached it again
+                }
+                if (zeroBuffer != null) {
+                    reclaimQueue.add(block);
+                    queued = true;
+                } else {
+                    allocator.free(block);
+                }
+            }
+        }
+        if (queued) {
+            requestReclaim();
+        }
+    }
+
+    private void requestReclaim() {
+        if (reclaimRequested.compareAndSet(false, true)) {
+            try {
+                reclaimer.execute(this::runReclaim);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                reclaimRequested.set(false); // Shutting down, close() zeroes the rest
+            }
+        }
+    }
+
+    // Zeroes the queued blocks without the filesystem lock (nothing references them any more),
+    // then frees them. A failed zero write only loses the scrub, so the blocks are freed anyway.
+    private void runReclaim() {
+        reclaimRequested.set(false);
+        List<Integer> batch;
+        lock(metaLock, metaLockWaits);
+        try {
+            if (reclaimQueue.isEmpty() || !channel.isOpen()) {
+                return;
+            }
+            batch = new ArrayList<>(reclaimQueue);
+            reclaimQueue.clear();
+            reclaimInFlight += batch.size();
+        } finally {
+            metaLock.unlock();
+        }
+
+        try {
+            zeroBlocks(batch);
+        } catch (IOException e) {
+            System.err.println("Zeroing freed blocks failed: " + e.getMessage());
+        } finally {
+            lock(metaLock, metaLockWaits);
+            try {
+                for (int block : batch) {
+                    allocator.free(block);
+                }
+                reclaimInFlight -= batch.size();
+                reclaimDone.signalAll();
+            } finally {
+                metaLock.unlock();
+            }
+        }
+    }
+
+    // Sorts the blocks and writes zeros over each run of consecutive blocks, up to ZERO_BATCH_BYTES per write
+    private void zeroBlocks(List<Integer> blocks) throws IOException {
+        if (zeroBuffer == null || blocks.isEmpty()) {
+            return;
+        }
+        blocks.sort(null);
+        int i = 0;
+        while (i < blocks.size()) {
+            int start = blocks.get(i);
+            int end = start + 1;
+            while (++i < blocks.size() && blocks.get(i) == end) {
+                end++;
+            }
+
+            long position = calculateDataOffset(start);
+            long remaining = (long) (end - start) * BLOCK_SIZE;
+            while (remaining > 0) {
+                int bytes = (int) Math.min(ZERO_BATCH_BYTES, remaining);
+                ByteBuffer zeros = zeroBuffer.duplicate();
+                zeros.limit(bytes);
+                dataDevice.write(zeros, position);
+                position += bytes;
+                remaining -= bytes;
+            }
+        }
+    }
+
+    // Starts the periodic checkpoint (once; nothing needs checkpointing before the first commit)
+    private void startCheckpointer() {
+        if (checkpointerStarted.compareAndSet(false, true)) {
+            try {
+                checkpointer.scheduleWithFixedDelay(this::runCheckpoint, config.getCheckpointMillis(),
+                        config.getCheckpointMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, close() checkpoints anyway
+            }
+        }
+    }
+
+    private void requestCheckpoint() {
+        if (checkpointRequested.compareAndSet(false, true)) {
+            try {
+                checkpointer.execute(this::runCheckpoint);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                checkpointRequested.set(false); // Shutting down, close() checkpoints anyway
+            }
+        }
+    }
+
+    private void runCheckpoint() {
+        checkpointRequested.set(false);
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            System.err.println("Checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    // Writes the changed slots to their home location and drops the journal records they now cover
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            List<long[]> ranges;
+            long seq;
+            lock(metaLock, metaLockWaits);
+            try {
+                if (!channel.isOpen() || journal.getAppendedSeq() == superblock.getCheckpointSeq()) {
+                    return; // Nothing new since the last checkpoint
+                }
+                ranges = encodeDirtySlots();
+                seq = journal.rollover(); // Everything up to seq is now durable in the old segment
+                reclaimDurableBlocks();
+            } finally {
+                metaLock.unlock();
+            }
+
+            // metaImage is only modified by checkpoints, so it can be written without the filesystem lock
+            writeCheckpoint(ranges, seq);
+            journal.truncateInactive();
+        }
+    }
+
+    // Saves the given ranges of metaImage and then the superblock (checksum + checkpoint sequence)
+    private void writeCheckpoint(List<long[]> ranges, long seq) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(metaImage.duplicate().clear());
+
+        for (long[] range : ranges) {
+            ByteBuffer slice = metaImage.duplicate();
+            slice.limit((int) (range[0] + range[1]));
+            slice.position((int) range[0]);
+            metaDevice.write(slice, superblock.getInodeTableOffset() + range[0]);
+        }
+
+        // Tables must be on disk before the superblock that vouches for them; if a crash
+        // tears them, the old superblock's checksum fails and the journal is replayed instead
+        metaDevice.force();
+
+        superblock.setChecksum(crc.getValue());
+        superblock.setCheckpointSeq(seq);
+        writeSuperblock();
+    }
+
+    // Caller holds checkpointLock, so a checkpoint cannot write an older copy over it
+    private void writeSuperblock() throws IOException {
+        ByteBuffer sbBuf = ByteBuffer.allocate(Superblock.SIZE);
+        superblock.writeTo(sbBuf);
+        sbBuf.clear();
+        metaDevice.write(sbBuf, 0);
+        metaDevice.force();
+    }
+
+    // Records the volume as shard index of a set of count (ShardedFileStore) unless it already
+    // belongs to a set
+    void claimShard(int index, int count) throws IOException {
+        synchronized (checkpointLock) {
+            if (superblock.getShardCount() == 0) {
+                superblock.setShard(index, count);
+                writeSuperblock();
+            }
+        }
+    }
+
+    // Place recorded by claimShard (count 0 for a volume that is not a shard)
+    int getShardIndex() {
+        return superblock.getShardIndex();
+    }
+    int getShardCount() {
+        return superblock.getShardCount();
+    }
+
+    // Encodes the whole FEntry table, FNode table and bitmap into metaImage, exactly as laid out on disk.
+    // Returns the single range covering all of it.
+    private List<long[]> encodeMetadata() throws IOException {
+        if (metaImage == null) {
+            metaImage = ByteBuffer.allocate((int) superblock.getMetadataLength());
+        }
+        metaImage.clear();
+
+        // Write all FEntries
+        for (int i = 0; i < MAXFILES; i++) {
+            encodeEntry(metaImage, inodeTable[i]);
+        }
+
+        // Write all FNodes
+        for (int i = 0; i < MAXBLOCKS; i++) {
+            encodeNode(metaImage, fnodes[i]);
+        }
+
+        // Write the free-block bitmap
+        for (int i = 0; i < Superblock.bitmapBytes(MAXBLOCKS); i++) {
+            metaImage.put(bitmapByte(i));
+        }
+
+        unflushedEntries.clear();
+        unflushedNodes.clear();
+
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{0, metaImage.capacity()});
+        return ranges;
+    }
+
+    // Re-encodes only the slots changed since the last checkpoint and returns the
+    // byte ranges of metaImage to write, merged when they are close together
+    private List<long[]> encodeDirtySlots() throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        int nodeBase = (int) (superblock.getFnodeTableOffset() - superblock.getInodeTableOffset());
+        int bitmapBase = (int) (superblock.getBitmapOffset() - superblock.getInodeTableOffset());
+
+        for (int i = unflushedEntries.nextSetBit(0); i >= 0; i = unflushedEntries.nextSetBit(i + 1)) {
+            int offset = i * Superblock.FENTRY_SIZE;
+            metaImage.position(offset);
+            encodeEntry(metaImage, inodeTable[i]);
+            addRange(ranges, offset, Superblock.FENTRY_SIZE);
+        }
+        for (int i = unflushedNodes.nextSetBit(0); i >= 0; i = unflushedNodes.nextSetBit(i + 1)) {
+            int offset = nodeBase + i * Superblock.FNODE_SIZE;
+            metaImage.position(offset);
+            encodeNode(metaImage, fnodes[i]);
+            addRange(ranges, offset, Superblock.FNODE_SIZE);
+        }
+
+        // Bitmap bytes covering the changed FNodes
+        int lastByte = -1;
+        for (int i = unflushedNodes.nextSetBit(0); i >= 0; i = unflushedNodes.nextSetBit(i + 1)) {
+            int byteIndex = i >> 3;
+            if (byteIndex != lastByte) {
+                metaImage.put(bitmapBase + byteIndex, bitmapByte(byteIndex));
+                addRange(ranges, bitmapBase + byteIndex, 1);
+                lastByte = byteIndex;
+            }
+        }
+
+        unflushedEntries.clear();
+        unflushedNodes.clear();
+        return ranges;
+    }
+
+    // Appends [offset, offset + length) to ranges, merging it into the previous range when the gap is small
+    private static void addRange(List<long[]> ranges, long offset, int length) {
+        if (!ranges.isEmpty()) {
+            long[] last = ranges.get(ranges.size() - 1);
+            if (offset <= last[0] + last[1] + COALESCE_GAP) {
+                last[1] = Math.max(last[1], offset + length - last[0]);
+                return;
+            }
+        }
+        ranges.add(new long[]{offset, length});
+    }
+
+    // On-disk bitmap byte: a block is in use when its FNode is (blocks waiting for reclaim count as free)
+    private byte bitmapByte(int byteIndex) {
+        int bits = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            int block = byteIndex * 8 + bit;
+            if (block < MAXBLOCKS && fnodes[block].getBlockIndex() >= 0) {
+                bits |= 1 << bit;
+            }
+        }
+        return (byte) bits;
+    }
+
+    // Filename (11 bytes) + file size (4 bytes) + first block (4 bytes) + encoding (1 byte) + stored size (4 bytes)
+    // + fingerprint (8 bytes) + inline contents (INLINE_BYTES, zero-padded)
+    private void encodeEntry(ByteBuffer buf, FEntry entry) throws IOException {
+        byte[] nameBytes = new byte[11]; // fixed-size filename field
+        if (entry != null && entry.getFilename() != null) {
+            byte[] src = entry.getFilename().getBytes("UTF-8");
+            int copyLen = Math.min(src.length, 11);
+            System.arraycopy(src, 0, nameBytes, 0, copyLen);
+        }
+        buf.put(nameBytes);
+        buf.putInt((entry != null) ? entry.getFilesize() : 0);
+        buf.putInt((entry != null) ? entry.getFirstBlock() : -1);
+        buf.put((entry != null) ? entry.getEncoding() : FEntry.ENCODING_RAW);
+        buf.putInt((entry != null) ? entry.getStoredSize() : 0);
+        buf.putLong((entry != null) ? entry.getFingerprint() : 0);
+        byte[] inlineBytes = new byte[Superblock.INLINE_BYTES];
+        if (entry != null && entry.getInline() != null) {
+            System.arraycopy(entry.getInline(), 0, inlineBytes, 0, entry.getInline().length);
+        }
+        buf.put(inlineBytes);
+    }
+
+    // Block index (4 bytes) + next (4 bytes)
+    private void encodeNode(ByteBuffer buf, FNode node) {
+        buf.putInt((node != null) ? node.getBlockIndex() : -1);
+        buf.putInt((node != null) ? node.getNext() : -1);
+    }
+
+    private FNode decodeNode(ByteBuffer buf) {
+        FNode node = new FNode(buf.getInt());
+        node.setNext(buf.getInt());
+        return node;
+    }
+
+    private FEntry decodeEntry(ByteBuffer buf) {
+        byte[] nameBytes = new byte[11];
+        buf.get(nameBytes);
+        int nameLength = 0;
+        while (nameLength < 11 && nameBytes[nameLength] != 0) {
+            nameLength++;
+        }
+        String name = new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8);
+        FEntry entry = new FEntry(name, buf.getInt(), buf.getInt(), buf.get(), buf.getInt(), buf.getLong());
+        byte[] inlineBytes = new byte[Superblock.INLINE_BYTES];
+        buf.get(inlineBytes);
+        if (entry.getEncoding() == FEntry.ENCODING_INLINE && entry.getStoredSize() >= 0 && entry.getStoredSize() <= Superblock.INLINE_BYTES) {
+            entry.setInline(Arrays.copyOf(inlineBytes, entry.getStoredSize()));
+        }
+        return entry;
+    }
+
+    // Reads the superblock at offset 0, or returns null if the disk file is not formatted
+    private Superblock readSuperblock() throws IOException {
+        if (channel.size() < Superblock.SIZE) {
+            return null;
+        }
+        ByteBuffer sbBuf = ByteBuffer.allocate(Superblock.SIZE);
+        new ChannelBlockDevice(channel).read(sbBuf, 0); // Devices are set up once the geometry is known
+        sbBuf.flip();
+        return Superblock.readFrom(sbBuf, channel.size());
+    }
+
+    // Mount: reads the whole metadata region with one read and decodes the tables.
+    // Returns whether the region matched the superblock checksum.
+    private boolean loadMetadata() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) superblock.getMetadataLength());
+        metaDevice.read(buf, superblock.getInodeTableOffset());
+        buf.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate());
+        boolean checksumOk = crc.getValue() == superblock.getChecksum();
+
+        for (int i = 0; i < MAXFILES; i++) {
+            inodeTable[i] = decodeEntry(buf);
+        }
+        for (int i = 0; i < MAXBLOCKS; i++) {
+            fnodes[i] = decodeNode(buf);
+        }
+
+        byte[] bitmap = new byte[Superblock.bitmapBytes(MAXBLOCKS)];
+        buf.get(bitmap);
+        allocator.load(bitmap);
+
+        metaImage = buf; // Reused as the serialized copy for later checkpoints
+        return checksumOk;
+    }
+
+    // Replays journal records written after the last checkpoint, then checkpoints so the journal can be emptied.
+    // A torn checkpoint fails the checksum but is repaired by the records that produced it.
+    private void recoverJournal(boolean checksumOk) throws IOException {
+        List<Journal.Record> records = journal.recover(superblock.getCheckpointSeq());
+        if (!checksumOk && records.isEmpty()) {
+            throw new IOException("ERROR: metadata checksum mismatch, refusing to mount");
+        }
+
+        for (Journal.Record record : records) {
+            ByteBuffer payload = record.getPayload();
+            while (payload.hasRemaining()) {
+                byte type = payload.get();
+                int slot = payload.getInt();
+                if (type == Journal.TYPE_ENTRY && slot >= 0 && slot < MAXFILES) {
+                    inodeTable[slot] = decodeEntry(payload);
+                } else if (type == Journal.TYPE_NODE && slot >= 0 && slot < MAXBLOCKS) {
+                    fnodes[slot] = decodeNode(payload);
+                } else {
+                    throw new IOException("ERROR: corrupted journal record " + record.getSeq());
+                }
+            }
+        }
+
+        for (int i = 0; i < MAXFILES; i++) {
+            int firstBlock = inodeTable[i].getFirstBlock();
+            byte encoding = inodeTable[i].getEncoding();
+            if (firstBlock < -1 || firstBlock >= MAXBLOCKS
+                    || (encoding != FEntry.ENCODING_RAW && encoding != FEntry.ENCODING_DEFLATE && encoding != FEntry.ENCODING_INLINE)
+                    || (encoding == FEntry.ENCODING_INLINE && inodeTable[i].getInline() == null)) {
+                throw new IOException("ERROR: corrupted file entry " + i);
+            }
+        }
+
+        if (!records.isEmpty() || !checksumOk) {
+            // The on-disk bitmap predates the replayed records, so derive it from the FNodes
+            allocator.load(new byte[0]);
+            for (int i = 0; i < MAXBLOCKS; i++) {
+                if (fnodes[i].getBlockIndex() >= 0) {
+                    allocator.markUsed(i);
+                }
+            }
+            writeCheckpoint(encodeMetadata(), journal.getAppendedSeq());
+            System.out.println("Replayed " + records.size() + " journal record(s).");
         }
+        journal.reset();
     }
 
     //Calculates where a given data block starts on the disk file.
     private long calculateDataOffset(int blockIndex) {
-        // Metadata section size = (15 * MAXFILES) + (4 * MAXBLOCKS)
-        int metadataSize = (15 * MAXFILES) + (4 * MAXBLOCKS);
-        return metadataSize + ((long) blockIndex * BLOCK_SIZE);
+        // Data region starts after the metadata, aligned to the block size
+        return superblock.getDataOffset() + ((long) blockIndex * BLOCK_SIZE);
     }
 }
@@ -0,0 +1,367 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Write-ahead log for metadata changes, kept in two sidecar segment files next to the disk file.
+// Each record is one transaction of FEntry/FNode slot images. Records are queued in memory and
+// written by whichever thread flushes first, so concurrent mutators share one fsync (group commit).
+// A checkpoint rolls over to the other segment, and the old one is truncated once the tables are durable.
+public class Journal {
+
+    public static final byte TYPE_ENTRY = 1;  // FEntry slot image
+    public static final byte TYPE_NODE = 2;   // FNode slot image
+
+    private static final int RECORD_MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int HEADER_SIZE = 20;          // magic (4) + seq (8) + length (4) + crc (4)
+
+    // One replayable transaction
+    public static class Record {
+        private final long seq;
+        private final ByteBuffer payload;
+
+        Record(long seq, ByteBuffer payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+        public long getSeq() {
+            return seq;
+        }
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+    }
+
+    private final RandomAccessFile[] files = new RandomAccessFile[2];
+    private final FileChannel[] segments = new FileChannel[2];
+    private final BlockDevice dataDevice; // Forced before the journal so records never point at unwritten blocks
+    private final FileSystemConfig config;
+
+    private final Object lock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>(); // Appended but not yet written
+    private long appendedSeq = 0;
+    private long writtenSeq = 0;       // Written to the segment (maybe not fsynced)
+    private long durableSeq = 0;       // Written and fsynced
+    private long activeBytes = 0;      // Size of the active segment
+    private int active = 0;            // Segment currently appended to
+    private boolean inactiveClean = true; // Inactive segment holds nothing newer than the last checkpoint
+    private boolean flushing = false;  // A thread is writing a batch
+    private IOException failure = null;
+
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    private final LatencyHistogram fsyncs = new LatencyHistogram();
+    private final LongAdder syncedRecords = new LongAdder();
+
+    public Journal(String diskFilename, BlockDevice dataDevice, FileSystemConfig config) throws IOException {
+        this.dataDevice = dataDevice;
+        this.config = config;
+        for (int i = 0; i < 2; i++) {
+            files[i] = new RandomAccessFile(diskFilename + ".journal." + i, "rw");
+            segments[i] = files[i].getChannel();
+        }
+
+        // BATCH and ASYNC hand flushing to a background thread
+        if (config.getDurability() != FileSystemConfig.Durability.SYNC) {
+            flusher = new Thread(this::runFlusher, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    // Reads both segments and returns the records after afterSeq, in order and without gaps.
+    // A torn or corrupt record ends its segment.
+    public List<Record> recover(long afterSeq) throws IOException {
+        List<Record> found = new ArrayList<>();
+        for (FileChannel segment : segments) {
+            ByteBuffer buf = ByteBuffer.allocate((int) segment.size());
+            long position = 0;
+            while (buf.hasRemaining()) {
+                int n = segment.read(buf, position);
+                if (n < 0) break;
+                position += n;
+            }
+            buf.flip();
+
+            while (buf.remaining() >= HEADER_SIZE) {
+                int start = buf.position();
+                if (buf.getInt() != RECORD_MAGIC) break;
+                long seq = buf.getLong();
+                int length = buf.getInt();
+                int storedCrc = buf.getInt();
+                if (length < 0 || length > buf.remaining()) break;
+
+                ByteBuffer payload = buf.slice(buf.position(), length);
+                CRC32 crc = new CRC32();
+                crc.update(buf.array(), start + 4, 8);
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != storedCrc) break;
+
+                if (seq > afterSeq) {
+                    found.add(new Record(seq, payload));
+                }
+                buf.position(buf.position() + length);
+            }
+        }
+
+        found.sort(Comparator.comparingLong(Record::getSeq));
+        List<Record> records = new ArrayList<>();
+        long expected = afterSeq + 1;
+        for (Record record : found) {
+            if (record.getSeq() != expected) break; // Stop at the first gap
+            records.add(record);
+            expected++;
+        }
+
+        synchronized (lock) {
+            appendedSeq = writtenSeq = durableSeq = expected - 1;
+        }
+        return records;
+    }
+
+    // Empties both segments (after a checkpoint made every record redundant)
+    public void reset() throws IOException {
+        synchronized (lock) {
+            waitWhileFlushing();
+            for (FileChannel segment : segments) {
+                segment.truncate(0);
+                segment.position(0);
+                segment.force(true);
+            }
+            active = 0;
+            activeBytes = 0;
+            inactiveClean = true;
+        }
+    }
+
+    // Queues one transaction and returns its sequence number. Called with the filesystem metadata lock held.
+    public long append(ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        synchronized (lock) {
+            long seq = ++appendedSeq;
+            record.putInt(RECORD_MAGIC);
+            record.putLong(seq);
+            record.putInt(length);
+
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, 8);
+            crc.update(payload.duplicate());
+            record.putInt((int) crc.getValue());
+            record.put(payload);
+            record.flip();
+
+            pending.add(record);
+            activeBytes += record.remaining();
+            if (pending.size() >= config.getBatchCount()) {
+                lock.notifyAll(); // Wake the flusher early
+            }
+            return seq;
+        }
+    }
+
+    // Blocks until record seq is fsynced (joining or leading a group commit)
+    public void awaitDurable(long seq) throws IOException {
+        flushUpTo(seq, true);
+    }
+
+    // Fsyncs everything appended so far
+    public void sync() throws IOException {
+        long target;
+        synchronized (lock) {
+            target = appendedSeq;
+        }
+        flushUpTo(target, true);
+    }
+
+    // Fsyncs the active segment and switches to the other one, so a checkpoint can later drop
+    // everything up to the returned sequence number. Called with the filesystem metadata lock held.
+    public long rollover() throws IOException {
+        long last;
+        synchronized (lock) {
+            last = appendedSeq;
+        }
+        flushUpTo(last, true);
+
+        synchronized (lock) {
+            waitWhileFlushing();
+            // If the previous checkpoint never truncated the other segment, keep appending here instead
+            if (inactiveClean) {
+                active = 1 - active;
+                segments[active].truncate(0);
+                segments[active].position(0);
+                activeBytes = 0;
+                inactiveClean = false;
+            }
+        }
+        return last;
+    }
+
+    // Drops the segment left behind by rollover(), once the checkpoint covering it is durable
+    public void truncateInactive() throws IOException {
+        synchronized (lock) {
+            FileChannel inactive = segments[1 - active];
+            inactive.truncate(0);
+            inactive.position(0);
+            inactive.force(true);
+            inactiveClean = true;
+        }
+    }
+
+    public long getAppendedSeq() {
+        synchronized (lock) {
+            return appendedSeq;
+        }
+    }
+
+    public long getDurableSeq() {
+        synchronized (lock) {
+            return durableSeq;
+        }
+    }
+
+    // Commit fsyncs (data device and journal segment together) and the records they made durable
+    public LatencyHistogram getFsyncs() {
+        return fsyncs;
+    }
+    public long getSyncedRecords() {
+        return syncedRecords.sum();
+    }
+
+    public long getActiveBytes() {
+        synchronized (lock) {
+            return activeBytes;
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        for (RandomAccessFile file : files) {
+            file.close();
+        }
+    }
+
+    // Group commit: the first thread to get here writes every queued record, later ones wait for it
+    private void flushUpTo(long seq, boolean force) throws IOException {
+        while (true) {
+            List<ByteBuffer> batch;
+            long target;
+            synchronized (lock) {
+                while (true) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if ((force ? durableSeq : writtenSeq) >= seq) {
+                        return;
+                    }
+                    if (!flushing) break;
+                    waitOnLock(0);
+                }
+                flushing = true;
+                batch = pending;
+                pending = new ArrayList<>();
+                target = appendedSeq;
+            }
+
+            IOException error = null;
+            try {
+                writeBatch(batch, force);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                flushing = false;
+                if (error == null) {
+                    writtenSeq = target;
+                    if (force) durableSeq = target;
+                } else {
+                    failure = error; // The journal is no longer trustworthy, fail every later commit
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch, boolean force) throws IOException {
+        FileChannel segment = segments[active]; // Only switched while no batch is being written
+        long start = System.nanoTime();
+        if (force) {
+            dataDevice.force();
+        }
+        if (!batch.isEmpty()) {
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer b : buffers) remaining += b.remaining();
+            while (remaining > 0) {
+                remaining -= segment.write(buffers); // One gathering write for the whole group
+            }
+        }
+        if (force) {
+            segment.force(false);
+            fsyncs.recordSince(start);
+            syncedRecords.add(batch.size());
+        }
+    }
+
+    // BATCH and ASYNC: flush on a timer, or early once batchCount records are queued
+    private void runFlusher() {
+        boolean force = config.getDurability() == FileSystemConfig.Durability.BATCH;
+        while (!closed) {
+            long target;
+            synchronized (lock) {
+                if (pending.size() < config.getBatchCount()) {
+                    try {
+                        lock.wait(config.getBatchMillis());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                target = appendedSeq;
+            }
+            try {
+                flushUpTo(target, force);
+            } catch (IOException e) {
+                System.err.println("Journal flush failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void waitWhileFlushing() throws IOException {
+        while (flushing) {
+            waitOnLock(0);
+        }
+    }
+
+    private void waitOnLock(long millis) throws IOException {
+        try {
+            lock.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Memory-mapped device for one region of the disk file. Reads and writes are memory copies
+// against the page cache. The region is mapped in fixed-size windows (a single mapping cannot
+// exceed 2 GB), created on first use. force() msyncs the windows written since the last force.
+public class MappedBlockDevice implements BlockDevice {
+
+    private static final int WINDOW_SHIFT = 30;            // 1 GB windows
+    private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+    private final FileChannel channel;
+    private final long base;      // Start of the region in the disk file
+    private final long length;    // Size of the region
+    private final AtomicReferenceArray<MappedByteBuffer> windows; // Safely published to reader threads
+    private final boolean[] dirty;
+
+    public MappedBlockDevice(FileChannel channel, long base, long length) {
+        this.channel = channel;
+        this.base = base;
+        this.length = length;
+        int count = (int) ((length + WINDOW_SIZE - 1) >>> WINDOW_SHIFT);
+        this.windows = new AtomicReferenceArray<>(count);
+        this.dirty = new boolean[count];
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        long offset = checkRange(position, dst.remaining());
+        while (dst.hasRemaining()) {
+            int index = (int) (offset >>> WINDOW_SHIFT);
+            int inWindow = (int) (offset & (WINDOW_SIZE - 1));
+            ByteBuffer view = window(index).duplicate(); // Private position/limit, safe across threads
+            int n = Math.min(dst.remaining(), view.capacity() - inWindow);
+            view.position(inWindow).limit(inWindow + n);
+            dst.put(view);
+            offset += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        long offset = checkRange(position, src.remaining());
+        while (src.hasRemaining()) {
+            int index = (int) (offset >>> WINDOW_SHIFT);
+            int inWindow = (int) (offset & (WINDOW_SIZE - 1));
+            ByteBuffer view = window(index).duplicate();
+            int n = Math.min(src.remaining(), view.capacity() - inWindow);
+            view.position(inWindow);
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + n);
+            view.put(chunk);
+            src.position(src.position() + n);
+            markDirty(index);
+            offset += n;
+        }
+    }
+
+    @Override
+    public void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+        long offset = checkRange(position, 0);
+        if (offset + length > this.length) {
+            throw new IOException("ERROR: access outside the mapped region at " + position);
+        }
+        // The mapping is already off-heap, so the socket write copies straight from the page cache
+        while (length > 0) {
+            int index = (int) (offset >>> WINDOW_SHIFT);
+            int inWindow = (int) (offset & (WINDOW_SIZE - 1));
+            ByteBuffer view = window(index).duplicate();
+            int n = (int) Math.min(length, view.capacity() - inWindow);
+            view.position(inWindow).limit(inWindow + n);
+            while (view.hasRemaining()) {
+                target.write(view);
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // A window is marked clean before its msync, so a write during the msync marks it again; a
+    // failed msync marks it dirty again so the next force() retries it
+    @Override
+    public void force() throws IOException {
+        for (int i = 0; i < dirty.length; i++) {
+            synchronized (this) {
+                if (!dirty[i]) continue;
+                dirty[i] = false;
+            }
+            try {
+                windows.get(i).force();
+            } catch (UncheckedIOException e) {
+                markDirty(i);
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                markDirty(i);
+                throw new IOException("ERROR: could not flush the mapped region", e);
+            }
+        }
+    }
+
+    private synchronized void markDirty(int index) {
+        dirty[index] = true;
+    }
+
+    private long checkRange(long position, int count) throws IOException {
+        long offset = position - base;
+        if (offset < 0 || offset + count > length) {
+            throw new IOException("ERROR: access outside the mapped region at " + position);
+        }
+        return offset;
+    }
+
+    private MappedByteBuffer window(int index) throws IOException {
+        MappedByteBuffer w = windows.get(index);
+        if (w != null) {
+            return w;
+        }
+        synchronized (this) {
+            w = windows.get(index);
+            if (w == null) {
+                long start = (long) index << WINDOW_SHIFT;
+                long size = Math.min(WINDOW_SIZE, length - start);
+                w = channel.map(FileChannel.MapMode.READ_WRITE, base + start, size);
+                windows.set(index, w);
+            }
+            return w;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hands positional reads and writes to one I/O thread (the async API of FileSystemManager), so
+// the caller gets a future instead of waiting for the device. Everything queued while the thread
+// is busy is taken as one batch and sorted by position, and each run of requests less than a
+// block apart goes to the device as a single read or write of up to MAX_RUN_BYTES, staged
+// through one buffer. The bytes between two reads are read and dropped. Writes start on a block
+// boundary, so the bytes between two writes are the rest of the first one's last block, which its
+// writer owns; they are written as zeros. Only the async API queues here: read and write queue a
+// request and wait for it, so writeFileAsync can hand this to the write path on an fs-async
+// thread, while the blocking API reads and writes the device directly. Requests in a batch never
+// overlap: reads only touch the blocks of pinned versions and writes only blocks reserved for the
+// writer, so their order does not matter.
+public class QueuedBlockDevice implements BlockDevice {
+
+    private static final int MAX_RUN_BYTES = 1024 * 1024;
+
+    private static final class Request {
+        final boolean write;
+        final ByteBuffer buffer;
+        final long position;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(boolean write, ByteBuffer buffer, long position) {
+            this.write = write;
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        long end() {
+            return position + buffer.remaining();
+        }
+    }
+
+    private static final Request STOP = new Request(false, ByteBuffer.allocate(0), -1);
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final String threadName;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private Thread thread;            // Started by the first request (guarded by this)
+    private boolean closed = false;   // Guarded by this
+    private ByteBuffer staging;       // Direct, allocated by the first merged run (I/O thread only)
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder deviceCalls = new LongAdder();
+
+    // blockSize is the size of the blocks the positions are aligned to
+    public QueuedBlockDevice(BlockDevice device, int blockSize, String threadName) {
+        this.device = device;
+        this.blockSize = blockSize;
+        this.threadName = threadName;
+    }
+
+    // Queues a read that fills dst from position onwards
+    public CompletableFuture<Void> submitRead(ByteBuffer dst, long position) {
+        return submit(new Request(false, dst, position));
+    }
+
+    // Queues a write of all of src at position; src must not change until the future completes
+    public CompletableFuture<Void> submitWrite(ByteBuffer src, long position) {
+        return submit(new Request(true, src, position));
+    }
+
+    private synchronized CompletableFuture<Void> submit(Request request) {
+        if (closed) {
+            request.done.completeExceptionally(new IOException("ERROR: the I/O queue is closed"));
+            return request.done;
+        }
+        if (thread == null) {
+            thread = new Thread(this::run, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        requests.increment();
+        queue.add(request);
+        return request.done;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        await(submitRead(dst, position));
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        await(submitWrite(src, position));
+    }
+
+    // Not queued: the transfer writes to the target as it reads
+    @Override
+    public void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+        device.transferTo(position, length, target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        device.force();
+    }
+
+    // Requests queued so far, and the device calls that served them
+    public long getRequests() {
+        return requests.sum();
+    }
+    public long getDeviceCalls() {
+        return deviceCalls.sum();
+    }
+
+    // Serves what is already queued, then stops the thread; later requests fail
+    public void close() {
+        Thread running;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = thread;
+            queue.add(STOP);
+        }
+        if (running != null) {
+            // Not interrupted: an interrupt during a FileChannel call would close the disk file
+            boolean interrupted = false;
+            while (running.isAlive()) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Waits without giving up on interrupt: the request may already be on its way to the
+    // device, and the caller frees or reuses its blocks once this returns
+    private static void await(CompletableFuture<Void> done) throws IOException {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        Comparator<Request> order = Comparator.<Request>comparingInt(r -> r.write ? 1 : 0).thenComparingLong(r -> r.position);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue; // Only close() stops the thread
+            }
+            queue.drainTo(batch);
+            stopping = batch.remove(STOP);
+            batch.sort(order);
+
+            int start = 0;
+            while (start < batch.size()) {
+                Request first = batch.get(start);
+                long runBytes = first.buffer.remaining();
+                int end = start + 1;
+                while (end < batch.size()) {
+                    Request next = batch.get(end);
+                    long gap = next.position - batch.get(end - 1).end();
+                    if (next.write != first.write || gap < 0 || gap >= blockSize
+                            || (next.write && next.position % blockSize != 0)
+                            || runBytes + gap + next.buffer.remaining() > MAX_RUN_BYTES) {
+                        break;
+                    }
+                    runBytes += gap + next.buffer.remaining();
+                    end++;
+                }
+                perform(batch.subList(start, end), (int) runBytes);
+                start = end;
+            }
+            batch.clear();
+        }
+    }
+
+    // One device call for a run of requests of the same kind, then completes them
+    private void perform(List<Request> run, int runBytes) {
+        Request first = run.get(0);
+        try {
+            if (run.size() == 1) {
+                if (first.write) {
+                    device.write(first.buffer, first.position);
+                } else {
+                    device.read(first.buffer, first.position);
+                }
+            } else {
+                if (staging == null) {
+                    staging = ByteBuffer.allocateDirect(MAX_RUN_BYTES);
+                }
+                staging.clear();
+                if (first.write) {
+                    for (Request request : run) {
+                        while (staging.position() < request.position - first.position) {
+                            staging.put((byte) 0);
+                        }
+                        staging.put(request.buffer);
+                    }
+                    staging.flip();
+                    device.write(staging, first.position);
+                } else {
+                    staging.limit(runBytes);
+                    device.read(staging, first.position);
+                    for (Request request : run) {
+                        int from = (int) (request.position - first.position);
+                        request.buffer.put(staging.duplicate().position(from).limit(from + request.buffer.remaining()));
+                    }
+                }
+            }
+            deviceCalls.increment();
+        } catch (Exception e) {
+            for (Request request : run) {
+                request.done.completeExceptionally(e);
+            }
+            return;
+        }
+        for (Request request : run) {
+            request.done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+// Several volumes, each a FileSystemManager with its own disk file, journal, locks and
+// background threads, with every filename owned by exactly one of them. Names are placed by
+// consistent hashing: each shard puts VIRTUAL_NODES points on a 64-bit ring and a name belongs
+// to the first point at or after its hash. Shard i is always "shard-i", so the volumes must be
+// listed in the same order at every start: each volume records its place and the size of its set
+// in its superblock on first mount, and a set listed in another order or with another number of
+// volumes is refused rather than routing names to the wrong shards. Volumes formatted before the
+// place was recorded are claimed as listed. LIST, STATS, mount and close fan out to the shards
+// in parallel. A BATCH is split by shard and each part is applied (atomically) on its own shard.
+// A path is placed by its top-level name, so each directory under "/" lives on one shard with
+// everything below it, and only listing "/" itself fans out.
+public class ShardedFileStore implements FileStore {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final Set<String> SAME_ON_EVERY_SHARD = Set.of("fs.blockSize"); // Not summed in getStats
+
+    private final FileSystemManager[] shards;
+    private final long[] ringPoints;   // Sorted hashes of the virtual nodes
+    private final int[] ringOwners;    // Shard of each ring point
+    private final ExecutorService fanOut;
+
+    // Volumes are config.getVolumes(), or filename + ".shard<i>" for i < config.getShards().
+    // Every volume is formatted with totalSize and blockSize and gets an equal part of the cache budget.
+    public ShardedFileStore(String filename, long totalSize, int blockSize, FileSystemConfig config) throws Exception {
+        List<String> volumes = new ArrayList<>(config.getVolumes());
+        if (volumes.isEmpty()) {
+            for (int i = 0; i < config.getShards(); i++) {
+                volumes.add(filename + ".shard" + i);
+            }
+        }
+        int count = volumes.size();
+        FileSystemConfig shardConfig = config.copy().setCacheBytes(config.getCacheBytes() / count);
+
+        AtomicInteger threads = new AtomicInteger();
+        this.fanOut = Executors.newFixedThreadPool(count, r -> {
+            Thread t = new Thread(r, "fs-shard-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Mount (or format) every volume at once; if one fails, close the others
+        this.shards = new FileSystemManager[count];
+        List<Callable<Void>> mounts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int shard = i;
+            mounts.add(() -> {
+                shards[shard] = new FileSystemManager(volumes.get(shard), totalSize, blockSize, shardConfig);
+                return null;
+            });
+        }
+        try {
+            forEach(mounts);
+            // Check every volume that knows its place before claiming the new ones for this set
+            for (int i = 0; i < count; i++) {
+                if (shards[i].getShardCount() != 0 && (shards[i].getShardIndex() != i || shards[i].getShardCount() != count)) {
+                    throw new IllegalStateException("Volume " + volumes.get(i) + " is shard " + shards[i].getShardIndex()
+                            + " of " + shards[i].getShardCount() + ", not shard " + i + " of " + count
+                            + "; list the volumes as they were first mounted.");
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                shards[i].claimShard(i, count);
+            }
+        } catch (Exception e) {
+            for (FileSystemManager shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            fanOut.shutdownNow();
+            throw e;
+        }
+
+        // Build the ring
+        long[][] points = new long[count * VIRTUAL_NODES][];
+        for (int i = 0; i < count; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points[i * VIRTUAL_NODES + v] = new long[]{hash("shard-" + i + "#" + v), i};
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringPoints = new long[points.length];
+        this.ringOwners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ringPoints[i] = points[i][0];
+            ringOwners[i] = (int) points[i][1];
+        }
+
+        System.out.println("ShardedFileStore ready with " + count + " volumes: " + String.join(", ", volumes));
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar
+    // names land far apart on the ring
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Index of the shard that owns filename
+    public int shardOf(String filename) {
+        if (filename == null) {
+            return 0; // The shard reports the bad name
+        }
+        long h = hash(placementKey(filename));
+        int i = Arrays.binarySearch(ringPoints, h);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return ringOwners[(i == ringPoints.length) ? 0 : i];
+    }
+
+    // A flat name, or the top-level part of a path ("/a" for "/a/b/c")
+    private static String placementKey(String filename) {
+        if (!filename.startsWith("/")) {
+            return filename;
+        }
+        int end = filename.indexOf('/', 1);
+        return (end < 0) ? filename : filename.substring(0, end);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private FileSystemManager shard(String filename) {
+        return shards[shardOf(filename)];
+    }
+
+    @Override
+    public void createFile(String filename) throws Exception {
+        shard(filename).createFile(filename);
+    }
+
+    @Override
+    public void deleteFile(String filename) throws Exception {
+        shard(filename).deleteFile(filename);
+    }
+
+    @Override
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        shard(filename).writeFile(filename, contents);
+    }
+
+    @Override
+    public int writeFile(String filename, long offset, byte[] data) throws Exception {
+        return shard(filename).writeFile(filename, offset, data);
+    }
+
+    @Override
+    public int appendFile(String filename, byte[] data) throws Exception {
+        return shard(filename).appendFile(filename, data);
+    }
+
+    @Override
+    public byte[] readFile(String filename) throws Exception {
+        return shard(filename).readFile(filename);
+    }
+
+    @Override
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        return shard(filename).readFile(filename, offset, length);
+    }
+
+    @Override
+    public int transferFile(String filename, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return shard(filename).transferFile(filename, out, header);
+    }
+
+    @Override
+    public int transferFile(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return shard(filename).transferFile(filename, offset, length, out, header);
+    }
+
+    // Every shard's names, shard by shard
+    @Override
+    public String[] listFiles() throws Exception {
+        List<Callable<String[]>> lists = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            lists.add(shard::listFiles);
+        }
+        List<String> names = new ArrayList<>();
+        for (String[] list : forEach(lists)) {
+            names.addAll(Arrays.asList(list));
+        }
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    public void makeDirectory(String path) throws Exception {
+        shard(path).makeDirectory(path);
+    }
+
+    @Override
+    public void removeDirectory(String path) throws Exception {
+        shard(path).removeDirectory(path);
+    }
+
+    // A directory below "/" is on one shard. "/" is listed on every shard and the lists merged.
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        if (!"/".equals(path)) {
+            return shard(path).listDirectory(path, after, limit);
+        }
+        List<Callable<String[]>> lists = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            lists.add(() -> shard.listDirectory(path, after, limit));
+        }
+        List<String> names = new ArrayList<>();
+        for (String[] list : forEach(lists)) {
+            names.addAll(Arrays.asList(list));
+        }
+        names.sort(Comparator.comparing(ShardedFileStore::withoutSlash));
+        return names.subList(0, Math.min(limit, names.size())).toArray(new String[0]);
+    }
+
+    private static String withoutSlash(String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    // Splits the batch by shard (keeping the order of each file's operations), applies the parts
+    // in parallel and copies their errors back. Each part is atomic on its shard; the batch as a
+    // whole is not when it spans shards.
+    @Override
+    public void applyBatch(FileBatch batch) throws Exception {
+        FileBatch[] parts = new FileBatch[shards.length];
+        List<List<Integer>> positions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            int shard = shardOf(batch.getFilename(i));
+            if (parts[shard] == null) {
+                parts[shard] = new FileBatch();
+            }
+            switch (batch.getType(i)) {
+                case CREATE: parts[shard].create(batch.getFilename(i)); break;
+                case WRITE: parts[shard].write(batch.getFilename(i), batch.getData(i)); break;
+                case DELETE: parts[shard].delete(batch.getFilename(i)); break;
+            }
+            positions.get(shard).add(i);
+        }
+
+        List<Callable<Void>> applies = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (parts[i] != null) {
+                FileSystemManager shard = shards[i];
+                FileBatch part = parts[i];
+                applies.add(() -> {
+                    shard.applyBatch(part);
+                    return null;
+                });
+            }
+        }
+        try {
+            forEach(applies);
+        } finally {
+            // Parts that were applied report their errors even if another shard failed
+            for (int i = 0; i < shards.length; i++) {
+                if (parts[i] != null) {
+                    for (int k = 0; k < parts[i].size(); k++) {
+                        batch.setError(positions.get(i).get(k), parts[i].getError(k));
+                    }
+                }
+            }
+        }
+    }
+
+    // Totals over all shards (numeric values summed), then each shard's own metrics as "shard<i>.<name>"
+    @Override
+    public Map<String, String> getStats() {
+        List<Callable<Map<String, String>>> calls = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            calls.add(shard::getStats);
+        }
+        List<Map<String, String>> perShard;
+        try {
+            perShard = forEach(calls);
+        } catch (Exception e) {
+            throw new IllegalStateException("Collecting shard metrics failed", e);
+        }
+
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("fs.shards", String.valueOf(shards.length));
+        for (String key : perShard.get(0).keySet()) {
+            if (SAME_ON_EVERY_SHARD.contains(key)) {
+                stats.put(key, perShard.get(0).get(key));
+                continue;
+            }
+            long total = 0;
+            boolean numeric = true;
+            for (Map<String, String> shardStats : perShard) {
+                try {
+                    total += Long.parseLong(shardStats.getOrDefault(key, "0"));
+                } catch (NumberFormatException e) {
+                    numeric = false; // Latency summaries are only reported per shard
+                    break;
+                }
+            }
+            if (numeric) {
+                stats.put(key, String.valueOf(total));
+            }
+        }
+        for (int i = 0; i < perShard.size(); i++) {
+            for (Map.Entry<String, String> entry : perShard.get(i).entrySet()) {
+                stats.put("shard" + i + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        return stats;
+    }
+
+    // Closes every volume (in parallel); the first failure is thrown after all have been tried
+    @Override
+    public void close() throws IOException {
+        List<Callable<Void>> closes = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            closes.add(() -> {
+                shard.close();
+                return null;
+            });
+        }
+        try {
+            forEach(closes);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    // Runs the calls on the shard threads and returns their results in order. Waits for all of
+    // them, then throws the first failure.
+    private <T> List<T> forEach(List<Callable<T>> calls) throws Exception {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> call : calls) {
+            futures.add(fanOut.submit(call));
+        }
+        List<T> results = new ArrayList<>();
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+                results.add(null);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+}
@@ -4,11 +4,24 @@ import java.util.LinkedList;
 
 public class FEntry {
 
+    // How the contents are stored in the blocks
+    public static final byte ENCODING_RAW = 0;
+    public static final byte ENCODING_DEFLATE = 1;  // zlib stream of the contents
+    public static final byte ENCODING_INLINE = 2;   // Raw contents kept in the entry itself, no blocks
+
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private int filesize;   // Bytes a read returns
+    private int firstBlock; // Pointers to data blocks
+    private byte encoding;
+    private int storedSize; // Bytes in the blocks (filesize when raw)
+    private long fingerprint; // Hash of the stored bytes when other files may share the blocks (0 = private)
+    private byte[] inline;    // The contents when inline (replaced, never changed in place, so readers may keep it)
+
+    public FEntry(String filename, int filesize, int firstblock) throws IllegalArgumentException{
+        this(filename, filesize, firstblock, ENCODING_RAW, filesize, 0);
+    }
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public FEntry(String filename, int filesize, int firstblock, byte encoding, int storedSize, long fingerprint) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
@@ -16,6 +29,9 @@ public class FEntry {
         this.filename = filename;
         this.filesize = filesize;
         this.firstBlock = firstblock;
+        this.encoding = encoding;
+        this.storedSize = storedSize;
+        this.fingerprint = fingerprint;
     }
 
     // Getters and Setters
@@ -30,23 +46,70 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public int getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(int filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public short getFirstBlock() {
+    public int getFirstBlock() {
 
         return firstBlock;
     }
 
-    public void setFirstBlock(short firstBlock) {
+    public void setFirstBlock(int firstBlock) {
         this.firstBlock = firstBlock;
     }
+
+    public byte getEncoding() {
+        return encoding;
+    }
+
+    public int getStoredSize() {
+        return storedSize;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    // Raw contents of filesize bytes, in blocks of its own
+    public void setRaw(int filesize) {
+        setEncoded(filesize, ENCODING_RAW, filesize);
+    }
+
+    // filesize bytes stored as storedSize bytes with encoding, in blocks of its own
+    public void setEncoded(int filesize, byte encoding, int storedSize) {
+        if (storedSize < 0) {
+            throw new IllegalArgumentException("Stored size cannot be negative.");
+        }
+        setFilesize(filesize);
+        this.encoding = encoding;
+        this.storedSize = storedSize;
+        this.fingerprint = 0;
+        this.inline = null;
+    }
+
+    public byte[] getInline() {
+        return inline;
+    }
+
+    // contents kept in the entry, with no blocks
+    public void setInline(byte[] contents) {
+        if (contents.length > Superblock.INLINE_BYTES) {
+            throw new IllegalArgumentException("Inline contents cannot be longer than " + Superblock.INLINE_BYTES + " bytes.");
+        }
+        setEncoded(contents.length, ENCODING_INLINE, contents.length);
+        this.firstBlock = -1;
+        this.inline = contents;
+    }
 }
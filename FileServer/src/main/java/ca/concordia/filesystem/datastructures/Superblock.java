@@ -0,0 +1,190 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// On-disk superblock stored at offset 0 of the disk file. It records the geometry
+// the volume was formatted with, so the tables can be located without hard-coded sizes.
+public class Superblock {
+
+    public static final int MAGIC = 0x50485846;   // "PHXF"
+    public static final int VERSION = 5;            // 3: FEntry records its encoding and stored size, 4: and its fingerprint, 5: and inline contents
+    public static final int SIZE = 64;            // Bytes reserved for the superblock
+
+    public static final int INLINE_BYTES = 64;    // Files up to this size are kept in their FEntry rather than in a block
+    public static final int FENTRY_SIZE = 32 + INLINE_BYTES; // filename (11) + filesize (4) + firstBlock (4) + encoding (1) + storedSize (4) + fingerprint (8) + inline contents
+    public static final int FNODE_SIZE = 8;       // blockIndex (4) + next (4)
+    public static final int BLOCKS_PER_FILE = 2;  // One FEntry is provisioned for every 2 blocks
+
+    private final int version;
+    private final int blockSize;
+    private final int maxFiles;
+    private final int maxBlocks;
+    private final long totalSize;
+    private final long inodeTableOffset;
+    private final long fnodeTableOffset;
+    private final long bitmapOffset;
+    private final long dataOffset;
+    private long checksum;        // CRC32 of the metadata region (FEntry table through bitmap)
+    private long checkpointSeq;   // Last journal record already applied to the tables
+    private int shardIndex;       // Place of the volume in a ShardedFileStore set
+    private int shardCount;       // Size of that set (0 = not part of one; older superblocks read as 0)
+
+    public Superblock(int version, int blockSize, int maxFiles, int maxBlocks, long totalSize) {
+        this.version = version;
+        this.blockSize = blockSize;
+        this.maxFiles = maxFiles;
+        this.maxBlocks = maxBlocks;
+        this.totalSize = totalSize;
+
+        // Layout: [superblock][FEntry table][FNode table][free-block bitmap][padding][data blocks]
+        this.inodeTableOffset = SIZE;
+        this.fnodeTableOffset = inodeTableOffset + (long) maxFiles * FENTRY_SIZE;
+        this.bitmapOffset = fnodeTableOffset + (long) maxBlocks * FNODE_SIZE;
+        this.dataOffset = alignUp(bitmapOffset + bitmapBytes(maxBlocks), blockSize);
+    }
+
+    // Derives the largest geometry that fits in totalSize bytes for the given block size
+    public static Superblock forVolume(long totalSize, int blockSize) {
+        if (blockSize < 128 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two and at least 128 bytes.");
+        }
+
+        // Each block costs its data, one FNode and one bitmap bit, plus a share of an FEntry (in eighths of a byte)
+        long perBlockBits = 8L * (BLOCKS_PER_FILE * (long) (blockSize + FNODE_SIZE) + FENTRY_SIZE) + BLOCKS_PER_FILE;
+        long estimate = Math.max(0, (totalSize - SIZE) * 8 * BLOCKS_PER_FILE / perBlockBits);
+        int maxBlocks = (int) Math.min(estimate, Integer.MAX_VALUE - 1);
+
+        // Step down until alignment padding also fits
+        while (maxBlocks > 0 && layoutSize(maxBlocks, blockSize) > totalSize) {
+            maxBlocks--;
+        }
+        if (maxBlocks < 1) {
+            throw new IllegalArgumentException("Volume of " + totalSize + " bytes is too small for block size " + blockSize + ".");
+        }
+
+        Superblock sb = new Superblock(VERSION, blockSize, filesFor(maxBlocks), maxBlocks, totalSize);
+        if (sb.getMetadataLength() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Metadata for " + maxBlocks + " blocks exceeds 2 GB, use a larger block size.");
+        }
+        return sb;
+    }
+
+    // Returns null when the buffer does not start with a superblock (unformatted disk file), and
+    // throws when its geometry could not have been written by forVolume for a disk file of
+    // diskLength bytes. Other versions are only checked for sane counts; the caller rejects them.
+    public static Superblock readFrom(ByteBuffer buf, long diskLength) throws IOException {
+        int magic = buf.getInt();
+        if (magic != MAGIC) {
+            return null;
+        }
+        int version = buf.getInt();
+        int blockSize = buf.getInt();
+        int maxFiles = buf.getInt();
+        int maxBlocks = buf.getInt();
+        long totalSize = buf.getLong();
+        if (blockSize < 128 || Integer.bitCount(blockSize) != 1 || maxFiles < 1 || maxBlocks < 1 || totalSize < 1) {
+            throw new IOException("ERROR: not a valid volume");
+        }
+        Superblock sb = new Superblock(version, blockSize, maxFiles, maxBlocks, totalSize);
+        if (version == VERSION) {
+            long end = sb.getDataOffset() + (long) maxBlocks * blockSize;
+            if (end > totalSize || end > diskLength || sb.getMetadataLength() > Integer.MAX_VALUE) {
+                throw new IOException("ERROR: not a valid volume");
+            }
+        }
+        sb.checksum = buf.getLong();
+        sb.checkpointSeq = buf.getLong();
+        sb.shardIndex = buf.getInt();
+        sb.shardCount = buf.getInt();
+        if (sb.shardCount < 0 || sb.shardIndex < 0 || sb.shardIndex >= Math.max(1, sb.shardCount)) {
+            throw new IOException("ERROR: not a valid volume");
+        }
+        return sb;
+    }
+
+    public void writeTo(ByteBuffer buf) {
+        buf.putInt(MAGIC);
+        buf.putInt(version);
+        buf.putInt(blockSize);
+        buf.putInt(maxFiles);
+        buf.putInt(maxBlocks);
+        buf.putLong(totalSize);
+        buf.putLong(checksum);
+        buf.putLong(checkpointSeq);
+        buf.putInt(shardIndex);
+        buf.putInt(shardCount);
+    }
+
+    private static int filesFor(int maxBlocks) {
+        return Math.max(1, maxBlocks / BLOCKS_PER_FILE);
+    }
+
+    private static long layoutSize(int maxBlocks, int blockSize) {
+        Superblock sb = new Superblock(VERSION, blockSize, filesFor(maxBlocks), maxBlocks, 0);
+        return sb.getDataOffset() + (long) maxBlocks * blockSize;
+    }
+
+    public static int bitmapBytes(int maxBlocks) {
+        return (maxBlocks + 7) / 8;
+    }
+
+    private static long alignUp(long value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    // Getters
+    public int getVersion() {
+        return version;
+    }
+    public int getBlockSize() {
+        return blockSize;
+    }
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+    public long getTotalSize() {
+        return totalSize;
+    }
+    public long getInodeTableOffset() {
+        return inodeTableOffset;
+    }
+    public long getFnodeTableOffset() {
+        return fnodeTableOffset;
+    }
+    public long getBitmapOffset() {
+        return bitmapOffset;
+    }
+    public long getDataOffset() {
+        return dataOffset;
+    }
+    // Bytes from the start of the FEntry table to the end of the bitmap
+    public long getMetadataLength() {
+        return bitmapOffset + bitmapBytes(maxBlocks) - inodeTableOffset;
+    }
+    public long getChecksum() {
+        return checksum;
+    }
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+    public long getCheckpointSeq() {
+        return checkpointSeq;
+    }
+    public void setCheckpointSeq(long checkpointSeq) {
+        this.checkpointSeq = checkpointSeq;
+    }
+    public int getShardIndex() {
+        return shardIndex;
+    }
+    public int getShardCount() {
+        return shardCount;
+    }
+    public void setShard(int shardIndex, int shardCount) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+}
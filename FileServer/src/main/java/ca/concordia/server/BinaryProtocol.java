@@ -0,0 +1,92 @@
+package ca.concordia.server; // Server package
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Binary framed protocol, switched on per connection by sending the text command BINARY.
+// All integers are big-endian.
+//   Request:  opcode (1) | name length (2) | payload length (4) | name (UTF-8) | payload
+//   Response: status (1) | payload length (4) | payload
+// An ERROR response carries the message as UTF-8. READ carries the raw file bytes and LIST
+// carries name length (2) + name (UTF-8) for every file. LIST with a directory path as the name
+// lists that directory instead, optionally sending limit (4) + the name to list after (UTF-8).
+// MKDIR and RMDIR take a path as the name.
+// READ_RANGE sends offset (8) + length (4) and gets those bytes back; WRITE_AT sends offset (8)
+// followed by the data. APPEND and WRITE_AT reply with the new file size (8). STATS replies with
+// the same "name value" lines as the text command, as UTF-8.
+public class BinaryProtocol {
+
+    public static final String NEGOTIATE_COMMAND = "BINARY";
+    public static final String NEGOTIATE_REPLY = "SUCCESS: Binary protocol enabled.";
+
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_READ = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_LIST = 5;
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_APPEND = 7;
+    public static final byte OP_READ_RANGE = 8;
+    public static final byte OP_WRITE_AT = 9;
+    public static final byte OP_STATS = 10;
+    public static final byte OP_MKDIR = 11;
+    public static final byte OP_RMDIR = 12;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    public static final int REQUEST_HEADER_SIZE = 7;
+    public static final int RESPONSE_HEADER_SIZE = 5;
+
+    // True when a text line asks to switch the connection to binary frames
+    public static boolean isNegotiation(String line) {
+        return line.trim().equalsIgnoreCase(NEGOTIATE_COMMAND);
+    }
+
+    public static ByteBuffer responseHeader(byte status, int length) {
+        ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+        header.put(status).putInt(length).flip();
+        return header;
+    }
+
+    public static ByteBuffer response(byte status, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(RESPONSE_HEADER_SIZE + payload.length);
+        frame.put(status).putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    public static ByteBuffer error(String message) {
+        return response(STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void writeResponse(WritableByteChannel out, byte status, byte[] payload) throws IOException {
+        ByteBuffer frame = response(status, payload);
+        while (frame.hasRemaining()) {
+            out.write(frame);
+        }
+    }
+
+    public static void writeError(WritableByteChannel out, String message) throws IOException {
+        writeResponse(out, STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String opName(byte opcode) {
+        switch (opcode) {
+            case OP_CREATE: return "CREATE";
+            case OP_WRITE: return "WRITE";
+            case OP_READ: return "READ";
+            case OP_DELETE: return "DELETE";
+            case OP_LIST: return "LIST";
+            case OP_QUIT: return "QUIT";
+            case OP_APPEND: return "APPEND";
+            case OP_READ_RANGE: return "READ_RANGE";
+            case OP_WRITE_AT: return "WRITE_AT";
+            case OP_STATS: return "STATS";
+            case OP_MKDIR: return "MKDIR";
+            case OP_RMDIR: return "RMDIR";
+            default: return "opcode " + opcode;
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package ca.concordia.server; // Server package
+
+import ca.concordia.filesystem.FileBatch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Executes one line of the text protocol, or one BinaryProtocol frame, against the filesystem
+// and writes the reply. Shared by every connection engine, so they all speak exactly the same protocol.
+// Clients may pipeline: a line starting with "#<tag> " gets "#<tag> " in front of every line of its
+// reply, so replies can be matched to requests. BATCH, then CREATE/WRITE/DELETE lines, then END runs
+// those commands together (see handleBatch).
+public class CommandHandler {
+
+    public static final String TAG_PREFIX = "#";
+
+    private static final String[] COMMANDS = {"CREATE", "WRITE", "APPEND", "WRITEAT", "READ", "DELETE", "LIST", "MKDIR", "RMDIR", "BATCH", "STATS", "QUIT"};
+    private static final int LIST_LIMIT = 1000; // Names a directory LIST returns unless it asks for a count
+
+    private final FileStore fsManager;          // Shared filesystem (one volume or several shards)
+    private final boolean logging;              // Print every command received
+
+    // Latency of every command by name (text) and by opcode (binary), filled in once and then only read
+    private final Map<String, LatencyHistogram> commandLatency = new LinkedHashMap<>();
+    private final LatencyHistogram[] frameLatency = new LatencyHistogram[BinaryProtocol.OP_RMDIR + 1];
+    private final LatencyHistogram otherLatency = new LatencyHistogram(); // Unknown commands and opcodes
+    private final long startMillis = System.currentTimeMillis();
+
+    public CommandHandler(FileStore fsManager) {
+        this(fsManager, true);
+    }
+
+    public CommandHandler(FileStore fsManager, boolean logging) {
+        this.fsManager = fsManager;
+        this.logging = logging;
+        for (String command : COMMANDS) {
+            commandLatency.put(command, new LatencyHistogram());
+        }
+        for (int op = 1; op < frameLatency.length; op++) {
+            frameLatency[op] = new LatencyHistogram();
+        }
+    }
+
+    // Server and filesystem metrics as "name value" pairs; latencies only for commands that were used
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("server.uptimeSeconds", String.valueOf((System.currentTimeMillis() - startMillis) / 1000));
+        for (Map.Entry<String, LatencyHistogram> entry : commandLatency.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                stats.put("cmd." + entry.getKey(), entry.getValue().summary());
+            }
+        }
+        for (int op = 1; op < frameLatency.length; op++) {
+            if (frameLatency[op].getCount() > 0) {
+                stats.put("bin." + BinaryProtocol.opName((byte) op), frameLatency[op].summary());
+            }
+        }
+        if (otherLatency.getCount() > 0) {
+            stats.put("cmd.other", otherLatency.summary());
+        }
+        stats.putAll(fsManager.getStats());
+        return stats;
+    }
+
+    // getStats as text, one "name value" line each
+    public String formatStats() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : getStats().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private LatencyHistogram latencyOf(String line) {
+        int space = line.indexOf(' ');
+        LatencyHistogram histogram = commandLatency.get(((space < 0) ? line : line.substring(0, space)).trim().toUpperCase());
+        return (histogram != null) ? histogram : otherLatency;
+    }
+
+    // "#<tag>" at the start of line, or null if the line is not tagged
+    public static String tagOf(String line) {
+        int space = line.indexOf(' ');
+        return (line.startsWith(TAG_PREFIX) && space > 1) ? line.substring(0, space) : null;
+    }
+
+    // True when line (tagged or not) opens a BATCH block
+    public static boolean isBatchStart(String line) {
+        String tag = tagOf(line);
+        return ((tag == null) ? line : line.substring(tag.length() + 1)).trim().equalsIgnoreCase("BATCH");
+    }
+
+    public static boolean isBatchEnd(String line) {
+        return line.trim().equalsIgnoreCase("END");
+    }
+
+    // Handles one command line. Returns false when the client asked to disconnect.
+    public boolean handle(String client, String line, PrintWriter writer) {
+        long start = System.nanoTime();
+        String tag = tagOf(line);
+        String command = (tag != null) ? line.substring(tag.length() + 1) : line;
+        boolean keepOpen = execute(client, command, (tag != null) ? new TaggedWriter(writer, tag) : writer);
+        latencyOf(command).recordSince(start);
+        return keepOpen;
+    }
+
+    // Handles a BATCH block: header is the BATCH line (it may carry a tag), commands the lines up to END.
+    // The CREATE, WRITE and DELETE commands are applied under one lock acquisition and journaled as one
+    // record; each still succeeds or fails on its own. The reply is SUCCESS:, one line per command, END.
+    public void handleBatch(String client, String header, List<String> commands, PrintWriter writer) {
+        long start = System.nanoTime();
+        try {
+            executeBatch(client, header, commands, writer);
+        } finally {
+            commandLatency.get("BATCH").recordSince(start);
+        }
+    }
+
+    private void executeBatch(String client, String header, List<String> commands, PrintWriter writer) {
+        if (logging) System.out.println("Received from " + client + ": " + header + " (" + commands.size() + " commands)"); // Log
+        String tag = tagOf(header);
+        PrintWriter out = (tag != null) ? new TaggedWriter(writer, tag) : writer;
+
+        FileBatch batch = new FileBatch();
+        int[] batchIndex = new int[commands.size()]; // Position in batch of each command, -1 if rejected
+        String[] replies = new String[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            String[] parts = commands.get(i).split(" ", 3);
+            String command = parts[0].toUpperCase();
+            batchIndex[i] = -1;
+            if (!command.equals("CREATE") && !command.equals("WRITE") && !command.equals("DELETE")) {
+                replies[i] = "ERROR: only CREATE, WRITE and DELETE can be batched.";
+            } else if (parts.length < 2) {
+                replies[i] = "ERROR: " + command + " requires a filename.";
+            } else if (tooLong(parts[1])) {
+                replies[i] = "ERROR: filename too large";
+            } else {
+                batchIndex[i] = batch.size();
+                if (command.equals("CREATE")) batch.create(parts[1]);
+                else if (command.equals("DELETE")) batch.delete(parts[1]);
+                else batch.write(parts[1], ((parts.length > 2) ? parts[2] : "").getBytes());
+            }
+        }
+
+        try {
+            fsManager.applyBatch(batch);
+        } catch (Exception e) {
+            out.println("ERROR: " + e.getMessage()); // The journal could not be written
+            return;
+        }
+
+        out.println("SUCCESS:");
+        for (int i = 0; i < commands.size(); i++) {
+            int b = batchIndex[i];
+            if (b < 0) {
+                out.println(replies[i]);
+            } else if (batch.getError(b) != null) {
+                out.println(batch.getError(b).getMessage());
+            } else if (batch.getType(b) == FileBatch.Type.CREATE) {
+                out.println("SUCCESS: File '" + batch.getFilename(b) + "' created.");
+            } else if (batch.getType(b) == FileBatch.Type.WRITE) {
+                out.println("SUCCESS: Wrote " + batch.getData(b).length + " bytes to '" + batch.getFilename(b) + "'.");
+            } else {
+                out.println("SUCCESS: File '" + batch.getFilename(b) + "' deleted.");
+            }
+        }
+        out.println("END");
+    }
+
+    private boolean execute(String client, String line, PrintWriter writer) {
+        if (logging) System.out.println("Received from " + client + ": " + line); // Log
+
+        String[] parts = line.split(" ", 3); // Split into at most 3 parts
+        String command = parts[0].toUpperCase(); // Get command keyword
+
+        try {
+            switch (command) {
+                // CREATE command
+                case "CREATE": {
+                    if (parts.length < 2) { writer.println("ERROR: CREATE requires a filename."); break; }
+                    String filename = parts[1]; // Extract filename
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    fsManager.createFile(filename); // Create file
+                    writer.println("SUCCESS: File '" + filename + "' created.");
+                    break;
+                }
+
+                // WRITE command
+                case "WRITE": {
+                    if (parts.length < 2) { writer.println("ERROR: WRITE requires a filename."); break; }
+                    String filename = parts[1]; // Filename
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    // Extract content correctly (support spaces)
+                    int prefixLength = command.length() + 1 + filename.length() + 1;
+                    String content = "";
+                    if (line.length() > prefixLength) {
+                        content = line.substring(prefixLength);
+                    }
+
+                    byte[] data = content.getBytes(); // Convert to bytes
+
+                    try {
+                        fsManager.writeFile(filename, data); // Write
+                        writer.println("SUCCESS: Wrote " + data.length + " bytes to '" + filename + "'.");
+                    } catch (Exception e) {
+                        String msg = e.getMessage().toLowerCase(); // Normalize error text
+                        if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
+                        else if (msg.contains("space")) writer.println("ERROR: file too large");
+                        else writer.println("ERROR: " + e.getMessage());
+                    }
+                    break;
+                }
+
+                // APPEND command (same content rules as WRITE)
+                case "APPEND": {
+                    if (parts.length < 2) { writer.println("ERROR: APPEND requires a filename."); break; }
+                    String filename = parts[1];
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    byte[] data = (parts.length > 2) ? parts[2].getBytes() : new byte[0];
+                    int size = fsManager.appendFile(filename, data);
+                    writer.println("SUCCESS: Appended " + data.length + " bytes to '" + filename + "' (" + size + " bytes).");
+                    break;
+                }
+
+                // WRITEAT command: WRITEAT <file> <offset> <content>
+                case "WRITEAT": {
+                    String[] args = line.split(" ", 4);
+                    if (args.length < 3) { writer.println("ERROR: WRITEAT requires a filename and an offset."); break; }
+                    String filename = args[1];
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    long offset;
+                    try {
+                        offset = Long.parseLong(args[2]);
+                    } catch (NumberFormatException e) {
+                        writer.println("ERROR: invalid offset '" + args[2] + "'."); break;
+                    }
+                    byte[] data = (args.length > 3) ? args[3].getBytes() : new byte[0];
+                    int size = fsManager.writeFile(filename, offset, data);
+                    writer.println("SUCCESS: Wrote " + data.length + " bytes to '" + filename + "' at " + offset + " (" + size + " bytes).");
+                    break;
+                }
+
+                // READ command: READ <file> [<offset> <length>]
+                case "READ": {
+                    if (parts.length < 2) { writer.println("ERROR: READ requires a filename."); break; }
+                    String filename = parts[1];
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    long offset = 0;
+                    int length = Integer.MAX_VALUE;
+                    if (parts.length > 2) {
+                        String[] range = parts[2].trim().split(" +");
+                        try {
+                            offset = Long.parseLong(range[0]);
+                            if (range.length > 1) length = Integer.parseInt(range[1]);
+                        } catch (NumberFormatException e) {
+                            writer.println("ERROR: invalid range '" + parts[2] + "'."); break;
+                        }
+                    }
+
+                    try {
+                        byte[] data = fsManager.readFile(filename, offset, length); // Read
+
+                        writer.println("SUCCESS:"); // Start output block
+                        writer.println(new String(data)); // File contents
+                        writer.println("END"); // End block
+                    } catch (Exception e) {
+                        String msg = e.getMessage().toLowerCase(); // Normalize
+                        if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
+                        else writer.println("ERROR: " + e.getMessage());
+                    }
+                    break;
+                }
+
+                // DELETE command
+                case "DELETE": {
+                    if (parts.length < 2) { writer.println("ERROR: DELETE requires a filename."); break; }
+                    String filename = parts[1];
+                    if (tooLong(filename)) { writer.println("ERROR: filename too large"); break; }
+
+                    try {
+                        fsManager.deleteFile(filename); // Delete
+                        writer.println("SUCCESS: File '" + filename + "' deleted.");
+                    } catch (Exception e) {
+                        String msg = e.getMessage().toLowerCase(); // Normalize
+                        if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
+                        else writer.println("ERROR: " + e.getMessage());
+                    }
+                    break;
+                }
+
+                // LIST command: LIST lists the flat names, LIST <dir> [<count> [<after>]] a directory
+                case "LIST": {
+                    try {
+                        String[] names;
+                        String[] args = line.trim().split(" +", 4);
+                        if (args.length < 2) {
+                            names = fsManager.listFiles(); // Fetch
+                        } else {
+                            int count = LIST_LIMIT;
+                            if (args.length > 2) {
+                                try {
+                                    count = Integer.parseInt(args[2]);
+                                } catch (NumberFormatException e) {
+                                    writer.println("ERROR: invalid count '" + args[2] + "'."); break;
+                                }
+                            }
+                            names = fsManager.listDirectory(args[1], (args.length > 3) ? args[3] : null, count);
+                        }
+
+                        writer.println("SUCCESS:"); // Begin list
+                        for (String n : names) writer.println(n); // Print each filename
+                        writer.println("END"); // End block
+                    } catch (Exception e) {
+                        writer.println("ERROR: " + e.getMessage());
+                    }
+                    break;
+                }
+
+                // MKDIR command: MKDIR <path>
+                case "MKDIR": {
+                    if (parts.length < 2) { writer.println("ERROR: MKDIR requires a path."); break; }
+                    fsManager.makeDirectory(parts[1]);
+                    writer.println("SUCCESS: Directory '" + parts[1] + "' created.");
+                    break;
+                }
+
+                // RMDIR command: RMDIR <path> (the directory must be empty)
+                case "RMDIR": {
+                    if (parts.length < 2) { writer.println("ERROR: RMDIR requires a path."); break; }
+                    fsManager.removeDirectory(parts[1]);
+                    writer.println("SUCCESS: Directory '" + parts[1] + "' removed.");
+                    break;
+                }
+
+                // STATS command: one "name value" line per metric
+                case "STATS": {
+                    writer.println("SUCCESS:");
+                    for (Map.Entry<String, String> entry : getStats().entrySet()) {
+                        writer.println(entry.getKey() + " " + entry.getValue());
+                    }
+                    writer.println("END");
+                    break;
+                }
+
+                // QUIT command
+                case "QUIT": {
+                    writer.println("SUCCESS: Disconnecting.");
+                    return false;
+                }
+                default: writer.println("ERROR: Unknown command.");
+            }
+
+        } catch (Exception e) {
+            writer.println("ERROR: " + e.getMessage()); // Fallback error
+        }
+        return true;
+    }
+
+    // Prefixes every reply line with the request's tag. Writes straight through to the wrapped writer.
+    private static class TaggedWriter extends PrintWriter {
+        private final String prefix;
+
+        TaggedWriter(PrintWriter writer, String tag) {
+            super(writer);
+            this.prefix = tag + " ";
+        }
+
+        @Override
+        public void println(String x) {
+            super.println(prefix + x);
+        }
+    }
+
+    // Handles one binary request frame and writes the response frame to out. READ streams the file
+    // straight from the disk file to out. Returns false when the client asked to disconnect.
+    // Throws only when out is unusable (including a READ that failed half-way through its payload).
+    public boolean handleFrame(String client, byte opcode, String name, byte[] payload, WritableByteChannel out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return executeFrame(client, opcode, name, payload, out);
+        } finally {
+            ((opcode > 0 && opcode < frameLatency.length) ? frameLatency[opcode] : otherLatency).recordSince(start);
+        }
+    }
+
+    private boolean executeFrame(String client, byte opcode, String name, byte[] payload, WritableByteChannel out) throws IOException {
+        if (logging) System.out.println("Received from " + client + ": " + BinaryProtocol.opName(opcode) + " " + name + " (binary)"); // Log
+
+        boolean[] streaming = {false}; // Set once a READ has started sending its payload
+        try {
+            switch (opcode) {
+                case BinaryProtocol.OP_CREATE:
+                    fsManager.createFile(name);
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    break;
+
+                case BinaryProtocol.OP_WRITE:
+                    fsManager.writeFile(name, payload); // Raw bytes, no charset conversion
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    break;
+
+                case BinaryProtocol.OP_READ:
+                    fsManager.transferFile(name, out, size -> {
+                        streaming[0] = true;
+                        return BinaryProtocol.responseHeader(BinaryProtocol.STATUS_OK, size);
+                    });
+                    break;
+
+                case BinaryProtocol.OP_APPEND: {
+                    int size = fsManager.appendFile(name, payload);
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, ByteBuffer.allocate(8).putLong(size).array());
+                    break;
+                }
+
+                case BinaryProtocol.OP_READ_RANGE: {
+                    if (payload.length != 12) {
+                        BinaryProtocol.writeError(out, "ERROR: READ_RANGE expects offset (8) and length (4).");
+                        break;
+                    }
+                    ByteBuffer range = ByteBuffer.wrap(payload);
+                    fsManager.transferFile(name, range.getLong(), range.getInt(), out, size -> {
+                        streaming[0] = true;
+                        return BinaryProtocol.responseHeader(BinaryProtocol.STATUS_OK, size);
+                    });
+                    break;
+                }
+
+                case BinaryProtocol.OP_WRITE_AT: {
+                    if (payload.length < 8) {
+                        BinaryProtocol.writeError(out, "ERROR: WRITE_AT expects an offset (8) before the data.");
+                        break;
+                    }
+                    long offset = ByteBuffer.wrap(payload).getLong();
+                    int size = fsManager.writeFile(name, offset, Arrays.copyOfRange(payload, 8, payload.length));
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, ByteBuffer.allocate(8).putLong(size).array());
+                    break;
+                }
+
+                case BinaryProtocol.OP_DELETE:
+                    fsManager.deleteFile(name);
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    break;
+
+                case BinaryProtocol.OP_LIST: {
+                    String[] listed;
+                    if (name.isEmpty()) {
+                        listed = fsManager.listFiles();
+                    } else if (payload.length == 0) {
+                        listed = fsManager.listDirectory(name, null, LIST_LIMIT);
+                    } else if (payload.length < 4) {
+                        BinaryProtocol.writeError(out, "ERROR: LIST expects a limit (4) before the name to list after.");
+                        break;
+                    } else {
+                        String after = new String(payload, 4, payload.length - 4, StandardCharsets.UTF_8);
+                        listed = fsManager.listDirectory(name, after.isEmpty() ? null : after, ByteBuffer.wrap(payload).getInt());
+                    }
+                    ByteArrayOutputStream names = new ByteArrayOutputStream();
+                    for (String n : listed) {
+                        byte[] bytes = n.getBytes(StandardCharsets.UTF_8);
+                        names.write(bytes.length >>> 8);
+                        names.write(bytes.length);
+                        names.write(bytes);
+                    }
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, names.toByteArray());
+                    break;
+                }
+
+                case BinaryProtocol.OP_MKDIR:
+                    fsManager.makeDirectory(name);
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    break;
+
+                case BinaryProtocol.OP_RMDIR:
+                    fsManager.removeDirectory(name);
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    break;
+
+                case BinaryProtocol.OP_STATS:
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, formatStats().getBytes(StandardCharsets.UTF_8));
+                    break;
+
+                case BinaryProtocol.OP_QUIT:
+                    BinaryProtocol.writeResponse(out, BinaryProtocol.STATUS_OK, new byte[0]);
+                    return false;
+
+                default:
+                    BinaryProtocol.writeError(out, "ERROR: Unknown opcode " + opcode + ".");
+            }
+        } catch (Exception e) {
+            if (streaming[0] && e instanceof IOException) {
+                throw (IOException) e; // The frame is cut short, the connection cannot continue
+            }
+            BinaryProtocol.writeError(out, String.valueOf(e.getMessage()));
+        }
+        return true;
+    }
+
+    // Flat names are limited to 11 characters, paths are checked by the filesystem
+    private static boolean tooLong(String filename) {
+        return !filename.startsWith("/") && filename.length() > 11;
+    }
+}
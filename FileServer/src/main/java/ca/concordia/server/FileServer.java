@@ -1,42 +1,207 @@
 package ca.concordia.server; // Server package
 
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileSystemConfig;
 import ca.concordia.filesystem.FileSystemManager;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class FileServer {
 
-    private final FileSystemManager fsManager;  // Shared filesystem manager
+    private final FileStore fsManager;          // Shared filesystem (one volume or several shards)
     private final int port;     // Server port
+    private final ServerConfig config;          // Connection engine options
+    private final CommandHandler handler;       // Protocol, shared by every engine
 
-    public FileServer(int port, String fileSystemName, int totalSize) throws Exception {
+    // Blocking engines (THREAD and VIRTUAL)
+    private volatile ServerSocketChannel serverSocket; // Channel-based, so READ can use transferTo on client sockets
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final Semaphore connectionSlots;
+    private ExecutorService connectionExecutor;
+
+    // NIO engine
+    private volatile NioEngine nioEngine;
+    private volatile boolean stopped = false;
+
+    private ScheduledExecutorService statsDumper; // Prints STATS every server.statsMillis (when set)
+
+    // Replication (at most one of them is set)
+    private final ReplicationPrimary replicationPrimary;   // Ships mutations to followers
+    private final ReplicationFollower replicationFollower; // Applies the primary's mutations, read-only to clients
+
+    public FileServer(int port, String fileSystemName, long totalSize) throws Exception {
+        this(port, fileSystemName, totalSize, FileSystemManager.DEFAULT_BLOCK_SIZE);
+    }
+
+    public FileServer(int port, String fileSystemName, long totalSize, int blockSize) throws Exception {
+        this(port, fileSystemName, totalSize, blockSize, ServerConfig.fromSystemProperties());
+    }
+
+    public FileServer(int port, String fileSystemName, long totalSize, int blockSize, ServerConfig config) throws Exception {
         this.port = port; // Save port
-        this.fsManager = new FileSystemManager(fileSystemName, totalSize); // Initialize fs
+        this.config = config;
+        // Initialize fs (durability, checkpoint and shard options come from -Dfs.* startup properties)
+        if (config.getFollow() != null && config.getReplicationPort() > 0) {
+            throw new IllegalArgumentException("A follower cannot also accept followers (server.follow and server.replicationPort).");
+        }
+        FileStore volume = FileStore.open(fileSystemName, totalSize, blockSize, FileSystemConfig.fromSystemProperties());
+        if (config.getFollow() != null) {
+            replicationFollower = new ReplicationFollower(volume, config.getFollow());
+            replicationPrimary = null;
+            volume = replicationFollower;
+        } else if (config.getReplicationPort() > 0) {
+            replicationPrimary = new ReplicationPrimary(volume, config.getReplicationPort(), config.getReplicationLogBytes());
+            replicationFollower = null;
+            volume = replicationPrimary;
+        } else {
+            replicationPrimary = null;
+            replicationFollower = null;
+        }
+        this.fsManager = volume;
+        this.handler = new CommandHandler(fsManager, config.isLogCommands());
+        this.connectionSlots = new Semaphore(config.getMaxConnections());
     }
 
+    // Serves clients with the configured engine until stop() is called
     public void start() {
+        try {
+            if (replicationPrimary != null) {
+                replicationPrimary.start();
+            }
+            if (replicationFollower != null) {
+                replicationFollower.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not start replication on port " + config.getReplicationPort());
+            return;
+        }
+        if (config.getStatsMillis() > 0) {
+            statsDumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stats-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            statsDumper.scheduleAtFixedRate(() -> System.out.print("=== STATS ===\n" + handler.formatStats()),
+                    config.getStatsMillis(), config.getStatsMillis(), TimeUnit.MILLISECONDS);
+        }
+        try {
+            if (config.getEngine() == ServerConfig.Engine.NIO) {
+                nioEngine = new NioEngine(port, handler, config);
+                if (!stopped) {
+                    nioEngine.run();
+                }
+            } else {
+                serveBlocking();
+            }
+        } catch (Exception e) {
+            if (!stopped) {
+                e.printStackTrace();
+                System.err.println("Could not start server on port " + port);
+            }
+        }
+    }
+
+    // Graceful shutdown: stop accepting, let in-flight commands finish, then checkpoint and close the volume
+    public void stop() throws Exception {
+        stopped = true;
+        if (statsDumper != null) {
+            statsDumper.shutdownNow();
+        }
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
+        if (serverSocket != null) {
+            serverSocket.close(); // Unblocks accept()
+        }
+        for (Socket client : clients) {
+            // Ends the handler's readLine() after the current command; its reply can still be sent
+            try { client.shutdownInput(); } catch (Exception ignored) {}
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown();
+            if (!connectionExecutor.awaitTermination(config.getShutdownMillis(), TimeUnit.MILLISECONDS)) {
+                for (Socket client : clients) {
+                    try { client.close(); } catch (Exception ignored) {}
+                }
+            }
+        }
+        fsManager.close();
+    }
+
+    private void serveBlocking() throws Exception {
+        connectionExecutor = (config.getEngine() == ServerConfig.Engine.VIRTUAL)
+                ? newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool(); // One platform thread per connection, reused once idle
+
         // Create listening socket
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port + "...");
-
-            // Accept clients forever
-            while (true) {
-                Socket clientSocket = serverSocket.accept();    // Block until client connects
-                System.out.println("New client connected: " + clientSocket);
-                new Thread(new ClientHandler(clientSocket)).start();    // Start worker thread
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            serverSocket = listener;
+            if (stopped) return;
+            System.out.println("Server started (" + config.getEngine() + "). Listening on port " + port + "...");
+
+            // Accept clients until stopped
+            while (!stopped) {
+                Socket clientSocket;
+                try {
+                    clientSocket = listener.accept().socket();    // Block until client connects
+                } catch (ClosedChannelException e) {
+                    if (stopped) break; // stop() closed the listening socket
+                    throw e;
+                }
+
+                if (!connectionSlots.tryAcquire()) {
+                    // Too many clients, turn this one away instead of queueing it
+                    try (PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)) {
+                        writer.println("ERROR: server busy, try again later.");
+                    } finally {
+                        clientSocket.close();
+                    }
+                    continue;
+                }
+
+                clientSocket.setTcpNoDelay(true); // Replies are complete messages, do not hold them back for ACKs
+                if (config.isLogCommands()) System.out.println("New client connected: " + clientSocket);
+                clients.add(clientSocket);
+                connectionExecutor.execute(new ClientHandler(clientSocket));    // Start worker thread
             }
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+    // Virtual threads are final in Java 21 and a preview in 19/20, so look them up reflectively
+    // and fall back to platform threads when the running JVM does not provide them
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.err.println("Virtual threads are not available on this JVM, using platform threads.");
+            return Executors.newCachedThreadPool();
         }
     }
 
-    // Worker thread class
+    // Worker for one blocking connection
     private class ClientHandler implements Runnable {
 
         private final Socket clientSocket; // Client connection
@@ -48,131 +213,104 @@ public class FileServer {
         @Override
         public void run() {
             try (
-                    // Read client input
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    // Send responses
-                    PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
+                    // Read client input (as bytes, the connection may switch to binary frames)
+                    InputStream input = new BufferedInputStream(clientSocket.getInputStream());
+                    // Send responses (flushed once the client has no more commands queued up)
+                    PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), false)
             ) {
 
                 String line; // Holds client command
-                while ((line = reader.readLine()) != null) { // Read until disconnect
-
-                    System.out.println("Received from " + clientSocket + ": " + line); // Log
-
-                    String[] parts = line.split(" ", 3); // Split into at most 3 parts
-                    String command = parts[0].toUpperCase(); // Get command keyword
-
-                    try {
-                        switch (command) {
-                            // CREATE command
-                            case "CREATE": {
-                                if (parts.length < 2) { writer.println("ERROR: CREATE requires a filename."); break; }
-                                String filename = parts[1]; // Extract filename
-                                if (filename.length() > 11) { writer.println("ERROR: filename too large"); break; }
-
-                                synchronized (fsManager) { fsManager.createFile(filename); } // Create file safely
-                                writer.println("SUCCESS: File '" + filename + "' created.");
-                                break;
-                            }
-
-                            // WRITE command
-                            case "WRITE": {
-                                if (parts.length < 2) { writer.println("ERROR: WRITE requires a filename."); break; }
-                                String filename = parts[1]; // Filename
-                                if (filename.length() > 11) { writer.println("ERROR: filename too large"); break; }
-
-                                // Extract content correctly (support spaces)
-                                int prefixLength = command.length() + 1 + filename.length() + 1;
-                                String content = "";
-                                if (line.length() > prefixLength) {
-                                    content = line.substring(prefixLength);
-                                }
-
-                                byte[] data = content.getBytes(); // Convert to bytes
-
-                                try {
-                                    synchronized (fsManager) { fsManager.writeFile(filename, data); } // Write safely
-                                    writer.println("SUCCESS: Wrote " + data.length + " bytes to '" + filename + "'.");
-                                } catch (Exception e) {
-                                    String msg = e.getMessage().toLowerCase(); // Normalize error text
-                                    if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
-                                    else if (msg.contains("space")) writer.println("ERROR: file too large");
-                                    else writer.println("ERROR: " + e.getMessage());
-                                }
-                                break;
-                            }
-
-                            // READ command
-                            case "READ": {
-                                if (parts.length < 2) { writer.println("ERROR: READ requires a filename."); break; }
-                                String filename = parts[1];
-                                if (filename.length() > 11) { writer.println("ERROR: filename too large"); break; }
-
-                                try {
-                                    byte[] data;
-                                    synchronized (fsManager) { data = fsManager.readFile(filename); } // Read safely
-
-                                    writer.println("SUCCESS:"); // Start output block
-                                    writer.println(new String(data)); // File contents
-                                    writer.println("END"); // End block
-                                } catch (Exception e) {
-                                    String msg = e.getMessage().toLowerCase(); // Normalize
-                                    if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
-                                    else writer.println("ERROR: " + e.getMessage());
-                                }
-                                break;
-                            }
-
-                            // DELETE command
-                            case "DELETE": {
-                                if (parts.length < 2) { writer.println("ERROR: DELETE requires a filename."); break; }
-                                String filename = parts[1];
-                                if (filename.length() > 11) { writer.println("ERROR: filename too large"); break; }
-
-                                try {
-                                    synchronized (fsManager) { fsManager.deleteFile(filename); } // Delete safely
-                                    writer.println("SUCCESS: File '" + filename + "' deleted.");
-                                } catch (Exception e) {
-                                    String msg = e.getMessage().toLowerCase(); // Normalize
-                                    if (msg.contains("not found")) writer.println("ERROR: file " + filename + " does not exist");
-                                    else writer.println("ERROR: " + e.getMessage());
-                                }
-                                break;
-                            }
-
-                            // LIST command
-                            case "LIST": {
-                                try {
-                                    String[] names;
-                                    synchronized (fsManager) { names = fsManager.listFiles(); } // Fetch safely
-
-                                    writer.println("SUCCESS:"); // Begin list
-                                    for (String n : names) writer.println(n); // Print each filename
-                                    writer.println("END"); // End block
-                                } catch (Exception e) {
-                                    writer.println("ERROR: " + e.getMessage());
-                                }
-                                break;
-                            }
-
-                            // QUIT command
-                            case "QUIT": {
-                                writer.println("SUCCESS: Disconnecting.");
-                                return;
-                            }
-                            default: writer.println("ERROR: Unknown command.");
+                while ((line = readLine(input, writer)) != null) { // Read until disconnect or an overlong line
+                    if (BinaryProtocol.isNegotiation(line)) {
+                        writer.println(BinaryProtocol.NEGOTIATE_REPLY);
+                        writer.flush();
+                        serveBinary(new DataInputStream(input));
+                        return;
+                    }
+                    if (CommandHandler.isBatchStart(line)) {
+                        List<String> commands = readBatch(input, writer);
+                        if (commands == null) {
+                            return; // Disconnected or too large
                         }
-
-                    } catch (Exception e) {
-                        writer.println("ERROR: " + e.getMessage()); // Fallback error
+                        handler.handleBatch(String.valueOf(clientSocket), line, commands, writer);
+                    } else if (!handler.handle(String.valueOf(clientSocket), line, writer)) {
+                        return; // QUIT
+                    }
+                    if (input.available() == 0) {
+                        writer.flush(); // Pipelined commands are answered with one flush
                     }
                 }
 
             } catch (Exception e) {
-                e.printStackTrace(); // Print I/O errors
+                if (!stopped) e.printStackTrace(); // Print I/O errors
             } finally {
                 try { clientSocket.close(); } catch (Exception ignored) {} // Close socket
+                clients.remove(clientSocket);
+                connectionSlots.release();
+            }
+        }
+
+        // Binary frames until QUIT or disconnect; replies go straight to the socket channel
+        private void serveBinary(DataInputStream in) throws IOException {
+            SocketChannel out = clientSocket.getChannel();
+            int opcode;
+            while ((opcode = in.read()) != -1) {
+                int nameLength = in.readUnsignedShort();
+                int payloadLength = in.readInt();
+                if (payloadLength < 0 || (long) nameLength + payloadLength > config.getMaxLineBytes()) {
+                    BinaryProtocol.writeError(out, "ERROR: request too large.");
+                    return;
+                }
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                if (!handler.handleFrame(String.valueOf(clientSocket), (byte) opcode,
+                        new String(name, StandardCharsets.UTF_8), payload, out)) {
+                    return; // QUIT
+                }
+            }
+        }
+
+        // Lines of a BATCH block up to its END, or null if the client disconnects first or the
+        // block is larger than a request may be
+        private List<String> readBatch(InputStream in, PrintWriter writer) throws IOException {
+            List<String> commands = new ArrayList<>();
+            long bytes = 0;
+            String line;
+            while ((line = readLine(in, writer)) != null) {
+                if (CommandHandler.isBatchEnd(line)) {
+                    return commands;
+                }
+                bytes += line.length() + 1;
+                if (bytes > config.getMaxLineBytes()) {
+                    writer.println("ERROR: batch too large.");
+                    return null;
+                }
+                commands.add(line);
+            }
+            return null;
+        }
+
+        // One text line (\n or \r\n), read byte by byte so nothing past it is consumed; null if
+        // the client disconnects first or the line is longer than a request may be
+        private String readLine(InputStream in, PrintWriter writer) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (line.size() >= config.getMaxLineBytes()) {
+                    writer.println("ERROR: command line too long.");
+                    writer.flush();
+                    return null;
+                }
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
             }
+            byte[] bytes = line.toByteArray();
+            int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+            return new String(bytes, 0, length, Charset.defaultCharset());
         }
     }
 }
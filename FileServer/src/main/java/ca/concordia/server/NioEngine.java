@@ -0,0 +1,425 @@
+package ca.concordia.server; // Server package
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector-based connection engine: one thread multiplexes every socket and splits input into
+// command lines (or BinaryProtocol frames once negotiated), and a bounded worker pool runs the
+// commands. A connection has at most one worker task in flight, so its replies come back in order;
+// requests that arrived together (pipelined) run in one task and are answered with one buffer.
+// Replies are built in memory, so binary READs are not zero-copy here (the blocking engines are).
+// A connection is not read while its task runs or MAX_QUEUED_REQUESTS wait, so a client that
+// sends faster than it is served is held back by TCP flow control instead of by server memory.
+public class NioEngine {
+
+    private static final int MAX_QUEUED_REQUESTS = 64;
+
+    private final int port;
+    private final CommandHandler handler;
+    private final ServerConfig config;
+    private final Charset charset = Charset.defaultCharset(); // Same as the blocking engines' readers and writers
+
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>(); // Run on the selector thread
+    private final Set<Connection> connections = new HashSet<>();
+    private volatile boolean stopping = false;
+    private final CountDownLatch finished = new CountDownLatch(1); // Released when run() returns
+
+    // Per-connection state, only touched by the selector thread
+    private class Connection {
+        final SocketChannel channel;
+        final String name;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);                // Bytes not yet split into requests
+        int scanned = 0;                                          // Bytes of in already searched for a newline
+        boolean binary = false;                                   // Switched to BinaryProtocol frames
+        final ArrayDeque<Object> requests = new ArrayDeque<>();   // Lines (String), Batches, Frames or a Reject waiting to run
+        Batch batch = null;                                       // BATCH block still being read
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();    // Replies waiting to be sent
+        boolean busy = false;        // A command is running on a worker
+        boolean inputClosed = false; // Client sent EOF or QUIT; close once everything is answered
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.name = String.valueOf(channel.socket());
+        }
+    }
+
+    // One binary request
+    private static class Frame {
+        final byte opcode;
+        final String name;
+        final byte[] payload;
+
+        Frame(byte opcode, String name, byte[] payload) {
+            this.opcode = opcode;
+            this.name = name;
+            this.payload = payload;
+        }
+    }
+
+    // Input that cannot be framed: its error is the reply after the requests queued before it, then
+    // the connection closes
+    private static class Reject {
+        final byte[] reply;
+
+        Reject(ByteBuffer reply) {
+            this.reply = new byte[reply.remaining()];
+            reply.get(this.reply);
+        }
+    }
+
+    // A BATCH block: its header line and the command lines up to END
+    private static class Batch {
+        final String header;
+        final List<String> commands = new ArrayList<>();
+        long bytes = 0;
+
+        Batch(String header) {
+            this.header = header;
+        }
+    }
+
+    public NioEngine(int port, CommandHandler handler, ServerConfig config) throws IOException {
+        this.port = port;
+        this.handler = handler;
+        this.config = config;
+        this.selector = Selector.open();
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getWorkQueue()), r -> {
+                    Thread t = new Thread(r, "nio-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Serves clients until stop() is called
+    public void run() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Server started (NIO, " + config.getWorkers() + " workers). Listening on port " + port + "...");
+
+        long deadline = Long.MAX_VALUE;
+        try {
+            while (true) {
+                if (stopping) {
+                    if (server.isOpen()) {
+                        server.close(); // Stop accepting, let in-flight commands finish
+                        deadline = System.currentTimeMillis() + config.getShutdownMillis();
+                        for (Connection conn : new ArrayList<>(connections)) {
+                            conn.requests.clear();
+                            conn.inputClosed = true;
+                            updateInterest(conn);
+                            closeIfDone(conn);
+                        }
+                    }
+                    if (connections.isEmpty() || System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                }
+
+                selector.select(stopping ? 100 : 0);
+
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(server);
+                    } else {
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) read(conn);
+                            if (key.isValid() && key.isWritable()) write(conn);
+                        } catch (IOException e) {
+                            close(conn); // Client went away
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            server.close();
+            for (Connection conn : new ArrayList<>(connections)) {
+                close(conn);
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(config.getShutdownMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selector.close();
+            finished.countDown();
+        }
+    }
+
+    // Stops accepting and waits until every in-flight command has been answered and run() returned
+    public void stop() throws InterruptedException {
+        stopping = true;
+        selector.wakeup();
+        finished.await(config.getShutdownMillis() + 1000, TimeUnit.MILLISECONDS);
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        if (connections.size() >= config.getMaxConnections()) {
+            // Best effort, the socket buffer of a fresh connection has room for one line
+            channel.write(charset.encode("ERROR: server busy, try again later." + System.lineSeparator()));
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // Replies are complete messages, do not hold them back for ACKs
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        connections.add(conn);
+        if (config.isLogCommands()) System.out.println("New client connected: " + conn.name);
+    }
+
+    private void read(Connection conn) throws IOException {
+        int n = conn.channel.read(conn.in);
+        if (n < 0) {
+            conn.inputClosed = true;
+        }
+
+        // Split off every complete line (\n or \r\n, like BufferedReader.readLine) or frame
+        conn.in.flip();
+        int start = 0;
+        while (true) {
+            if (!conn.binary) {
+                int newline = -1;
+                for (int i = Math.max(start, conn.scanned); i < conn.in.limit(); i++) {
+                    if (conn.in.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) break;
+                int end = (newline > start && conn.in.get(newline - 1) == '\r') ? newline - 1 : newline;
+                String line = decode(conn.in, start, end, charset);
+                start = newline + 1;
+                if (conn.batch != null) {
+                    if (CommandHandler.isBatchEnd(line)) {
+                        conn.requests.addLast(conn.batch);
+                        conn.batch = null;
+                        continue;
+                    }
+                    conn.batch.bytes += line.length() + 1;
+                    if (conn.batch.bytes > config.getMaxLineBytes()) {
+                        rejectInput(conn, charset.encode("ERROR: batch too large." + System.lineSeparator()));
+                        return;
+                    }
+                    conn.batch.commands.add(line);
+                } else if (CommandHandler.isBatchStart(line)) {
+                    conn.batch = new Batch(line);
+                } else {
+                    conn.requests.addLast(line);
+                    if (BinaryProtocol.isNegotiation(line)) {
+                        conn.binary = true; // Everything after this line is framed
+                    }
+                }
+            } else {
+                if (conn.in.limit() - start < BinaryProtocol.REQUEST_HEADER_SIZE) break;
+                byte opcode = conn.in.get(start);
+                int nameLength = conn.in.getShort(start + 1) & 0xFFFF;
+                int payloadLength = conn.in.getInt(start + 3);
+                if (payloadLength < 0 || (long) nameLength + payloadLength > config.getMaxLineBytes()) {
+                    rejectInput(conn, BinaryProtocol.error("ERROR: request too large."));
+                    return;
+                }
+                int total = BinaryProtocol.REQUEST_HEADER_SIZE + nameLength + payloadLength;
+                if (conn.in.limit() - start < total) break;
+                int nameStart = start + BinaryProtocol.REQUEST_HEADER_SIZE;
+                byte[] payload = new byte[payloadLength];
+                conn.in.get(nameStart + nameLength, payload);
+                conn.requests.addLast(new Frame(opcode, decode(conn.in, nameStart, nameStart + nameLength, StandardCharsets.UTF_8), payload));
+                start += total;
+            }
+        }
+        conn.in.position(start);
+        conn.in.compact();
+        conn.scanned = conn.binary ? 0 : conn.in.position();
+
+        if (!conn.in.hasRemaining()) {
+            if (conn.in.capacity() >= config.getMaxLineBytes() + BinaryProtocol.REQUEST_HEADER_SIZE) {
+                rejectInput(conn, charset.encode("ERROR: command line too long." + System.lineSeparator()));
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(conn.in.capacity() * 2L,
+                    config.getMaxLineBytes() + BinaryProtocol.REQUEST_HEADER_SIZE));
+            conn.in.flip();
+            bigger.put(conn.in);
+            conn.in = bigger;
+        }
+
+        if (conn.inputClosed && !conn.binary && conn.batch == null && conn.in.position() > 0 && n < 0) {
+            // Last line without a newline, readLine() would return it too
+            conn.in.flip();
+            conn.requests.addLast(decode(conn.in, 0, conn.in.limit(), charset));
+            conn.in.clear();
+            conn.scanned = 0;
+        }
+
+        dispatch(conn);
+        updateInterest(conn);
+        closeIfDone(conn);
+    }
+
+    private static String decode(ByteBuffer buf, int start, int end, Charset charset) {
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, charset);
+    }
+
+    // Answers the requests already queued, then reply, and drops the connection; the rest of its
+    // input cannot be framed
+    private void rejectInput(Connection conn, ByteBuffer reply) {
+        conn.requests.addLast(new Reject(reply));
+        conn.batch = null;
+        conn.in.clear();
+        conn.scanned = 0;
+        conn.inputClosed = true;
+        dispatch(conn);
+        updateInterest(conn);
+        closeIfDone(conn);
+    }
+
+    // Hands every queued request to one worker task unless one is already running for this connection
+    private void dispatch(Connection conn) {
+        if (conn.busy || conn.requests.isEmpty() || stopping) return;
+        List<Object> pipeline = new ArrayList<>(conn.requests);
+        conn.requests.clear();
+        try {
+            workers.execute(() -> {
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                boolean keepOpen = true;
+                for (Object request : pipeline) {
+                    keepOpen = process(conn, request, reply);
+                    if (!keepOpen) break; // QUIT, the rest is not answered
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(reply.toByteArray());
+                boolean open = keepOpen;
+                completions.add(() -> complete(conn, bytes, open));
+                selector.wakeup();
+            });
+            conn.busy = true;
+        } catch (RejectedExecutionException e) {
+            // Every worker is busy and the queue is full
+            for (Object request : pipeline) {
+                if (request instanceof Reject) {
+                    conn.out.addLast(ByteBuffer.wrap(((Reject) request).reply));
+                } else {
+                    conn.out.addLast(request instanceof Frame
+                            ? BinaryProtocol.error("ERROR: server busy, try again later.")
+                            : charset.encode("ERROR: server busy, try again later." + System.lineSeparator()));
+                }
+            }
+        }
+    }
+
+    // Worker: runs one request and appends its reply. Returns false when the connection should close.
+    private boolean process(Connection conn, Object request, ByteArrayOutputStream reply) {
+        if (request instanceof Reject) {
+            reply.writeBytes(((Reject) request).reply);
+            return false;
+        }
+        if (request instanceof Frame) {
+            Frame frame = (Frame) request;
+            try {
+                return handler.handleFrame(conn.name, frame.opcode, frame.name, frame.payload, Channels.newChannel(reply));
+            } catch (IOException e) {
+                return false; // READ failed half-way, the partial frame is the last reply
+            }
+        }
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(reply, charset));
+        boolean keepOpen = true;
+        if (request instanceof Batch) {
+            Batch batch = (Batch) request;
+            handler.handleBatch(conn.name, batch.header, batch.commands, writer);
+        } else if (BinaryProtocol.isNegotiation((String) request)) {
+            writer.println(BinaryProtocol.NEGOTIATE_REPLY);
+        } else {
+            keepOpen = handler.handle(conn.name, (String) request, writer);
+        }
+        writer.flush();
+        return keepOpen;
+    }
+
+    // Selector thread: queues a finished command's reply and starts the next line
+    private void complete(Connection conn, ByteBuffer reply, boolean keepOpen) {
+        conn.busy = false;
+        if (!conn.channel.isOpen()) return;
+        conn.out.addLast(reply);
+        if (!keepOpen) {
+            conn.requests.clear();
+            conn.inputClosed = true;
+        }
+        dispatch(conn);
+        updateInterest(conn);
+    }
+
+    // Sends every queued reply with one gathering write; what the socket buffer cannot take waits for OP_WRITE
+    private void write(Connection conn) throws IOException {
+        if (!conn.out.isEmpty()) {
+            conn.channel.write(conn.out.toArray(new ByteBuffer[0]));
+            while (!conn.out.isEmpty() && !conn.out.peekFirst().hasRemaining()) {
+                conn.out.pollFirst();
+            }
+        }
+        updateInterest(conn);
+        closeIfDone(conn);
+    }
+
+    private void updateInterest(Connection conn) {
+        if (!conn.key.isValid()) return;
+        int ops = 0;
+        if (!conn.inputClosed && !conn.busy && conn.requests.size() < MAX_QUEUED_REQUESTS) ops |= SelectionKey.OP_READ;
+        if (!conn.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        conn.key.interestOps(ops);
+    }
+
+    private void closeIfDone(Connection conn) {
+        if (conn.inputClosed && !conn.busy && conn.requests.isEmpty() && conn.out.isEmpty()) {
+            close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        connections.remove(conn);
+        conn.key.cancel();
+        try { conn.channel.close(); } catch (IOException ignored) {} // Close socket
+    }
+}
@@ -0,0 +1,332 @@
+package ca.concordia.server; // Server package
+
+import ca.concordia.filesystem.FileBatch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.server.ReplicationProtocol.Mutation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+// The FileStore of a follower server: READ and LIST are served from the local volume, which a
+// background thread keeps in step with the primary's mutation stream (see ReplicationProtocol).
+// Clients cannot change files here. The thread reconnects when the primary goes away and resumes
+// where it left off if the primary still has the mutations it missed. Applied mutations are
+// acknowledged whenever the stream goes quiet, which is how the primary measures the lag.
+public class ReplicationFollower implements FileStore {
+
+    private static final long RETRY_MILLIS = 1000;
+    private static final int ACK_EVERY = 256;  // Mutations applied between acks while the stream is busy
+
+    private final FileStore store;
+    private final String host;
+    private final int port;
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong applyErrors = new AtomicLong();
+    private volatile String state = "connecting";
+    private volatile long logId = 0;       // The primary log appliedSeq belongs to (0 = none, a snapshot is needed)
+    private volatile long appliedSeq = 0;
+    private volatile long primarySeq = 0;
+    private volatile Socket socket;
+    private volatile boolean stopped = false;
+    private Thread follower;
+
+    // primary is the primary's host:port replication address
+    public ReplicationFollower(FileStore store, String primary) {
+        this.store = store;
+        int colon = primary.lastIndexOf(':');
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+    }
+
+    // Starts following the primary in the background
+    public void start() {
+        follower = new Thread(this::follow, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    private void follow() {
+        while (!stopped) {
+            try (Socket connection = new Socket()) {
+                state = "connecting";
+                connection.connect(new InetSocketAddress(host, port), (int) RETRY_MILLIS);
+                connection.setTcpNoDelay(true);
+                socket = connection;
+                System.out.println("Replication: following " + host + ":" + port);
+                stream(new DataInputStream(new BufferedInputStream(connection.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())));
+            } catch (IOException e) {
+                if (!stopped && !state.equals("connecting")) {
+                    System.out.println("Replication: lost the primary (" + e + "), reconnecting");
+                }
+            }
+            if (!stopped) {
+                state = "connecting";
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void stream(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeLong(logId);
+        out.writeLong(appliedSeq);
+        out.flush();
+        state = (logId == 0) ? "snapshot" : "streaming";
+
+        int sinceAck = 0;
+        while (!stopped) {
+            Mutation mutation = Mutation.read(in);
+            primarySeq = Math.max(primarySeq, mutation.seq);
+            switch (mutation.type) {
+                case ReplicationProtocol.RESET:
+                    // Nothing of this log is applied until the snapshot ends, so the acks sent while
+                    // it loads must not carry the position reached in an earlier one
+                    state = "snapshot";
+                    logId = 0;
+                    appliedSeq = 0;
+                    primarySeq = mutation.seq;
+                    clear();
+                    break;
+                case ReplicationProtocol.SNAPSHOT_END:
+                    logId = mutation.offset;
+                    appliedSeq = mutation.seq;
+                    state = "streaming";
+                    System.out.println("Replication: snapshot applied, streaming from seq " + appliedSeq);
+                    break;
+                case ReplicationProtocol.HEARTBEAT:
+                    break;
+                default:
+                    apply(mutation);
+                    applied.incrementAndGet();
+                    if (logId != 0) {
+                        appliedSeq = mutation.seq;
+                    }
+            }
+            if (++sinceAck >= ACK_EVERY || in.available() == 0) {
+                out.writeLong(appliedSeq);
+                out.flush();
+                sinceAck = 0;
+            }
+        }
+    }
+
+    // Applies one mutation so that applying it again, or to a newer version of the file, is harmless
+    private void apply(Mutation mutation) {
+        try {
+            switch (mutation.type) {
+                case ReplicationProtocol.CREATE:
+                    if (!exists(mutation.filename)) {
+                        store.createFile(mutation.filename);
+                    }
+                    break;
+                case ReplicationProtocol.WRITE:
+                    if (!exists(mutation.filename)) {
+                        store.createFile(mutation.filename);
+                    }
+                    store.writeFile(mutation.filename, mutation.data);
+                    break;
+                case ReplicationProtocol.WRITE_AT:
+                    store.writeFile(mutation.filename, mutation.offset, mutation.data);
+                    break;
+                case ReplicationProtocol.DELETE:
+                    if (exists(mutation.filename)) {
+                        store.deleteFile(mutation.filename);
+                    }
+                    break;
+                case ReplicationProtocol.MKDIR:
+                    if (!isDirectory(mutation.filename)) {
+                        store.makeDirectory(mutation.filename);
+                    }
+                    break;
+                case ReplicationProtocol.RMDIR:
+                    if (isDirectory(mutation.filename)) {
+                        store.removeDirectory(mutation.filename);
+                    }
+                    break;
+                default:
+                    throw new Exception("ERROR: unknown replication frame " + mutation.type);
+            }
+        } catch (Exception e) {
+            // A later mutation in the stream brings the file back in step (a replayed write past
+            // the end of a file the snapshot has already shortened, for example)
+            applyErrors.incrementAndGet();
+        }
+    }
+
+    private boolean exists(String filename) {
+        try {
+            store.readFile(filename, 0, 0);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean isDirectory(String path) {
+        try {
+            store.listDirectory(path, null, 0);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void clear() {
+        try {
+            for (String filename : store.listFiles()) {
+                try {
+                    store.deleteFile(filename);
+                } catch (Exception e) {
+                    applyErrors.incrementAndGet();
+                }
+            }
+            clearDirectory("/");
+        } catch (Exception e) {
+            applyErrors.incrementAndGet();
+        }
+    }
+
+    // Removes everything below dir, deepest first
+    private void clearDirectory(String dir) throws Exception {
+        String[] names;
+        while ((names = store.listDirectory(dir, null, ACK_EVERY)).length > 0) {
+            for (String name : names) {
+                try {
+                    if (name.endsWith("/")) {
+                        clearDirectory(dir + name);
+                        store.removeDirectory(dir + name.substring(0, name.length() - 1));
+                    } else {
+                        store.deleteFile(dir + name);
+                    }
+                } catch (Exception e) {
+                    applyErrors.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Exception readOnly() {
+        return new Exception("ERROR: read-only replica, send changes to the primary");
+    }
+
+    @Override
+    public void createFile(String filename) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void deleteFile(String filename) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public int writeFile(String filename, long offset, byte[] data) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public int appendFile(String filename, byte[] data) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void applyBatch(FileBatch batch) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void makeDirectory(String path) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeDirectory(String path) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public byte[] readFile(String filename) throws Exception {
+        return store.readFile(filename);
+    }
+
+    @Override
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        return store.readFile(filename, offset, length);
+    }
+
+    @Override
+    public int transferFile(String filename, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return store.transferFile(filename, out, header);
+    }
+
+    @Override
+    public int transferFile(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return store.transferFile(filename, offset, length, out, header);
+    }
+
+    @Override
+    public String[] listFiles() throws Exception {
+        return store.listFiles();
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        return store.listDirectory(path, after, limit);
+    }
+
+    // The volume's metrics, then how far this follower is behind the latest sequence number it
+    // has heard of (the primary reports the lag in time)
+    @Override
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>(store.getStats());
+        stats.put("replication.role", "follower");
+        stats.put("replication.primary", host + ":" + port);
+        stats.put("replication.state", state);
+        stats.put("replication.appliedSeq", String.valueOf(appliedSeq));
+        stats.put("replication.primarySeq", String.valueOf(primarySeq));
+        stats.put("replication.lagMutations", String.valueOf(Math.max(0, primarySeq - appliedSeq)));
+        stats.put("replication.applied", String.valueOf(applied.get()));
+        stats.put("replication.applyErrors", String.valueOf(applyErrors.get()));
+        return stats;
+    }
+
+    // Stops following (after the mutation being applied), then closes the volume
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        Socket connection = socket;
+        if (connection != null) {
+            connection.close();
+        }
+        if (follower != null) {
+            follower.interrupt();
+            try {
+                follower.join(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,542 @@
+package ca.concordia.server; // Server package
+
+import ca.concordia.filesystem.FileBatch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.server.ReplicationProtocol.Mutation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+// The FileStore of a primary server: every successful create, write, append and delete is also
+// recorded in an in-memory log with a sequence number and shipped to the followers connected to
+// the replication port (see ReplicationProtocol). A mutation is applied and logged under a lock
+// striped by filename, so each file's mutations are logged in the order they were applied.
+// Creating and removing paths is also serialized by treeLock, so a directory is logged before
+// anything in it and removed after everything in it.
+// The log keeps about replicationLogBytes of the latest mutations; a follower that falls further
+// behind than that, or that connects for the first time, gets a snapshot of every file instead.
+// Reads go straight to the volume.
+public class ReplicationPrimary implements FileStore {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int SEND_BATCH = 256;          // Mutations written per flush
+    private static final long HEARTBEAT_MILLIS = 1000;   // Sent when there is nothing else to send
+
+    private final FileStore store;
+    private final int port;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantLock treeLock = new ReentrantLock(); // Taken after a stripe
+    private final Log log;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+    private volatile ServerSocket listener;
+    private volatile boolean stopped = false;
+
+    public ReplicationPrimary(FileStore store, int port, long logBytes) {
+        this.store = store;
+        this.port = port;
+        this.log = new Log(logBytes);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // Starts accepting followers on the replication port
+    public void start() throws IOException {
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replication: accepting followers on port " + port);
+    }
+
+    private void acceptFollowers() {
+        while (!stopped) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket, sessionIds.incrementAndGet());
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Replication: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(String filename) {
+        return locks[Math.floorMod((filename == null) ? 0 : filename.hashCode(), LOCK_STRIPES)];
+    }
+
+    @Override
+    public void createFile(String filename) throws Exception {
+        ReentrantLock lock = lockFor(filename);
+        lock.lock();
+        boolean path = isPath(filename);
+        if (path) {
+            treeLock.lock();
+        }
+        try {
+            store.createFile(filename);
+            log.append(ReplicationProtocol.CREATE, filename, 0, null);
+        } finally {
+            if (path) {
+                treeLock.unlock();
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteFile(String filename) throws Exception {
+        ReentrantLock lock = lockFor(filename);
+        lock.lock();
+        boolean path = isPath(filename);
+        if (path) {
+            treeLock.lock();
+        }
+        try {
+            store.deleteFile(filename);
+            log.append(ReplicationProtocol.DELETE, filename, 0, null);
+        } finally {
+            if (path) {
+                treeLock.unlock();
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void makeDirectory(String path) throws Exception {
+        ReentrantLock lock = lockFor(path);
+        lock.lock();
+        treeLock.lock();
+        try {
+            store.makeDirectory(path);
+            log.append(ReplicationProtocol.MKDIR, path, 0, null);
+        } finally {
+            treeLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeDirectory(String path) throws Exception {
+        ReentrantLock lock = lockFor(path);
+        lock.lock();
+        treeLock.lock();
+        try {
+            store.removeDirectory(path);
+            log.append(ReplicationProtocol.RMDIR, path, 0, null);
+        } finally {
+            treeLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    private static boolean isPath(String filename) {
+        return filename != null && filename.startsWith("/");
+    }
+
+    @Override
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        ReentrantLock lock = lockFor(filename);
+        lock.lock();
+        try {
+            store.writeFile(filename, contents);
+            log.append(ReplicationProtocol.WRITE, filename, 0, contents);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int writeFile(String filename, long offset, byte[] data) throws Exception {
+        ReentrantLock lock = lockFor(filename);
+        lock.lock();
+        try {
+            int size = store.writeFile(filename, offset, data);
+            log.append(ReplicationProtocol.WRITE_AT, filename, offset, data);
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Shipped as a write at the old end of the file, so applying it again changes nothing
+    @Override
+    public int appendFile(String filename, byte[] data) throws Exception {
+        ReentrantLock lock = lockFor(filename);
+        lock.lock();
+        try {
+            int size = store.appendFile(filename, data);
+            log.append(ReplicationProtocol.WRITE_AT, filename, size - data.length, data);
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Locks the stripes of every name in the batch (in index order), applies it and logs the
+    // operations that succeeded. If the batch fails as a whole, part of it may have been applied,
+    // so the log is dropped and every follower resynchronizes from a snapshot.
+    @Override
+    public void applyBatch(FileBatch batch) throws Exception {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            stripes.add(Math.floorMod((batch.getFilename(i) == null) ? 0 : batch.getFilename(i).hashCode(), LOCK_STRIPES));
+        }
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        try {
+            try {
+                store.applyBatch(batch);
+            } catch (Exception e) {
+                log.truncate();
+                throw e;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.getError(i) != null) {
+                    continue;
+                }
+                switch (batch.getType(i)) {
+                    case CREATE: log.append(ReplicationProtocol.CREATE, batch.getFilename(i), 0, null); break;
+                    case WRITE: log.append(ReplicationProtocol.WRITE, batch.getFilename(i), 0, batch.getData(i)); break;
+                    case DELETE: log.append(ReplicationProtocol.DELETE, batch.getFilename(i), 0, null); break;
+                }
+            }
+        } finally {
+            for (int stripe : stripes.descendingSet()) {
+                locks[stripe].unlock();
+            }
+        }
+    }
+
+    @Override
+    public byte[] readFile(String filename) throws Exception {
+        return store.readFile(filename);
+    }
+
+    @Override
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        return store.readFile(filename, offset, length);
+    }
+
+    @Override
+    public int transferFile(String filename, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return store.transferFile(filename, out, header);
+    }
+
+    @Override
+    public int transferFile(String filename, long offset, int length, WritableByteChannel out, IntFunction<ByteBuffer> header) throws Exception {
+        return store.transferFile(filename, offset, length, out, header);
+    }
+
+    @Override
+    public String[] listFiles() throws Exception {
+        return store.listFiles();
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        return store.listDirectory(path, after, limit);
+    }
+
+    // The volume's metrics, then the log and every follower's lag (in mutations and in
+    // milliseconds since the oldest mutation it has not acknowledged was logged)
+    @Override
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>(store.getStats());
+        long now = System.currentTimeMillis();
+        long lastSeq = log.lastSeq();
+        stats.put("replication.role", "primary");
+        stats.put("replication.port", String.valueOf(port));
+        stats.put("replication.seq", String.valueOf(lastSeq));
+        stats.put("replication.logMutations", String.valueOf(log.size()));
+        stats.put("replication.logBytes", String.valueOf(log.bytes()));
+        stats.put("replication.followers", String.valueOf(sessions.size()));
+
+        long maxLagMutations = 0;
+        long maxLagMillis = 0;
+        Map<String, String> perFollower = new LinkedHashMap<>();
+        for (Session session : sessions) {
+            long acked = session.ackedSeq;
+            long lagMutations = Math.max(0, lastSeq - acked);
+            long lagMillis = (lagMutations == 0) ? 0 : Math.max(0, now - log.timeOf(acked + 1));
+            maxLagMutations = Math.max(maxLagMutations, lagMutations);
+            maxLagMillis = Math.max(maxLagMillis, lagMillis);
+            String prefix = "replication.follower" + session.id + ".";
+            perFollower.put(prefix + "address", session.address);
+            perFollower.put(prefix + "state", session.state);
+            perFollower.put(prefix + "appliedSeq", String.valueOf(acked));
+            perFollower.put(prefix + "lagMutations", String.valueOf(lagMutations));
+            perFollower.put(prefix + "lagMillis", String.valueOf(lagMillis));
+        }
+        stats.put("replication.maxLagMutations", String.valueOf(maxLagMutations));
+        stats.put("replication.maxLagMillis", String.valueOf(maxLagMillis));
+        stats.putAll(perFollower);
+        return stats;
+    }
+
+    // Disconnects the followers, then closes the volume
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        if (listener != null) {
+            listener.close();
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+        store.close();
+    }
+
+    // The latest mutations in sequence order. Entries before start are trimmed; the list is
+    // compacted once they make up half of it.
+    private static class Log {
+        private final long maxBytes;
+        private final long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE); // New at every start
+        private final List<Mutation> entries = new ArrayList<>();
+        private int start = 0;          // Index of the oldest kept mutation
+        private long firstSeq = 1;      // Its sequence number
+        private long lastSeq = 0;
+        private long bytes = 0;
+
+        Log(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized void append(byte type, String filename, long offset, byte[] data) {
+            Mutation mutation = new Mutation(type, ++lastSeq, System.currentTimeMillis(), offset, filename, data);
+            entries.add(mutation);
+            bytes += mutation.size();
+            while (bytes > maxBytes && entries.size() - start > 1) {
+                bytes -= entries.get(start).size();
+                entries.set(start++, null);
+                firstSeq++;
+            }
+            if (start > 1024 && start > entries.size() / 2) {
+                entries.subList(0, start).clear();
+                start = 0;
+            }
+            notifyAll();
+        }
+
+        // Forgets every mutation and skips a sequence number, so no follower can resume
+        synchronized void truncate() {
+            entries.clear();
+            start = 0;
+            bytes = 0;
+            lastSeq++;
+            firstSeq = lastSeq + 1;
+            notifyAll();
+        }
+
+        synchronized long lastSeq() {
+            return lastSeq;
+        }
+        synchronized int size() {
+            return entries.size() - start;
+        }
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        // True when every mutation after seq is still here
+        synchronized boolean canResumeAfter(long seq) {
+            return seq <= lastSeq && seq + 1 >= firstSeq;
+        }
+
+        // When mutation seq was logged (the oldest kept one's time if it was trimmed)
+        synchronized long timeOf(long seq) {
+            if (entries.size() == start) {
+                return System.currentTimeMillis();
+            }
+            long index = start + Math.max(0, Math.min(seq, lastSeq) - firstSeq);
+            return entries.get((int) index).timeMillis;
+        }
+
+        // Up to max mutations after seq, waiting up to waitMillis for one to be logged; null if
+        // some of them have been trimmed
+        synchronized List<Mutation> after(long seq, int max, long waitMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + waitMillis;
+            while (seq == lastSeq && seq + 1 >= firstSeq) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return List.of();
+                }
+                wait(left);
+            }
+            if (!canResumeAfter(seq)) {
+                return null;
+            }
+            int from = start + (int) (seq + 1 - firstSeq);
+            int to = (int) Math.min(entries.size(), (long) from + max);
+            return new ArrayList<>(entries.subList(from, to));
+        }
+    }
+
+    // One connected follower: a sender thread streams the log, an ack thread records how far the
+    // follower has applied it
+    private class Session {
+        final Socket socket;
+        final int id;
+        final String address;
+        volatile String state = "connected";
+        volatile long ackedSeq = 0;
+
+        Session(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+            this.address = socket.getRemoteSocketAddress().toString();
+        }
+
+        void start() {
+            Thread sender = new Thread(this::send, "replication-send-" + id);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        private void send() {
+            System.out.println("Replication: follower " + id + " connected from " + address);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                long followerLogId = in.readLong();
+                long next = in.readLong();   // Last mutation the follower applied
+                boolean resume = followerLogId == log.id && log.canResumeAfter(next);
+                ackedSeq = resume ? next : 0;
+
+                Thread acks = new Thread(() -> readAcks(in), "replication-acks-" + id);
+                acks.setDaemon(true);
+                acks.start();
+
+                if (!resume) {
+                    next = sendSnapshot(out);
+                }
+                state = "streaming";
+                while (!stopped) {
+                    List<Mutation> batch = log.after(next, SEND_BATCH, HEARTBEAT_MILLIS);
+                    if (batch == null) {
+                        next = sendSnapshot(out); // Fell behind the log
+                        state = "streaming";
+                        continue;
+                    }
+                    if (batch.isEmpty()) {
+                        new Mutation(ReplicationProtocol.HEARTBEAT, log.lastSeq(), System.currentTimeMillis(), 0, null, null).write(out);
+                    }
+                    for (Mutation mutation : batch) {
+                        mutation.write(out);
+                        next = mutation.seq;
+                    }
+                    out.flush();
+                }
+            } catch (Exception e) {
+                if (!stopped) {
+                    System.out.println("Replication: follower " + id + " disconnected (" + e.getMessage() + ")");
+                }
+            } finally {
+                close();
+            }
+        }
+
+        // Sends every file as it is now and returns the sequence number the stream continues after.
+        // Mutations logged while the snapshot is read are sent again afterwards.
+        private long sendSnapshot(DataOutputStream out) throws Exception {
+            state = "snapshot";
+            long seq = log.lastSeq();
+            long now = System.currentTimeMillis();
+            new Mutation(ReplicationProtocol.RESET, seq, now, 0, null, null).write(out);
+            int files = 0;
+            for (String filename : store.listFiles()) {
+                byte[] contents;
+                try {
+                    contents = store.readFile(filename);
+                } catch (Exception e) {
+                    continue; // Deleted since the listing, its DELETE follows in the stream
+                }
+                new Mutation(ReplicationProtocol.WRITE, seq, now, 0, filename, contents).write(out);
+                files++;
+            }
+            files += sendDirectory(out, "/", seq, now);
+            new Mutation(ReplicationProtocol.SNAPSHOT_END, seq, now, log.id, null, null).write(out);
+            out.flush();
+            System.out.println("Replication: sent a snapshot of " + files + " files at seq " + seq + " to follower " + id);
+            return seq;
+        }
+
+        // Sends the files and directories below dir, a page of names at a time, and returns the
+        // number of files
+        private int sendDirectory(DataOutputStream out, String dir, long seq, long now) throws Exception {
+            int files = 0;
+            String after = null;
+            while (true) {
+                String[] names;
+                try {
+                    names = store.listDirectory(dir, after, SEND_BATCH);
+                } catch (Exception e) {
+                    return files; // Removed since its parent was listed, its RMDIR follows in the stream
+                }
+                for (String name : names) {
+                    String path = dir + name;
+                    if (name.endsWith("/")) {
+                        new Mutation(ReplicationProtocol.MKDIR, seq, now, 0, path.substring(0, path.length() - 1), null).write(out);
+                        files += sendDirectory(out, path, seq, now);
+                        continue;
+                    }
+                    byte[] contents;
+                    try {
+                        contents = store.readFile(path);
+                    } catch (Exception e) {
+                        continue;
+                    }
+                    new Mutation(ReplicationProtocol.WRITE, seq, now, 0, path, contents).write(out);
+                    files++;
+                }
+                if (names.length < SEND_BATCH) {
+                    return files;
+                }
+                after = names[names.length - 1];
+            }
+        }
+
+        private void readAcks(DataInputStream in) {
+            try {
+                while (!stopped) {
+                    ackedSeq = in.readLong();
+                }
+            } catch (IOException e) {
+                close(); // Also ends the sender
+            }
+        }
+
+        void close() {
+            if (sessions.remove(this)) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
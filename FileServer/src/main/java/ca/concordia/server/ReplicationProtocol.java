@@ -0,0 +1,82 @@
+package ca.concordia.server; // Server package
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Log shipping between a primary FileServer (-Dserver.replicationPort) and its followers
+// (-Dserver.follow=host:port). All integers are big-endian.
+//   Follower hello: log id (8) | last applied sequence number (8)
+//   Primary frame:  type (1) | seq (8) | time millis (8) | offset (8) | name length (2) | data length (4) | name (UTF-8) | data
+//   Follower ack:   applied seq (8)
+// The primary resumes a follower whose log id matches and whose next mutation is still in its
+// log. Otherwise it sends RESET, every directory as a MKDIR (parents first) and every file as a
+// WRITE, then SNAPSHOT_END carrying its log id in
+// offset. Mutations are then sent in sequence order; HEARTBEAT carries the primary's latest seq
+// when there is nothing to send. Applying a mutation twice, or on top of a newer snapshot of the
+// file, ends in the same state, so a follower may see a mutation the snapshot already contains.
+public class ReplicationProtocol {
+
+    public static final byte CREATE = 1;
+    public static final byte WRITE = 2;       // Whole contents (creates the file if needed)
+    public static final byte WRITE_AT = 3;    // data at offset (appends are sent this way too)
+    public static final byte DELETE = 4;
+    public static final byte RESET = 5;       // Drop every file, a snapshot follows
+    public static final byte SNAPSHOT_END = 6;
+    public static final byte HEARTBEAT = 7;
+    public static final byte MKDIR = 8;
+    public static final byte RMDIR = 9;
+
+    // One frame from the primary
+    public static class Mutation {
+        final byte type;
+        final long seq;
+        final long timeMillis;
+        final long offset;
+        final String filename;
+        final byte[] data;
+
+        Mutation(byte type, long seq, long timeMillis, long offset, String filename, byte[] data) {
+            this.type = type;
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.offset = offset;
+            this.filename = (filename == null) ? "" : filename;
+            this.data = (data == null) ? new byte[0] : data;
+        }
+
+        // Bytes kept while the mutation is in the primary's log
+        int size() {
+            return 64 + filename.length() + data.length;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(type);
+            out.writeLong(seq);
+            out.writeLong(timeMillis);
+            out.writeLong(offset);
+            out.writeShort(name.length);
+            out.writeInt(data.length);
+            out.write(name);
+            out.write(data);
+        }
+
+        static Mutation read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            long seq = in.readLong();
+            long timeMillis = in.readLong();
+            long offset = in.readLong();
+            byte[] name = new byte[in.readUnsignedShort()];
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid replication frame length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(name);
+            in.readFully(data);
+            return new Mutation(type, seq, timeMillis, offset, new String(name, StandardCharsets.UTF_8), data);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ca.concordia.server;
+
+// Connection handling options for a FileServer. The defaults keep the original behaviour:
+// one platform thread per connected client.
+public class ServerConfig {
+
+    // How accepted connections are served
+    public enum Engine {
+        THREAD,   // Blocking I/O, one platform thread per connection
+        VIRTUAL,  // Blocking I/O, one virtual thread per connection (falls back to platform threads)
+        NIO       // One selector thread for all connections, commands run on a fixed worker pool
+    }
+
+    private Engine engine = Engine.THREAD;
+    private int maxConnections = 10_000;                                   // Further clients are turned away
+    private int workers = Runtime.getRuntime().availableProcessors();      // NIO worker threads
+    private int workQueue = 1024;                                          // NIO commands waiting for a worker
+    private int maxLineBytes = 16 * 1024 * 1024;                           // Longest command line or binary request accepted
+    private long shutdownMillis = 10_000;                                  // How long stop() lets in-flight commands finish
+    private boolean logCommands = true;                                    // Print every command received
+    private long statsMillis = 0;                                          // Print STATS this often (0 = never)
+    private int replicationPort = 0;                                       // Followers connect here (0 = not a primary)
+    private long replicationLogBytes = 64L * 1024 * 1024;                  // Mutations kept for followers to catch up from
+    private String follow = null;                                          // host:port of the primary to follow (read-only replica)
+
+    // Reads -Dserver.engine, -Dserver.maxConnections, -Dserver.workers, -Dserver.workQueue,
+    // -Dserver.maxLineBytes, -Dserver.shutdownMillis, -Dserver.log, -Dserver.statsMillis,
+    // -Dserver.replicationPort, -Dserver.replicationLogBytes and -Dserver.follow
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        String engine = System.getProperty("server.engine");
+        if (engine != null) {
+            config.setEngine(Engine.valueOf(engine.trim().toUpperCase()));
+        }
+        config.setMaxConnections(Integer.getInteger("server.maxConnections", config.getMaxConnections()));
+        config.setWorkers(Integer.getInteger("server.workers", config.getWorkers()));
+        config.setWorkQueue(Integer.getInteger("server.workQueue", config.getWorkQueue()));
+        config.setMaxLineBytes(Integer.getInteger("server.maxLineBytes", config.getMaxLineBytes()));
+        config.setShutdownMillis(Long.getLong("server.shutdownMillis", config.getShutdownMillis()));
+        config.setLogCommands(Boolean.parseBoolean(System.getProperty("server.log", String.valueOf(config.isLogCommands()))));
+        config.setStatsMillis(Long.getLong("server.statsMillis", config.getStatsMillis()));
+        config.setReplicationPort(Integer.getInteger("server.replicationPort", config.getReplicationPort()));
+        config.setReplicationLogBytes(Long.getLong("server.replicationLogBytes", config.getReplicationLogBytes()));
+        String follow = System.getProperty("server.follow");
+        if (follow != null && !follow.isBlank()) {
+            config.setFollow(follow.trim());
+        }
+        return config;
+    }
+
+    // Getters
+    public Engine getEngine() {
+        return engine;
+    }
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    public int getWorkers() {
+        return workers;
+    }
+    public int getWorkQueue() {
+        return workQueue;
+    }
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+    public long getShutdownMillis() {
+        return shutdownMillis;
+    }
+    public boolean isLogCommands() {
+        return logCommands;
+    }
+    public long getStatsMillis() {
+        return statsMillis;
+    }
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+    public long getReplicationLogBytes() {
+        return replicationLogBytes;
+    }
+    public String getFollow() {
+        return follow;
+    }
+
+    // Setters (return this so options can be chained)
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+    public ServerConfig setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1.");
+        }
+        this.maxConnections = maxConnections;
+        return this;
+    }
+    public ServerConfig setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1.");
+        }
+        this.workers = workers;
+        return this;
+    }
+    public ServerConfig setWorkQueue(int workQueue) {
+        if (workQueue < 1) {
+            throw new IllegalArgumentException("workQueue must be at least 1.");
+        }
+        this.workQueue = workQueue;
+        return this;
+    }
+    public ServerConfig setMaxLineBytes(int maxLineBytes) {
+        if (maxLineBytes < 1024) {
+            throw new IllegalArgumentException("maxLineBytes must be at least 1024.");
+        }
+        this.maxLineBytes = maxLineBytes;
+        return this;
+    }
+    public ServerConfig setShutdownMillis(long shutdownMillis) {
+        if (shutdownMillis < 0) {
+            throw new IllegalArgumentException("shutdownMillis cannot be negative.");
+        }
+        this.shutdownMillis = shutdownMillis;
+        return this;
+    }
+    public ServerConfig setLogCommands(boolean logCommands) {
+        this.logCommands = logCommands;
+        return this;
+    }
+    public ServerConfig setStatsMillis(long statsMillis) {
+        if (statsMillis < 0) {
+            throw new IllegalArgumentException("statsMillis cannot be negative.");
+        }
+        this.statsMillis = statsMillis;
+        return this;
+    }
+    public ServerConfig setReplicationPort(int replicationPort) {
+        if (replicationPort < 0 || replicationPort > 65535) {
+            throw new IllegalArgumentException("replicationPort must be between 0 and 65535.");
+        }
+        this.replicationPort = replicationPort;
+        return this;
+    }
+    public ServerConfig setReplicationLogBytes(long replicationLogBytes) {
+        if (replicationLogBytes < 1024) {
+            throw new IllegalArgumentException("replicationLogBytes must be at least 1024.");
+        }
+        this.replicationLogBytes = replicationLogBytes;
+        return this;
+    }
+    // null to serve as a normal (writable) server
+    public ServerConfig setFollow(String follow) {
+        if (follow != null) {
+            int colon = follow.lastIndexOf(':');
+            try {
+                if (colon < 1 || Integer.parseInt(follow.substring(colon + 1)) < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("follow must be host:port, got '" + follow + "'.");
+            }
+        }
+        this.follow = follow;
+        return this;
+    }
+}